@@ -0,0 +1,123 @@
+package com.lmax.utan.store;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * A single writer appending to and resetting a block while readers iterate over or copy it, as in
+ * BlockConcurrencyTest.
+ */
+@State(Scope.Group)
+public class BlockContentionBenchmark
+{
+    private final long[] timestamps = new long[Block.MAX_POINTS];
+    private final double[] values = new double[Block.MAX_POINTS];
+    private final Block block = Block.newHeapBlock();
+    private int index = 0;
+
+    @Setup
+    public void setUp()
+    {
+        final Random r = new Random(87324);
+        long lastTimestamp = System.currentTimeMillis();
+
+        for (int i = 0; i < timestamps.length; i++)
+        {
+            timestamps[i] = lastTimestamp;
+            lastTimestamp += 1000 + (r.nextInt(200) - 100);
+
+            values[i] = f(r.nextDouble());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ReaderState
+    {
+        private final Block copy = Block.newHeapBlock();
+        private final PerfConsumer consumer = new PerfConsumer();
+    }
+
+    @Benchmark
+    @Group("foreach")
+    @GroupThreads(1)
+    public void foreachWriter()
+    {
+        append();
+    }
+
+    @Benchmark
+    @Group("foreach")
+    @GroupThreads(3)
+    public int foreachReader(ReaderState state, Blackhole bh)
+    {
+        state.consumer.blackhole = bh;
+        return block.foreach(state.consumer);
+    }
+
+    @Benchmark
+    @Group("copy")
+    @GroupThreads(1)
+    public void copyWriter()
+    {
+        append();
+    }
+
+    @Benchmark
+    @Group("copy")
+    @GroupThreads(3)
+    public long copyReader(ReaderState state)
+    {
+        block.copyTo(state.copy);
+        return state.copy.lastTimestamp();
+    }
+
+    private void append()
+    {
+        if (index == timestamps.length || !block.append(timestamps[index], values[index]).isOk())
+        {
+            block.reset();
+            index = 0;
+        }
+        else
+        {
+            index++;
+        }
+    }
+
+    private static class PerfConsumer implements ValueConsumer
+    {
+        private Blackhole blackhole;
+
+        @Override
+        public boolean accept(long timestamp, double value)
+        {
+            blackhole.consume(timestamp);
+            blackhole.consume(value);
+
+            return true;
+        }
+    }
+
+    private static double f(double v)
+    {
+        if (v < 0.5)
+        {
+            return 0;
+        }
+        else if (v < 0.9)
+        {
+            return (v - 0.5) * 20;
+        }
+        else
+        {
+            return (v - 0.9) * 2000;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.lmax.utan.store;
 
 import org.agrona.concurrent.UnsafeBuffer;
 import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
 import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
@@ -12,7 +13,12 @@ import java.util.Random;
 @State(Scope.Benchmark)
 public class BlockReadBenchmark
 {
-    private final Block block = Block.newHeapBlock();
+    @Param({"XOR", "CHIMP"})
+    public FloatCodec floatCodec;
+
+    private Block block;
+    private final long[] timestamps = new long[Block.MAX_POINTS];
+    private final double[] values = new double[Block.MAX_POINTS];
     private PerfConsumer consumer = new PerfConsumer();
 
     @Setup
@@ -21,8 +27,10 @@ public class BlockReadBenchmark
         final Random r = new Random(3);
         long lastTimestamp = System.currentTimeMillis();
 
+        block = Block.newHeapBlock(BlockSize.DEFAULT, floatCodec);
         while (block.append(lastTimestamp, f(r.nextDouble())).isOk())
         {
+            lastTimestamp += 1000 + (r.nextInt(200) - 100);
         }
     }
 
@@ -33,6 +41,34 @@ public class BlockReadBenchmark
         block.foreach(consumer);
     }
 
+    @Benchmark
+    public double decodeBlock()
+    {
+        final int count = block.decodeInto(timestamps, values, 0);
+
+        double sum = 0;
+        for (int i = 0; i < count; i++)
+        {
+            sum += values[i];
+        }
+
+        return sum;
+    }
+
+    @Benchmark
+    public double sumBlockWithConsumer()
+    {
+        final double[] sum = {0};
+        block.foreach(
+            (timestamp, value) ->
+            {
+                sum[0] += value;
+                return true;
+            });
+
+        return sum[0];
+    }
+
     private static class PerfConsumer implements ValueConsumer
     {
         private Blackhole blackhole;
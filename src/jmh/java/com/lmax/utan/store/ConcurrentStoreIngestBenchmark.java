@@ -0,0 +1,89 @@
+package com.lmax.utan.store;
+
+import com.lmax.utan.io.Dirs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Producers ingesting into a store with one shard per producer, each producer appending to the series of its own
+ * shard. Run with -t to vary the producers, the shard count follows the thread count so that each shard keeps a
+ * single writer.
+ */
+@State(Scope.Benchmark)
+public class ConcurrentStoreIngestBenchmark
+{
+    private static final int SERIES_PER_PRODUCER = 64;
+
+    private final AtomicInteger nextProducer = new AtomicInteger();
+    private ConcurrentStore store;
+
+    @Setup
+    public void setUp(BenchmarkParams params) throws IOException
+    {
+        store = ConcurrentStore.builder(Dirs.createTempDir(ConcurrentStoreIngestBenchmark.class.getSimpleName()))
+            .threadFactory(
+                r ->
+                {
+                    final Thread thread = new Thread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                })
+            .shardCount(params.getThreads())
+            .build();
+        store.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        store.stopAndWait();
+    }
+
+    @State(Scope.Thread)
+    public static class ProducerState
+    {
+        private String[] keys;
+        private long timestamp = System.currentTimeMillis();
+        private int index = 0;
+
+        @Setup
+        public void setUp(ConcurrentStoreIngestBenchmark benchmark)
+        {
+            final int shard = benchmark.nextProducer.getAndIncrement() % benchmark.store.shardCount();
+            final List<String> shardKeys = new ArrayList<>();
+
+            for (int i = 0; shardKeys.size() < SERIES_PER_PRODUCER; i++)
+            {
+                final String key = "producer.series." + i;
+                if (benchmark.store.shardOf(key) == shard)
+                {
+                    shardKeys.add(key);
+                }
+            }
+
+            keys = shardKeys.toArray(new String[0]);
+        }
+    }
+
+    @Benchmark
+    public void append(ProducerState state)
+    {
+        final int index = state.index;
+        if (0 == index)
+        {
+            state.timestamp += 1000;
+        }
+
+        store.append(state.keys[index], state.timestamp, index);
+        state.index = index + 1 == state.keys.length ? 0 : index + 1;
+    }
+}
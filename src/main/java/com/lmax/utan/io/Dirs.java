@@ -31,7 +31,8 @@ public class Dirs
     {
         if (!dir.exists())
         {
-            if (!dir.mkdirs())
+            // Another thread may have created it in the meantime.
+            if (!dir.mkdirs() && !dir.isDirectory())
             {
                 throw new IOException("Directory " + dir + " is not valid");
             }
@@ -0,0 +1,105 @@
+package com.lmax.utan.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When the background writer of a {@link ConcurrentStore} rewrites a block that is still being appended to. Each
+ * rewrite stores the whole block, so writing on every change amplifies a fast series by the number of points in a
+ * block. Frozen blocks are always written, as is every block when the store stops.
+ *
+ * A block that has changed is rewritten once it has grown by at least {@code minBitsChanged} and its series was last
+ * written at least {@code minIntervalNanos} ago. Points held back by a policy are not persisted until a later write,
+ * so a deployment that relies on {@link #frozenOnly()} needs some other means of durability for the active blocks.
+ */
+public final class ActiveBlockWritePolicy
+{
+    private static final ActiveBlockWritePolicy EVERY_CHANGE = new ActiveBlockWritePolicy(0, 1, false);
+    private static final ActiveBlockWritePolicy FROZEN_ONLY = new ActiveBlockWritePolicy(0, 1, true);
+
+    private final long minIntervalNanos;
+    private final int minBitsChanged;
+    private final boolean frozenOnly;
+
+    private ActiveBlockWritePolicy(long minIntervalNanos, int minBitsChanged, boolean frozenOnly)
+    {
+        if (minIntervalNanos < 0)
+        {
+            throw new IllegalArgumentException("Minimum interval must not be negative: " + minIntervalNanos);
+        }
+
+        if (minBitsChanged < 1)
+        {
+            throw new IllegalArgumentException("Minimum bits changed must be positive: " + minBitsChanged);
+        }
+
+        this.minIntervalNanos = minIntervalNanos;
+        this.minBitsChanged = minBitsChanged;
+        this.frozenOnly = frozenOnly;
+    }
+
+    /**
+     * Rewrites an active block on every change, the default.
+     */
+    public static ActiveBlockWritePolicy everyChange()
+    {
+        return EVERY_CHANGE;
+    }
+
+    /**
+     * Rewrites the active block of a series at most once per interval. The writer comes back to a held back block
+     * when the interval has passed, even if nothing else is appended.
+     */
+    public static ActiveBlockWritePolicy minInterval(long interval, TimeUnit unit)
+    {
+        return new ActiveBlockWritePolicy(unit.toNanos(interval), 1, false);
+    }
+
+    /**
+     * Rewrites an active block once its encoded data has grown by at least the given number of bits.
+     */
+    public static ActiveBlockWritePolicy minBitsChanged(int minBitsChanged)
+    {
+        return new ActiveBlockWritePolicy(0, minBitsChanged, false);
+    }
+
+    /**
+     * Writes blocks only once they are frozen.
+     */
+    public static ActiveBlockWritePolicy frozenOnly()
+    {
+        return FROZEN_ONLY;
+    }
+
+    /**
+     * A policy with both the interval of this one and a minimum number of bits changed.
+     */
+    public ActiveBlockWritePolicy withMinBitsChanged(int minBitsChanged)
+    {
+        return new ActiveBlockWritePolicy(minIntervalNanos, minBitsChanged, frozenOnly);
+    }
+
+    long minIntervalNanos()
+    {
+        return minIntervalNanos;
+    }
+
+    boolean shouldWrite(boolean frozen, int bitsChanged, long nanosSinceLastWrite)
+    {
+        if (frozen)
+        {
+            return true;
+        }
+
+        return !frozenOnly && bitsChanged >= minBitsChanged && nanosSinceLastWrite >= minIntervalNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ActiveBlockWritePolicy{" +
+            "minIntervalNanos=" + minIntervalNanos +
+            ", minBitsChanged=" + minBitsChanged +
+            ", frozenOnly=" + frozenOnly +
+            '}';
+    }
+}
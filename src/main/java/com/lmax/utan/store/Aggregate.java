@@ -0,0 +1,115 @@
+package com.lmax.utan.store;
+
+public final class Aggregate implements ValueConsumer
+{
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+    private long lastTimestamp;
+    private double last;
+
+    public Aggregate()
+    {
+        reset();
+    }
+
+    public void reset()
+    {
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        sum = 0;
+        lastTimestamp = Long.MIN_VALUE;
+        last = Double.NaN;
+    }
+
+    @Override
+    public boolean accept(long timestamp, double value)
+    {
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+
+        if (timestamp >= lastTimestamp)
+        {
+            lastTimestamp = timestamp;
+            last = value;
+        }
+
+        return true;
+    }
+
+    void combine(long count, double min, double max, double sum, long lastTimestamp, double last)
+    {
+        if (0 == count)
+        {
+            return;
+        }
+
+        this.count += count;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.sum += sum;
+
+        if (lastTimestamp >= this.lastTimestamp)
+        {
+            this.lastTimestamp = lastTimestamp;
+            this.last = last;
+        }
+    }
+
+    public void combine(Aggregate other)
+    {
+        combine(other.count, other.min, other.max, other.sum, other.lastTimestamp, other.last);
+    }
+
+    public long count()
+    {
+        return count;
+    }
+
+    public double min()
+    {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    public double max()
+    {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public double sum()
+    {
+        return sum;
+    }
+
+    public double mean()
+    {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    public double last()
+    {
+        return last;
+    }
+
+    public long lastTimestamp()
+    {
+        return lastTimestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Aggregate{" +
+            "count=" + count +
+            ", min=" + min() +
+            ", max=" + max() +
+            ", sum=" + sum +
+            ", last=" + last +
+            ", lastTimestamp=" + lastTimestamp +
+            '}';
+    }
+}
@@ -0,0 +1,24 @@
+package com.lmax.utan.store;
+
+/**
+ * What {@link ConcurrentStore#append(SeriesHandle, long, double)} does when the blocks not yet persisted exceed the
+ * memory budget of the store, because the background writers have fallen behind.
+ */
+public enum BackpressurePolicy
+{
+    /**
+     * Waits until the writers have persisted enough to bring the store back within its budget. A producer feeding the
+     * store from a queue, such as {@link IngestPipeline}, then stops taking points, and its queue fills.
+     */
+    BLOCK,
+
+    /**
+     * Throws a {@link StoreFullException}, leaving the caller to back off or give up.
+     */
+    FAIL_FAST,
+
+    /**
+     * Drops the point, returning false and counting it in {@link ConcurrentStore#droppedPoints()}.
+     */
+    DROP
+}
@@ -1,22 +1,30 @@
 package com.lmax.utan.store;
 
-import org.agrona.BitUtil;
+import org.agrona.UnsafeAccess;
 import org.agrona.concurrent.AtomicBuffer;
 import org.agrona.concurrent.UnsafeBuffer;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static java.lang.Long.highestOneBit;
-import static java.lang.Long.numberOfTrailingZeros;
 import static java.lang.Math.min;
+import static java.lang.ThreadLocal.withInitial;
 import static java.lang.String.format;
 import static java.nio.ByteOrder.BIG_ENDIAN;
 
+/**
+ * A Gorilla compressed block of points.
+ *
+ * A block has a single writer: append, freeze, reset and copying into the block must not be called concurrently.
+ * Readers never block the writer. Appends only add bits past the published length, so readers need no coordination
+ * with them. Writes that rewrite existing content (reset, recoding at freeze and being copied into) bump a sequence
+ * number to an odd value while they run, and readers validate the sequence before trusting anything they decoded.
+ * A reader that finds the block reset stops with the points it had already read, it never goes on to the points
+ * appended since, which belong to whatever the block is being used for now.
+ */
 public class Block implements Comparable<Block>
 {
     public static final int BYTE_LENGTH = 512;
@@ -24,40 +32,108 @@ public class Block implements Comparable<Block>
 
     private static final int HEADER_LENGTH_BITS = 64;
     static final int COMPRESSED_DATA_START_BITS = HEADER_LENGTH_BITS + 128;
+    static final int REGULAR_COUNT_OFFSET = COMPRESSED_DATA_START_BITS / 8;
+    static final int REGULAR_INTERVAL_OFFSET = REGULAR_COUNT_OFFSET + 4;
+    static final int REGULAR_DATA_START_BITS = COMPRESSED_DATA_START_BITS + 64;
     public static final int FIRST_TIMESTAMP_OFFSET = HEADER_LENGTH_BITS / 8;
-    private static final int FIRST_VALUE_OFFSET = FIRST_TIMESTAMP_OFFSET + 8;
+    static final int FIRST_VALUE_OFFSET = FIRST_TIMESTAMP_OFFSET + 8;
     private static final int BIT_LENGTH_LIMIT = BYTE_LENGTH * 8;
-    private static final int INT_LENGTH = BYTE_LENGTH / 4;
-    private static final int ALL_THE_LEASES = 1024;
-
-    private static final int TS_SHORT_MIN = -64;
-    private static final int TS_SHORT_MAX = 63;
+    private static final int SUMMARY_COUNT_OFFSET = 0;
+    private static final int SUMMARY_FLAGS_OFFSET = SUMMARY_COUNT_OFFSET + 4;
+    private static final int SUMMARY_MIN_OFFSET = SUMMARY_FLAGS_OFFSET + 4;
+    private static final int SUMMARY_MAX_OFFSET = SUMMARY_MIN_OFFSET + 8;
+    private static final int SUMMARY_SUM_OFFSET = SUMMARY_MAX_OFFSET + 8;
+    private static final int SUMMARY_LAST_OFFSET = SUMMARY_SUM_OFFSET + 8;
+    static final int SUMMARY_LAST_TIMESTAMP_OFFSET = SUMMARY_LAST_OFFSET + 8;
+    private static final int SUMMARY_FLAG_ASCENDING = 1;
+    private static final int CHECKPOINT_BIT_OFFSET = 0;
+    private static final int CHECKPOINT_FLAGS_OFFSET = 4;
+    private static final int CHECKPOINT_MAX_TIMESTAMP_OFFSET = 8;
+    private static final int CHECKPOINT_T_MINUS_ONE_OFFSET = 16;
+    private static final int CHECKPOINT_T_MINUS_TWO_OFFSET = 24;
+    private static final int CHECKPOINT_VALUE_OFFSET = 32;
+    private static final int CHECKPOINT_VALUE_STATE_OFFSET = 40;
+    private static final int CHECKPOINT_FLAG_INTEGER_VALUES = 1;
+    public static final int MAX_POINTS = 1 + (BIT_LENGTH_LIMIT - COMPRESSED_DATA_START_BITS) / 2;
+
+    static final int TS_SHORT_MIN = -64;
     private static final int TS_SHORT_PREFIX = 0b10;
-    private static final int TS_MED_MIN = -256;
-    private static final int TS_MED_MAX = 255;
+    static final int TS_MED_MIN = -256;
     private static final int TS_MED_PREFIX = 0b110;
-    private static final int TS_LONG_MIN = -2048;
-    private static final int TS_LONG_MAX = 2047;
+    static final int TS_LONG_MIN = -2048;
     private static final int TS_LONG_PREFIX = 0b1110;
     private static final int TS_FULL_PREFIX = 0b11110;
+    private static final int TS_WIDE_PREFIX = 0b111110;
+    static final int TS_WIDE_PREFIX_NBITS = 6;
     public static final int TS_SHORT_NBITS = 7;
     public static final int TS_MED_NBITS = 9;
     public static final int TS_LONG_NBITS = 12;
     public static final int TS_FILL_NBITS = 32;
+    static final int VALUE_WIDE_PREFIX = 0b111110;
+    static final int VALUE_ESCAPE_PREFIX = 0b111111;
+    static final int VALUE_PREFIX_NBITS = 6;
+    private static final long DELTA_OUT_OF_RANGE = 0;
+    // Integer value deltas keep the bucket widths of millisecond timestamps.
+    static final TimestampPrecision VALUE_BUCKETS = TimestampPrecision.MILLISECONDS;
+    static final int CHIMP_REFERENCES = 8;
+    static final int CHIMP_INDEX_NBITS = 3;
+    static final int CHIMP_LEADING_NBITS = 3;
+    static final int CHIMP_CENTER_NBITS = 6;
+    private static final int CHIMP_TRAILING_ZEROS_THRESHOLD = 6 + CHIMP_INDEX_NBITS;
+    static final int CHIMP_NO_LEADING_ZEROS = 65;
+    static final int[] CHIMP_LEADING_ZEROS = {0, 8, 12, 16, 18, 20, 22, 24};
+    private static final int[] CHIMP_LEADING_CODE = new int[65];
+
+    static
+    {
+        for (int leadingZeros = 0, code = 0; leadingZeros < CHIMP_LEADING_CODE.length; leadingZeros++)
+        {
+            if (code + 1 < CHIMP_LEADING_ZEROS.length && leadingZeros == CHIMP_LEADING_ZEROS[code + 1])
+            {
+                code++;
+            }
+
+            CHIMP_LEADING_CODE[leadingZeros] = code;
+        }
+    }
+
+    // A block has a single writer, so the copy a block is recoded from is kept per writer thread and size.
+    private static final ThreadLocal<UnsafeBuffer[]> RECODE_SOURCES =
+        withInitial(() -> new UnsafeBuffer[BlockSize.values().length]);
 
     private final BlockHeader header;
     private final AtomicBuffer buffer;
-    private final Semaphore resetSemaphore = new Semaphore(ALL_THE_LEASES);
-
+    private final BlockSize blockSize;
+    private final int byteLength;
+    private final AtomicLong sequence = new AtomicLong();
+    private final boolean detectIntegerValues;
+    private final FloatCodec floatCodec;
+    private final TimestampPrecision timestampPrecision;
+    private final long[] references = new long[CHIMP_REFERENCES];
+
+    private long maxTimestamp = Long.MIN_VALUE;
     private long tMinusOne = 0;
     private long tMinusTwo = 0;
     private double lastValue = 0.0;
     private long lastXorValue = 0;
-
-    private int temp0 = 0;
-    private int temp1 = 0;
-    private int temp2 = 0;
-    private int temp3 = 0;
+    private boolean integerValues = false;
+    private long valueDelta = 0;
+    private boolean impliedTimestamps = false;
+    private boolean impliedValues = false;
+    private boolean chimpValues = false;
+    private int referenceCount = 0;
+    private int previousReference = 0;
+    private int storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+    private int nextReferenceResetBits = Integer.MAX_VALUE;
+
+    private int pointCount = 0;
+    private int encodedBitLength = 0;
+    private long lastTimestampDelta = 0;
+    private boolean regularTimestamps = false;
+    private boolean constantValues = false;
+    private int totalTimestampBits = 0;
+    private int totalValueBits = 0;
+    private int resetCount = 0;
 
     public ByteBuffer underlyingBuffer()
     {
@@ -83,37 +159,137 @@ public class Block implements Comparable<Block>
     }
 
     public Block(AtomicBuffer buffer)
+    {
+        this(buffer, FloatCodec.XOR);
+    }
+
+    public Block(AtomicBuffer buffer, FloatCodec floatCodec)
+    {
+        this(buffer, true, floatCodec);
+    }
+
+    Block(AtomicBuffer buffer, boolean detectIntegerValues)
+    {
+        this(buffer, detectIntegerValues, FloatCodec.XOR);
+    }
+
+    public Block(AtomicBuffer buffer, FloatCodec floatCodec, TimestampPrecision timestampPrecision)
+    {
+        this(buffer, true, floatCodec, timestampPrecision);
+    }
+
+    Block(AtomicBuffer buffer, boolean detectIntegerValues, FloatCodec floatCodec)
+    {
+        this(buffer, detectIntegerValues, floatCodec, TimestampPrecision.DEFAULT);
+    }
+
+    Block(AtomicBuffer buffer, boolean detectIntegerValues, FloatCodec floatCodec, TimestampPrecision timestampPrecision)
     {
         this.buffer = buffer;
+        this.detectIntegerValues = detectIntegerValues;
+        this.floatCodec = floatCodec;
+        this.timestampPrecision = timestampPrecision;
         this.header = new BlockHeader(buffer);
+        this.blockSize = BlockSize.forByteLength(buffer.capacity());
+        this.byteLength = blockSize.byteLength();
         reset();
     }
 
     public static Block newHeapBlock()
     {
-        return new Block(new UnsafeBuffer(new byte[BYTE_LENGTH]));
+        return newHeapBlock(BlockSize.DEFAULT);
+    }
+
+    public static Block newHeapBlock(BlockSize blockSize)
+    {
+        return newHeapBlock(blockSize, FloatCodec.XOR);
+    }
+
+    public static Block newHeapBlock(BlockSize blockSize, FloatCodec floatCodec)
+    {
+        return newHeapBlock(blockSize, floatCodec, TimestampPrecision.DEFAULT);
+    }
+
+    public static Block newHeapBlock(BlockSize blockSize, TimestampPrecision timestampPrecision)
+    {
+        return newHeapBlock(blockSize, FloatCodec.XOR, timestampPrecision);
+    }
+
+    public static Block newHeapBlock(BlockSize blockSize, FloatCodec floatCodec, TimestampPrecision timestampPrecision)
+    {
+        return new Block(new UnsafeBuffer(new byte[blockSize.byteLength()]), floatCodec, timestampPrecision);
     }
 
     public static Block newDirectBlock()
     {
-        return new Block(new UnsafeBuffer(ByteBuffer.allocateDirect(BYTE_LENGTH)));
+        return newDirectBlock(BlockSize.DEFAULT);
+    }
+
+    public static Block newDirectBlock(BlockSize blockSize)
+    {
+        return newDirectBlock(blockSize, FloatCodec.XOR);
+    }
+
+    public static Block newDirectBlock(BlockSize blockSize, FloatCodec floatCodec)
+    {
+        return newDirectBlock(blockSize, floatCodec, TimestampPrecision.DEFAULT);
+    }
+
+    public static Block newDirectBlock(BlockSize blockSize, TimestampPrecision timestampPrecision)
+    {
+        return newDirectBlock(blockSize, FloatCodec.XOR, timestampPrecision);
+    }
+
+    public static Block newDirectBlock(BlockSize blockSize, FloatCodec floatCodec, TimestampPrecision timestampPrecision)
+    {
+        return new Block(new UnsafeBuffer(ByteBuffer.allocateDirect(blockSize.byteLength())), floatCodec, timestampPrecision);
     }
 
     public static Block[] new4KDirectBlocks(int n)
     {
-        final int size = n * BYTE_LENGTH;
-        final ByteBuffer backingBuffer = ByteBuffer.allocateDirect(size);
+        return newDirectBlocks(n, BlockSize.DEFAULT);
+    }
+
+    public static Block[] newDirectBlocks(int n, BlockSize blockSize)
+    {
+        return newDirectBlocks(n, blockSize, TimestampPrecision.DEFAULT);
+    }
+
+    public static Block[] newDirectBlocks(int n, BlockSize blockSize, TimestampPrecision timestampPrecision)
+    {
+        final int byteLength = blockSize.byteLength();
+        final ByteBuffer backingBuffer = ByteBuffer.allocateDirect(n * byteLength);
         final Block[] blocks = new Block[n];
 
         for (int i = 0; i < n; i++)
         {
-            UnsafeBuffer blockBuffer = new UnsafeBuffer(backingBuffer, i * BYTE_LENGTH, BYTE_LENGTH);
-            blocks[i] = new Block(blockBuffer);
+            UnsafeBuffer blockBuffer = new UnsafeBuffer(backingBuffer, i * byteLength, byteLength);
+            blocks[i] = new Block(blockBuffer, FloatCodec.XOR, timestampPrecision);
         }
 
         return blocks;
     }
 
+    public BlockSize blockSize()
+    {
+        return blockSize;
+    }
+
+    public int byteLength()
+    {
+        return byteLength;
+    }
+
+    public FloatCodec floatCodec()
+    {
+        return floatCodec;
+    }
+
+    public TimestampPrecision timestampPrecision()
+    {
+        return header.timestampPrecision();
+    }
+
     public int lengthInBits()
     {
         return header.lengthInBits();
@@ -124,6 +300,27 @@ public class Block implements Comparable<Block>
         return header.isFrozen();
     }
 
+    public int storedByteLength()
+    {
+        return header.storedByteLength();
+    }
+
+    void clear(int offset, int length)
+    {
+        buffer.setMemory(offset, length, (byte) 0);
+    }
+
+    BlockCodec codec()
+    {
+        return BlockCodec.fromId(header.codec());
+    }
+
+    public boolean hasSummary()
+    {
+        final long headerValue = header.readHeader();
+        return BlockHeader.isVersion2(headerValue) && BlockHeader.isFrozen(headerValue);
+    }
+
     public long firstTimestamp()
     {
         return header.firstTimestamp();
@@ -131,31 +328,83 @@ public class Block implements Comparable<Block>
 
     public long lastTimestamp()
     {
-        return header.lastTimestamp();
+        if (!header.isLongSpan())
+        {
+            return header.lastTimestamp();
+        }
+
+        // The header cannot hold the span of this block, so the last timestamp is kept in full in the summary.
+        return buffer.getLong(blockSize.summaryOffset() + SUMMARY_LAST_TIMESTAMP_OFFSET, BYTE_ORDER);
     }
 
     // ====================
     // Writing to the block
     // ====================
 
-    public synchronized AppendStatus append(long timestamp, double val)
+    public AppendStatus append(long timestamp, double val)
     {
-        if (isFrozen())
+        final long headerValue = header.readHeader();
+        if (BlockHeader.isFrozen(headerValue))
         {
             return AppendStatus.FROZEN;
         }
 
-        int bitOffset = header.lengthInBits();
+        final long flags = BlockHeader.flags(headerValue);
+        final int bitOffset = BlockHeader.lengthInBits(headerValue);
 
         if (bitOffset == HEADER_LENGTH_BITS)
         {
-            appendInitial(timestamp, val);
+            appendInitial(flags, timestamp, val);
             return AppendStatus.OK;
         }
-        else
+
+        final AppendStatus status = appendCompressed(flags, bitOffset, timestamp, val);
+        if (status.isOk())
+        {
+            writeEncodedHeader(flags);
+        }
+
+        return status;
+    }
+
+    /**
+     * Appends the points from index from up to index to, stopping at the first that does not fit, and returns the
+     * number appended. The points are published together once the last of them is encoded, so a batch pays for
+     * reading and writing the header once.
+     */
+    public int appendAll(long[] timestamps, double[] values, int from, int to)
+    {
+        final long headerValue = header.readHeader();
+        if (BlockHeader.isFrozen(headerValue) || from >= to)
+        {
+            return 0;
+        }
+
+        long flags = BlockHeader.flags(headerValue);
+        int bitOffset = BlockHeader.lengthInBits(headerValue);
+        int index = from;
+
+        if (bitOffset == HEADER_LENGTH_BITS)
+        {
+            appendInitial(flags, timestamps[index], values[index]);
+            flags = BlockHeader.flags(header.readHeader());
+            bitOffset = encodedBitLength;
+            index++;
+        }
+
+        final int firstCompressed = index;
+        while (index < to && appendCompressed(flags, bitOffset, timestamps[index], values[index]).isOk())
+        {
+            bitOffset = encodedBitLength;
+            index++;
+        }
+
+        if (index != firstCompressed)
         {
-            return appendCompressed(bitOffset, timestamp, val);
+            writeEncodedHeader(flags);
         }
+
+        return index - from;
     }
 
     public boolean isEmpty()
@@ -163,252 +412,445 @@ public class Block implements Comparable<Block>
         return header.lengthInBits() == HEADER_LENGTH_BITS;
     }
 
-    private void appendInitial(long timestamp, double val)
+    private void appendInitial(long flags, long timestamp, double val)
     {
         buffer.putLong(FIRST_TIMESTAMP_OFFSET, timestamp, BYTE_ORDER);
         buffer.putDouble(FIRST_VALUE_OFFSET, val, BYTE_ORDER);
-        header.writeHeader(false, COMPRESSED_DATA_START_BITS, 0);
 
+        final boolean isVersion2 = BlockHeader.isVersion2(flags);
+        final boolean isIntegral = detectIntegerValues && isVersion2 && isIntegral(val);
+        final BlockCodec codec = BlockCodec.forAppend(isIntegral, isVersion2 ? floatCodec : FloatCodec.XOR);
+        startEncoding(codec, timestamp, val, COMPRESSED_DATA_START_BITS);
+
+        header.writeHeader(BlockHeader.withCodec(flags, codec.id()), false, COMPRESSED_DATA_START_BITS, 0);
+    }
+
+    /**
+     * Publishes the points encoded so far. A span too long for the header is first written in full to the summary,
+     * where it stays until the block is frozen.
+     */
+    private void writeEncodedHeader(long flags)
+    {
+        if (BlockHeader.LONG_SPAN == BlockHeader.headerDelta(lastTimestampDelta))
+        {
+            final long lastTimestamp = firstTimestamp() + lastTimestampDelta;
+            buffer.putLong(blockSize.summaryOffset() + SUMMARY_LAST_TIMESTAMP_OFFSET, lastTimestamp, BYTE_ORDER);
+        }
+
+        header.writeHeader(flags, false, encodedBitLength, lastTimestampDelta);
+    }
+
+    private void startEncoding(BlockCodec codec, long timestamp, double val, int bitLength)
+    {
+        integerValues = codec.integerValues();
+        impliedTimestamps = codec.regularTimestamps();
+        impliedValues = codec.constantValues();
+        chimpValues = codec.chimpValues();
+        valueDelta = 0;
+        lastXorValue = 0;
+        resetReferences(val);
+        nextReferenceResetBits = blockSize.nextCheckpointBits(bitLength);
+
+        maxTimestamp = timestamp;
         tMinusOne = timestamp;
         tMinusTwo = timestamp;
         lastValue = val;
+
+        pointCount = 1;
+        encodedBitLength = bitLength;
+        lastTimestampDelta = 0;
+        regularTimestamps = true;
+        constantValues = true;
+        totalTimestampBits = 0;
+        totalValueBits = 0;
     }
 
-    private AppendStatus appendCompressed(int bufferBitIndex, long timestamp, double val)
+    private AppendStatus appendCompressed(long flags, int bufferBitIndex, long timestamp, double val)
     {
-        resetBitBuffer();
-
         final long d = (timestamp - tMinusOne) - (tMinusOne - tMinusTwo);
 
-        final int timestampBitsAdded;
-        if (d == 0)
+        final long lastTimestampDelta = timestamp - firstTimestamp();
+
+        long timestampBits = 0;
+        int timestampBitLength = 0;
+        boolean wideTimestamp = false;
+        if (!impliedTimestamps)
         {
-            timestampBitsAdded = appendZeroTimestampDelta();
+            final long encodedTimestamp = encodeDeltaOfDelta(d, timestampPrecision);
+
+            if (DELTA_OUT_OF_RANGE == encodedTimestamp)
+            {
+                wideTimestamp = true;
+                timestampBits = TS_WIDE_PREFIX;
+                timestampBitLength = TS_WIDE_PREFIX_NBITS + 64;
+            }
+            else
+            {
+                timestampBits = encodedTimestamp >>> 8;
+                timestampBitLength = (int) encodedTimestamp & 0xFF;
+            }
         }
-        else if (TS_SHORT_MIN <= d && d <= TS_SHORT_MAX)
+
+        if (chimpValues && bufferBitIndex >= nextReferenceResetBits)
         {
-            timestampBitsAdded = appendTimestampDelta(0, TS_SHORT_NBITS, TS_SHORT_PREFIX, (int) d - TS_SHORT_MIN);
+            // Checkpoints only record the last value, so references may not reach back past one.
+            resetReferences(lastValue);
+            nextReferenceResetBits = blockSize.nextCheckpointBits(bufferBitIndex);
         }
-        else if (TS_MED_MIN <= d && d <= TS_MED_MAX)
+
+        long xorValue = 0;
+        long nextValueDelta = valueDelta;
+        int nextStoredLeadingZeros = storedLeadingZeros;
+
+        long controlBits;
+        int controlBitLength;
+        long payloadBits;
+        int payloadBitLength;
+        if (impliedValues)
         {
-            timestampBitsAdded = appendTimestampDelta(0, TS_MED_NBITS, TS_MED_PREFIX, (int) d - TS_MED_MIN);
+            controlBits = 0;
+            controlBitLength = 0;
+            payloadBits = 0;
+            payloadBitLength = 0;
         }
-        else if (TS_LONG_MIN <= d && d <= TS_LONG_MAX)
+        else if (integerValues && isIntegral(val))
         {
-            timestampBitsAdded = appendTimestampDelta(0, TS_LONG_NBITS, TS_LONG_PREFIX, (int) d - TS_LONG_MIN);
+            nextValueDelta = (long) val - (long) lastValue;
+            final long valueDeltaOfDelta = nextValueDelta - valueDelta;
+            final long encodedValue = encodeDeltaOfDelta(valueDeltaOfDelta, VALUE_BUCKETS);
+
+            if (DELTA_OUT_OF_RANGE == encodedValue)
+            {
+                controlBits = VALUE_WIDE_PREFIX;
+                controlBitLength = VALUE_PREFIX_NBITS;
+                payloadBits = valueDeltaOfDelta;
+                payloadBitLength = 64;
+            }
+            else
+            {
+                controlBits = encodedValue >>> 8;
+                controlBitLength = (int) encodedValue & 0xFF;
+                payloadBits = 0;
+                payloadBitLength = 0;
+            }
         }
-        else if (Integer.MIN_VALUE <= d && d <= Integer.MAX_VALUE)
+        else if (chimpValues)
         {
-            timestampBitsAdded = appendTimestampDelta(0, TS_FILL_NBITS, TS_FULL_PREFIX, (int) d);
+            final long valueBits = Double.doubleToLongBits(val);
+
+            int reference = previousReference;
+            long referenceXor = valueBits ^ references[reference];
+            int trailingZeros = Long.numberOfTrailingZeros(referenceXor);
+            for (int i = 0; i < referenceCount; i++)
+            {
+                final long candidateXor = valueBits ^ references[i];
+                final int candidateTrailingZeros = Long.numberOfTrailingZeros(candidateXor);
+
+                if (candidateTrailingZeros > trailingZeros)
+                {
+                    reference = i;
+                    referenceXor = candidateXor;
+                    trailingZeros = candidateTrailingZeros;
+                }
+            }
+
+            if (0 == referenceXor)
+            {
+                controlBits = reference;
+                controlBitLength = 2 + CHIMP_INDEX_NBITS;
+                payloadBits = 0;
+                payloadBitLength = 0;
+                nextStoredLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+            }
+            else if (trailingZeros > CHIMP_TRAILING_ZEROS_THRESHOLD)
+            {
+                final int leadingCode = CHIMP_LEADING_CODE[Long.numberOfLeadingZeros(referenceXor)];
+                final int centerLength = 64 - (CHIMP_LEADING_ZEROS[leadingCode] + trailingZeros);
+
+                controlBits = (0b01L << 12) | (reference << 9) | (leadingCode << 6) | centerLength;
+                controlBitLength = 2 + CHIMP_INDEX_NBITS + CHIMP_LEADING_NBITS + CHIMP_CENTER_NBITS;
+                payloadBits = referenceXor >>> trailingZeros;
+                payloadBitLength = centerLength;
+                nextStoredLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+            }
+            else
+            {
+                final long previousXor = valueBits ^ references[previousReference];
+                final int leadingCode = CHIMP_LEADING_CODE[Long.numberOfLeadingZeros(previousXor)];
+                final int leadingZeros = CHIMP_LEADING_ZEROS[leadingCode];
+
+                if (leadingZeros == storedLeadingZeros)
+                {
+                    controlBits = 0b10;
+                    controlBitLength = 2;
+                }
+                else
+                {
+                    controlBits = (0b11 << CHIMP_LEADING_NBITS) | leadingCode;
+                    controlBitLength = 2 + CHIMP_LEADING_NBITS;
+                }
+
+                payloadBits = previousXor;
+                payloadBitLength = 64 - leadingZeros;
+                nextStoredLeadingZeros = leadingZeros;
+            }
+
+            if (integerValues)
+            {
+                controlBits |= (long) VALUE_ESCAPE_PREFIX << controlBitLength;
+                controlBitLength += VALUE_PREFIX_NBITS;
+            }
         }
         else
         {
-            throw new IllegalArgumentException(format(
-                "Timestamp delta out of range - delta: %d, timestamp: %d, tMinusOne: %d, tMinusTwo: %d",
-                d, timestamp, tMinusOne, tMinusTwo));
+            xorValue = Double.doubleToLongBits(val) ^ Double.doubleToLongBits(lastValue);
+
+            if (xorValue == 0)
+            {
+                controlBits = 0;
+                controlBitLength = 1;
+                payloadBits = 0;
+                payloadBitLength = 0;
+            }
+            else
+            {
+                final int leadingZeros = min(31, Long.numberOfLeadingZeros(xorValue));
+                final int trailingZeros = Long.numberOfTrailingZeros(xorValue);
+                final int prevLeadingZeros = Long.numberOfLeadingZeros(lastXorValue);
+                final int prevTrailingZeros = Long.numberOfTrailingZeros(lastXorValue);
+
+                if (leadingZeros >= prevLeadingZeros && trailingZeros >= prevTrailingZeros)
+                {
+                    controlBits = 0b10;
+                    controlBitLength = 2;
+                    payloadBits = xorValue >>> prevTrailingZeros;
+                    payloadBitLength = 64 - (prevLeadingZeros + prevTrailingZeros);
+                }
+                else
+                {
+                    final int relevantLength = 64 - (leadingZeros + trailingZeros);
+
+                    controlBits = (0b11 << 11) | (leadingZeros << 6) | (relevantLength - 1);
+                    controlBitLength = 2 + 5 + 6;
+                    payloadBits = xorValue >>> trailingZeros;
+                    payloadBitLength = relevantLength;
+                }
+            }
+
+            if (integerValues)
+            {
+                // A non-integral value switches the rest of the block over to xor encoding.
+                controlBits |= (long) VALUE_ESCAPE_PREFIX << controlBitLength;
+                controlBitLength += VALUE_PREFIX_NBITS;
+            }
         }
 
-        long valueAsLong = Double.doubleToLongBits(val);
-        long lastValueAsLong = Double.doubleToLongBits(lastValue);
-        long xorValue = valueAsLong ^ lastValueAsLong;
+        final int headBitLength = timestampBitLength + controlBitLength;
+        final int newBitLength = bufferBitIndex + headBitLength + payloadBitLength;
 
-        final int valueBitsAdded;
-        if (xorValue == 0)
+        final boolean isVersion2 = BlockHeader.isVersion2(flags);
+        if (newBitLength > bitLengthLimit(isVersion2))
         {
-            valueBitsAdded = appendZeroValueXor(timestampBitsAdded);
+            return AppendStatus.FULL;
         }
-        else
+
+        if (isVersion2 && 0 != blockSize.checkpointCount())
         {
-            valueBitsAdded = appendValueXor(timestampBitsAdded, xorValue, lastXorValue);
+            writeCheckpointIfDue(bufferBitIndex);
         }
 
-        int totalBitsAdded = timestampBitsAdded + valueBitsAdded;
+        if (wideTimestamp)
+        {
+            writeBits(bufferBitIndex, TS_WIDE_PREFIX, TS_WIDE_PREFIX_NBITS);
+            writeBits(bufferBitIndex + TS_WIDE_PREFIX_NBITS, d, 64);
 
-        final int newBitLength = bufferBitIndex + totalBitsAdded;
+            if (0 != controlBitLength)
+            {
+                writeBits(bufferBitIndex + timestampBitLength, controlBits, controlBitLength);
+            }
+        }
+        else if (headBitLength <= 64)
+        {
+            if (0 != headBitLength)
+            {
+                writeBits(bufferBitIndex, (timestampBits << controlBitLength) | controlBits, headBitLength);
+            }
+        }
+        else
+        {
+            writeBits(bufferBitIndex, timestampBits, timestampBitLength);
+            writeBits(bufferBitIndex + timestampBitLength, controlBits, controlBitLength);
+        }
 
-        if (newBitLength > BIT_LENGTH_LIMIT)
+        if (0 != payloadBitLength)
         {
-            return AppendStatus.FULL;
+            writeBits(bufferBitIndex + headBitLength, payloadBits, payloadBitLength);
         }
 
-        flushTemp(bufferBitIndex, totalBitsAdded);
+        regularTimestamps = regularTimestamps && (1 == pointCount || 0 == d);
+        constantValues = constantValues && Double.doubleToRawLongBits(val) == Double.doubleToRawLongBits(lastValue);
+        totalTimestampBits += timestampBitLength;
+        totalValueBits += controlBitLength + payloadBitLength;
+        pointCount++;
+        encodedBitLength = newBitLength;
+        this.lastTimestampDelta = lastTimestampDelta;
 
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
         tMinusTwo = tMinusOne;
         tMinusOne = timestamp;
         lastValue = val;
         lastXorValue = xorValue;
+        valueDelta = nextValueDelta;
+        integerValues = integerValues && isIntegral(val);
 
-        header.writeHeader(false, newBitLength, (int) (timestamp - firstTimestamp()));
+        if (chimpValues)
+        {
+            storedLeadingZeros = nextStoredLeadingZeros;
+            addReference(val);
+        }
 
         return AppendStatus.OK;
     }
 
-    private int appendZeroTimestampDelta()
+    private void resetReferences(double val)
     {
-        return 1;
+        references[0] = Double.doubleToLongBits(val);
+        referenceCount = 1;
+        previousReference = 0;
+        storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
     }
 
-    private int appendTimestampDelta(int bitOffset, int numBits, int markerBits, int timestampDelta)
+    private void addReference(double val)
     {
-        int markerBitLength = numberOfTrailingZeros(highestOneBit(markerBits) << 1);
-
-        writeBits(bitOffset, markerBits, markerBitLength);
-        writeBits(bitOffset + markerBitLength, timestampDelta, numBits);
-
-        return markerBitLength + numBits;
+        previousReference = referenceCount < CHIMP_REFERENCES ? referenceCount++ : (previousReference + 1) & (CHIMP_REFERENCES - 1);
+        references[previousReference] = Double.doubleToLongBits(val);
     }
 
-    private int appendZeroValueXor(@SuppressWarnings("unused") int i)
+    /**
+     * Encodes a delta of delta using the variable width buckets of the given precision, returning the bits shifted
+     * left by 8 with the bit length in the low byte, or DELTA_OUT_OF_RANGE if it does not fit in 32 bits.
+     */
+    private static long encodeDeltaOfDelta(long d, TimestampPrecision buckets)
     {
-        return 1;
-    }
-
-    private int appendValueXor(int bitOffset, long xorValue, long previousXorValue)
-    {
-        int leadingZeros = min(31, Long.numberOfLeadingZeros(xorValue));
-        int trailingZeros = Long.numberOfTrailingZeros(xorValue);
-        int prevLeadingZeros = Long.numberOfLeadingZeros(previousXorValue);
-        int prevTrailingZeros = Long.numberOfTrailingZeros(previousXorValue);
-
-        int length = 0;
-
-        if (leadingZeros >= prevLeadingZeros && trailingZeros >= prevTrailingZeros)
+        if (d == 0)
+        {
+            return 1;
+        }
+        else if (buckets.shortMin <= d && d < -buckets.shortMin)
         {
-            length += writeBits(bitOffset, 0b10, 2);
-            length += writeBits(
-                bitOffset + 2, xorValue >>> prevTrailingZeros, 64 - (prevLeadingZeros + prevTrailingZeros));
+            return ((((long) TS_SHORT_PREFIX << buckets.shortBits) | (d - buckets.shortMin)) << 8) | (2 + buckets.shortBits);
         }
-        else
+        else if (buckets.mediumMin <= d && d < -buckets.mediumMin)
         {
-            int relevantLength = 64 - (leadingZeros + trailingZeros);
-
-            length += writeBits(bitOffset, 0b11, 2);
-            length += writeBits(bitOffset + 2, leadingZeros, 5);
-            length += writeBits(bitOffset + 2 + 5, (relevantLength - 1), 6);
-            length += writeBits(bitOffset + 2 + 5 + 6, xorValue >>> trailingZeros, relevantLength);
+            return ((((long) TS_MED_PREFIX << buckets.mediumBits) | (d - buckets.mediumMin)) << 8) | (3 + buckets.mediumBits);
+        }
+        else if (buckets.longMin <= d && d < -buckets.longMin)
+        {
+            return ((((long) TS_LONG_PREFIX << buckets.longBits) | (d - buckets.longMin)) << 8) | (4 + buckets.longBits);
+        }
+        else if (Integer.MIN_VALUE <= d && d <= Integer.MAX_VALUE)
+        {
+            return ((((long) TS_FULL_PREFIX << TS_FILL_NBITS) | (d & 0xFFFFFFFFL)) << 8) | (5 + TS_FILL_NBITS);
         }
 
-        return length;
+        return DELTA_OUT_OF_RANGE;
     }
 
-    @SuppressWarnings("UnusedReturnValue") // It is actually...
-    int writeBits(int tempBitIndex, int value, int valueBitLength)
+    static boolean isIntegral(double value)
     {
-        return writeBits(tempBitIndex, value & 0xFFFFFFFFL, valueBitLength);
+        final long longValue = (long) value;
+        return (double) longValue == value && (0 != longValue || 0 == Double.doubleToRawLongBits(value));
     }
 
-    int writeBits(int tempBitIndex, long value, int valueBitLength)
+    private int bitLengthLimit(boolean isVersion2)
     {
-        assert valueInRange(valueBitLength, value) : format("value out of range - writeBits(%d, %d (%d), %d)", tempBitIndex, valueBitLength, 1L << valueBitLength, value);
-        assert tempBitIndex + valueBitLength < 128 : format("value too long - writeBits(%d, %d (%d), %d)", tempBitIndex, valueBitLength, 1L << valueBitLength, value);
-
-        final int tempIntIndex = tempBitIndex / 32;
-        final int tempBitOffset = tempBitIndex % 32;
-
-        long shiftedValue = value << 64 - valueBitLength;
-        int upperPart = (int) (0xFFFFFFFFL & (shiftedValue >>> 32));
-        int lowerPart = (int) (0xFFFFFFFFL & shiftedValue);
+        return isVersion2 ? blockSize.dataBitLimit() : BIT_LENGTH_LIMIT;
+    }
 
-        final int localTemp0 = getTempPart(tempIntIndex) | upperPart >>> tempBitOffset;
-        final int localTemp1 = (upperPart & intMask(tempBitOffset)) << (32 - tempBitIndex) | lowerPart >>> tempBitOffset;
-        final int localTemp2 = (lowerPart & intMask(tempBitOffset)) << (32 - tempBitIndex);
+    private int checkpointOffset(int checkpoint)
+    {
+        return blockSize.checkpointOffset() + checkpoint * BlockSize.CHECKPOINT_LENGTH;
+    }
 
-        final int intsToWrite = (tempBitOffset + valueBitLength + 32 - 1) / 32;
-        assert intsToWrite <= 3;
+    /**
+     * Records the decoder state in front of the first point written at or after each checkpoint interval. The bit
+     * offset is written last, so a reader that sees it below the published length sees the whole entry.
+     */
+    private void writeCheckpointIfDue(int bitIndex)
+    {
+        final int checkpoint = bitIndex / blockSize.checkpointIntervalBits();
 
-        switch (intsToWrite)
+        if (0 < checkpoint && checkpoint <= blockSize.checkpointCount())
         {
-            case 3:
-                setTempPart(tempIntIndex + 2, localTemp2);
-            case 2:
-                setTempPart(tempIntIndex + 1, localTemp1);
-            case 1:
-                setTempPart(tempIntIndex, localTemp0);
-            default:
-                // Ignore
-        }
+            final int offset = checkpointOffset(checkpoint - 1);
 
-        return valueBitLength;
+            if (0 == buffer.getIntVolatile(offset + CHECKPOINT_BIT_OFFSET))
+            {
+                buffer.putLong(offset + CHECKPOINT_MAX_TIMESTAMP_OFFSET, maxTimestamp, BYTE_ORDER);
+                buffer.putLong(offset + CHECKPOINT_T_MINUS_ONE_OFFSET, tMinusOne, BYTE_ORDER);
+                buffer.putLong(offset + CHECKPOINT_T_MINUS_TWO_OFFSET, tMinusTwo, BYTE_ORDER);
+                buffer.putLong(offset + CHECKPOINT_VALUE_OFFSET, Double.doubleToLongBits(lastValue), BYTE_ORDER);
+                buffer.putLong(offset + CHECKPOINT_VALUE_STATE_OFFSET, integerValues ? valueDelta : lastXorValue, BYTE_ORDER);
+                buffer.putInt(offset + CHECKPOINT_FLAGS_OFFSET, integerValues ? CHECKPOINT_FLAG_INTEGER_VALUES : 0, BYTE_ORDER);
+                buffer.putIntOrdered(offset + CHECKPOINT_BIT_OFFSET, bitIndex);
+            }
+        }
     }
 
-    private void setTempPart(int bitBufferPartIndex, int toAppend)
+    /**
+     * Creates a decoder positioned at the latest checkpoint that only skips points before startTimestamp.
+     */
+    private BlockDecoder decoderFrom(long headerValue, long startTimestamp)
     {
-        switch (bitBufferPartIndex)
+        final int lengthInBits = BlockHeader.lengthInBits(headerValue);
+        final BlockDecoder decoder = new BlockDecoder(buffer, headerValue);
+
+        if (!BlockHeader.isVersion2(headerValue))
         {
-            case 0:
-                this.temp0 |= toAppend;
-                break;
-            case 1:
-                this.temp1 |= toAppend;
-                break;
-            case 2:
-                this.temp2 |= toAppend;
-                break;
-            case 3:
-                this.temp3 |= toAppend;
-                break;
-            default:
-                assert false : "Invalid bit buffer part index: " + bitBufferPartIndex;
+            return decoder;
         }
-    }
 
-    int getTempPart(int bitBufferPartIndex)
-    {
-        switch (bitBufferPartIndex)
+        for (int i = blockSize.checkpointCount() - 1; i >= 0; i--)
         {
-            case 0:
-                return this.temp0;
-            case 1:
-                return this.temp1;
-            case 2:
-                return this.temp2;
-            case 3:
-                return this.temp3;
-        }
+            final int offset = checkpointOffset(i);
+            final int bitOffset = buffer.getIntVolatile(offset + CHECKPOINT_BIT_OFFSET);
 
-        throw new IllegalStateException(bitBufferPartIndex + "");
-    }
+            if (0 != bitOffset && bitOffset < lengthInBits &&
+                buffer.getLong(offset + CHECKPOINT_MAX_TIMESTAMP_OFFSET, BYTE_ORDER) < startTimestamp)
+            {
+                decoder.seek(
+                    bitOffset,
+                    buffer.getLong(offset + CHECKPOINT_T_MINUS_ONE_OFFSET, BYTE_ORDER),
+                    buffer.getLong(offset + CHECKPOINT_T_MINUS_TWO_OFFSET, BYTE_ORDER),
+                    buffer.getLong(offset + CHECKPOINT_VALUE_OFFSET, BYTE_ORDER),
+                    buffer.getLong(offset + CHECKPOINT_VALUE_STATE_OFFSET, BYTE_ORDER),
+                    0 != (buffer.getInt(offset + CHECKPOINT_FLAGS_OFFSET, BYTE_ORDER) & CHECKPOINT_FLAG_INTEGER_VALUES));
+                break;
+            }
+        }
 
-    private void resetBitBuffer()
-    {
-        temp0 = 0;
-        temp1 = 0;
-        temp2 = 0;
-        temp3 = 0;
+        return decoder;
     }
 
-    private void flushTemp(int bufferBitIndex, int bitLength)
+    /**
+     * Writes the low valueBitLength bits of value into the block starting at bitIndex, using a single 64 bit
+     * accumulator per aligned word. Bits in the block at and beyond bitIndex are assumed to be unused.
+     */
+    void writeBits(int bitIndex, long value, int valueBitLength)
     {
-        assert bitLength <= 128;
-
-        int intAlignedBufferByteIndex = (bufferBitIndex / 32) * 4;
-        int bufferBitSubIndex = bufferBitIndex & 31;
+        assert 0 < valueBitLength && valueBitLength <= 64 : format("invalid length - writeBits(%d, %d, %d)", bitIndex, value, valueBitLength);
+        assert valueInRange(valueBitLength, value) : format("value out of range - writeBits(%d, %d, %d)", bitIndex, value, valueBitLength);
 
-        int existingValue = buffer.getInt(intAlignedBufferByteIndex, BYTE_ORDER);
+        final int byteIndex = (bitIndex >>> 6) << 3;
+        final int bitShift = bitIndex & 63;
+        final long leftAligned = value << (64 - valueBitLength);
+        final long existing = buffer.getLong(byteIndex, BYTE_ORDER) & ~(-1L >>> bitShift);
 
-        int tempShifted0 = existingValue | (temp0 >>> bufferBitSubIndex);
-        int tempShifted1 = (temp0 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp1 >>> bufferBitSubIndex);
-        int tempShifted2 = (temp1 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp2 >>> bufferBitSubIndex);
-        int tempShifted3 = (temp2 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp3 >>> bufferBitSubIndex);
-        int tempShifted4 = (temp3 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex);
+        buffer.putLong(byteIndex, existing | (leftAligned >>> bitShift), BYTE_ORDER);
 
-        final int intsToWrite = (bufferBitSubIndex + bitLength + 32 - 1) / 32;
-        assert intsToWrite <= 5;
-
-        switch (intsToWrite)
+        if (bitShift + valueBitLength > 64)
         {
-            case 5:
-                buffer.putInt(intAlignedBufferByteIndex + 16, tempShifted4, BYTE_ORDER);
-            case 4:
-                buffer.putInt(intAlignedBufferByteIndex + 12, tempShifted3, BYTE_ORDER);
-            case 3:
-                buffer.putInt(intAlignedBufferByteIndex + 8, tempShifted2, BYTE_ORDER);
-            case 2:
-                buffer.putInt(intAlignedBufferByteIndex + 4, tempShifted1, BYTE_ORDER);
-            case 1:
-                buffer.putInt(intAlignedBufferByteIndex, tempShifted0, BYTE_ORDER);
-            default:
-                // Ignore
+            buffer.putLong(byteIndex + 8, leftAligned << (64 - bitShift), BYTE_ORDER);
         }
     }
 
@@ -418,194 +860,275 @@ public class Block implements Comparable<Block>
 
     public int foreach(ValueConsumer consumer)
     {
-        if (resetSemaphore.tryAcquire())
+        final long sequence = awaitSequence();
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, false, consumer, sequence, resetCount);
+    }
+
+    public int decodeInto(long[] timestamps, double[] values, int offset)
+    {
+        return decodeInto(Long.MIN_VALUE, Long.MAX_VALUE, timestamps, values, offset);
+    }
+
+    public int decodeInto(long startTimestamp, long endTimestamp, long[] timestamps, double[] values, int offset)
+    {
+        long sequence = awaitSequence();
+        final int resets = resetCount;
+
+        while (true)
         {
             try
             {
-                return doForEach(consumer);
+                final int count = doDecodeInto(startTimestamp, endTimestamp, timestamps, values, offset);
+
+                if (isUnchanged(sequence))
+                {
+                    return count;
+                }
+            }
+            catch (final RuntimeException ex)
+            {
+                if (isUnchanged(sequence))
+                {
+                    throw ex;
+                }
             }
-            finally
+
+            sequence = awaitSequence();
+
+            // The points of a reset block are gone, what it holds now is not what the caller asked for.
+            if (resets != resetCount)
             {
-                resetSemaphore.release();
+                return 0;
             }
         }
-        else
-        {
-            return 0;
-        }
     }
 
-    private int doForEach(ValueConsumer consumer)
+    private int doDecodeInto(long startTimestamp, long endTimestamp, long[] timestamps, double[] values, int offset)
     {
-        final int lengthInBits = header.lengthInBits();
+        final BlockDecoder decoder = decoderFrom(header.readHeader(), startTimestamp);
+        final int limit = min(timestamps.length, values.length);
 
-        if (lengthInBits <= HEADER_LENGTH_BITS)
+        int index = offset;
+        while (index < limit && decoder.next())
         {
-            return 0;
-        }
+            final long timestamp = decoder.timestamp();
 
-        long timestamp = buffer.getLong(FIRST_TIMESTAMP_OFFSET, BYTE_ORDER);
-        double value = buffer.getDouble(FIRST_VALUE_OFFSET, BYTE_ORDER);
-        long lastXorValue = 0;
+            if (timestamp >= endTimestamp)
+            {
+                break;
+            }
 
-        if (!consumer.accept(timestamp, value))
-        {
-            return 1;
+            if (startTimestamp <= timestamp)
+            {
+                timestamps[index] = timestamp;
+                values[index] = decoder.value();
+                index++;
+            }
         }
 
-        long tMinusOne = timestamp;
-        long tMinusTwo = timestamp;
+        return index - offset;
+    }
 
-        int bitOffset = HEADER_LENGTH_BITS + ((BitUtil.SIZE_OF_LONG + BitUtil.SIZE_OF_LONG) * 8);
+    public void aggregate(long startTimestamp, long endTimestamp, Aggregate aggregate)
+    {
+        long sequence = awaitSequence();
+        final int resets = resetCount;
 
-        int count = 1;
-        while (bitOffset < lengthInBits)
+        while (true)
         {
-            final int delta;
-            if (0 == readBits(bitOffset, 1))
-            {
-                bitOffset += 1;
-                delta = 0;
-            }
-            else if (TS_SHORT_PREFIX == readBits(bitOffset, 2))
-            {
-                bitOffset += 2;
-                delta = readBits(bitOffset, TS_SHORT_NBITS) + TS_SHORT_MIN;
-                bitOffset += TS_SHORT_NBITS;
-            }
-            else if (TS_MED_PREFIX == readBits(bitOffset, 3))
-            {
-                bitOffset += 3;
-                delta = readBits(bitOffset, TS_MED_NBITS) + TS_MED_MIN;
-                bitOffset += TS_MED_NBITS;
-            }
-            else if (TS_LONG_PREFIX == readBits(bitOffset, 4))
-            {
-                bitOffset += 4;
-                delta = readBits(bitOffset, TS_LONG_NBITS) + TS_LONG_MIN;
-                bitOffset += TS_LONG_NBITS;
-            }
-            else if (TS_FULL_PREFIX == readBits(bitOffset, 5))
+            final long headerValue = header.readHeader();
+            final int lengthInBits = BlockHeader.lengthInBits(headerValue);
+
+            if (lengthInBits == HEADER_LENGTH_BITS)
             {
-                bitOffset += 5;
-                delta = readBits(bitOffset, 32);
-                bitOffset += 32;
+                if (isUnchanged(sequence))
+                {
+                    return;
+                }
             }
             else
             {
-                throw new IllegalStateException("Data Corrupt");
+                final long firstTimestamp = header.firstTimestamp();
+                final int lastTimestampDelta = BlockHeader.lastTimestampDelta(headerValue);
+                final long lastTimestamp = firstTimestamp + lastTimestampDelta;
+                final int summaryOffset = blockSize.summaryOffset();
+
+                if (!BlockHeader.isVersion2(headerValue) ||
+                    !BlockHeader.isFrozen(headerValue) ||
+                    BlockHeader.LONG_SPAN == lastTimestampDelta ||
+                    (buffer.getInt(summaryOffset + SUMMARY_FLAGS_OFFSET, BYTE_ORDER) & SUMMARY_FLAG_ASCENDING) == 0 ||
+                    startTimestamp > firstTimestamp || lastTimestamp >= endTimestamp)
+                {
+                    read(startTimestamp, endTimestamp, true, aggregate, sequence, resets);
+                    return;
+                }
+
+                final int count = buffer.getInt(summaryOffset + SUMMARY_COUNT_OFFSET, BYTE_ORDER);
+                final double min = buffer.getDouble(summaryOffset + SUMMARY_MIN_OFFSET, BYTE_ORDER);
+                final double max = buffer.getDouble(summaryOffset + SUMMARY_MAX_OFFSET, BYTE_ORDER);
+                final double sum = buffer.getDouble(summaryOffset + SUMMARY_SUM_OFFSET, BYTE_ORDER);
+                final double last = buffer.getDouble(summaryOffset + SUMMARY_LAST_OFFSET, BYTE_ORDER);
+
+                if (isUnchanged(sequence))
+                {
+                    aggregate.combine(count, min, max, sum, lastTimestamp, last);
+                    return;
+                }
             }
 
-            timestamp = delta + (tMinusOne - tMinusTwo) + tMinusOne;
-            tMinusTwo = tMinusOne;
-            tMinusOne = timestamp;
+            sequence = awaitSequence();
 
-            if (0 == readBits(bitOffset, 1))
+            // The points of a reset block are gone, what it holds now is not what the caller asked for.
+            if (resets != resetCount)
             {
-                bitOffset += 1;
+                return;
             }
-            else
-            {
-                final long prefixBits = readBits(bitOffset, 2);
-                bitOffset += 2;
-
-                if (0b10 == prefixBits)
-                {
-                    int leadingZeros = Long.numberOfLeadingZeros(lastXorValue);
-                    int trailingZeros = Long.numberOfTrailingZeros(lastXorValue);
-                    int validBits = 64 - (leadingZeros + trailingZeros);
-                    long xorValue = readBitsLong(bitOffset, validBits) << trailingZeros;
+        }
+    }
 
-                    value = Double.longBitsToDouble(xorValue ^ Double.doubleToLongBits(value));
+    /**
+     * Delivers the decoded points to the consumer, validating the sequence before each one so that only points from
+     * a consistent version of the block are delivered. If the block is recoded part way through, decoding starts
+     * again and skips the points already delivered. If it is reset, the read ends with the points delivered so far,
+     * none of the content appended since.
+     */
+    private int read(
+        long startTimestamp, long endTimestamp, boolean bounded, ValueConsumer consumer, long firstSequence, int resets)
+    {
+        long sequence = firstSequence;
+        int delivered = 0;
 
-                    lastXorValue = xorValue;
+        while (true)
+        {
+            try
+            {
+                final BlockDecoder decoder = bounded ?
+                    decoderFrom(header.readHeader(), startTimestamp) : new BlockDecoder(buffer, header.readHeader());
 
-                    bitOffset += validBits;
-                }
-                else if (0b11 == prefixBits)
+                int skip = delivered;
+                while (decoder.next())
                 {
-                    int leadingZeros = readBits(bitOffset, 5);
-                    int length = readBits(bitOffset + 5, 6) + 1;
-                    long shift = 64 - (leadingZeros + length);
-                    long xorValue = readBitsLong(bitOffset + 5 + 6, length) << shift;
-
-                    value = Double.longBitsToDouble(xorValue ^ Double.doubleToLongBits(value));
-
-                    lastXorValue = xorValue;
+                    final long timestamp = decoder.timestamp();
+                    final double value = decoder.value();
+
+                    if (!isUnchanged(sequence))
+                    {
+                        break;
+                    }
+
+                    if (bounded && timestamp >= endTimestamp)
+                    {
+                        return delivered;
+                    }
+
+                    if (timestamp < startTimestamp)
+                    {
+                        continue;
+                    }
+
+                    if (0 < skip)
+                    {
+                        skip--;
+                        continue;
+                    }
+
+                    delivered++;
+                    if (!consumer.accept(timestamp, value))
+                    {
+                        return delivered;
+                    }
+                }
 
-                    bitOffset += 5;
-                    bitOffset += 6;
-                    bitOffset += length;
+                if (isUnchanged(sequence))
+                {
+                    return delivered;
                 }
-                else
+            }
+            catch (final RuntimeException ex)
+            {
+                if (isUnchanged(sequence))
                 {
-                    throw new IllegalStateException("Data Corrupt");
+                    throw ex;
                 }
             }
 
-            count++;
-            if (!consumer.accept(timestamp, value))
+            sequence = awaitSequence();
+
+            if (resets != resetCount)
             {
-                break;
+                return delivered;
             }
         }
+    }
+
+    private long awaitSequence()
+    {
+        long sequence;
+        while (0 != ((sequence = this.sequence.get()) & 1))
+        {
+            // Wait for the writer to finish rewriting the block.
+        }
 
-        return count;
+        return sequence;
     }
 
-    private int readBits(int bitOffset, int numBits)
+    private boolean isUnchanged(long sequence)
     {
-        return (int) (readBitsLong(bitOffset, numBits) & 0xFFFFFFFFL);
+        UnsafeAccess.UNSAFE.loadFence();
+        return this.sequence.get() == sequence;
     }
 
-    private long readBitsLong(int bitOffset, int numBits)
+    private void beginWrite()
     {
-        int longAlignedByteOffset = (bitOffset / 64) * 8;
-        int bitSubIndex = bitOffset & 63;
+        sequence.lazySet(sequence.get() + 1);
+        UnsafeAccess.UNSAFE.storeFence();
+    }
 
-        long bitsUpper = buffer.getLong(longAlignedByteOffset, BYTE_ORDER);
-        long bitsLower;
-        if (longAlignedByteOffset + 8 < buffer.capacity())
-        {
-            bitsLower = buffer.getLong(longAlignedByteOffset + 8, BYTE_ORDER);
-        }
-        else
+    private void endWrite(boolean discardsContent)
+    {
+        if (discardsContent)
         {
-            bitsLower = 0;
+            resetCount++;
         }
 
-        int shiftRight = (64 - bitSubIndex) - numBits;
-
-        long mask = longMask(numBits);
-        long valueHighPart = (shiftRight < 0) ? (bitsUpper << -shiftRight) & mask : (bitsUpper >>> shiftRight) & mask;
-        long valueLowPart = (shiftRight < 0) ? (bitsLower >>> (64 + shiftRight)) & longMask(-shiftRight) : 0;
-
-        return valueHighPart | valueLowPart;
+        sequence.lazySet(sequence.get() + 1);
     }
 
-    public synchronized boolean reset()
+    public void reset()
     {
-        final boolean resetAcquired = resetSemaphore.tryAcquire(ALL_THE_LEASES);
-        if (resetAcquired)
+        beginWrite();
+        try
         {
-            try
-            {
-                buffer.setMemory(0, BYTE_LENGTH, (byte) 0);
-                tMinusOne = 0;
-                tMinusTwo = 0;
-                lastValue = 0.0;
-                lastXorValue = 0;
-                resetBitBuffer();
-
-                header.writeHeader(isFrozen(), HEADER_LENGTH_BITS, header.lastTimestampDelta());
-            }
-            finally
-            {
-                resetSemaphore.release(ALL_THE_LEASES);
-            }
+            buffer.setMemory(0, byteLength, (byte) 0);
+            maxTimestamp = Long.MIN_VALUE;
+            tMinusOne = 0;
+            tMinusTwo = 0;
+            lastValue = 0.0;
+            lastXorValue = 0;
+            integerValues = false;
+            valueDelta = 0;
+            impliedTimestamps = false;
+            impliedValues = false;
+            chimpValues = false;
+            referenceCount = 0;
+            previousReference = 0;
+            storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+            nextReferenceResetBits = Integer.MAX_VALUE;
+            pointCount = 0;
+            encodedBitLength = 0;
+            lastTimestampDelta = 0;
+            regularTimestamps = false;
+            constantValues = false;
+            totalTimestampBits = 0;
+            totalValueBits = 0;
+
+            header.writeHeader(
+                BlockHeader.flags(blockSize, timestampPrecision), isFrozen(), HEADER_LENGTH_BITS, header.lastTimestampDelta());
+        }
+        finally
+        {
+            endWrite(true);
         }
-
-        return resetAcquired;
     }
 
     private static long longMask(int numBits)
@@ -627,31 +1150,64 @@ public class Block implements Comparable<Block>
 
     public void copyTo(Block block)
     {
-        if (resetSemaphore.tryAcquire())
+        if (block.byteLength != byteLength)
         {
-            try
-            {
-                final long headerValue = header.readHeader();
-                buffer.getBytes(0, block.buffer, 0, BYTE_LENGTH);
+            throw new IllegalArgumentException(
+                format("Block size mismatch - source: %s, destination: %s", blockSize, block.blockSize));
+        }
 
-                block.header.writeHeader(headerValue);
-                block.zeroRemaining();
-            }
-            finally
+        block.beginWrite();
+        try
+        {
+            long sequence;
+            long headerValue;
+            do
             {
-                resetSemaphore.release();
+                sequence = awaitSequence();
+                headerValue = header.readHeader();
+                buffer.getBytes(0, block.buffer, 0, byteLength);
             }
+            while (!isUnchanged(sequence));
+
+            block.header.writeHeader(headerValue);
+            block.zeroRemaining();
+        }
+        finally
+        {
+            block.endWrite(true);
         }
     }
 
     private void zeroRemaining()
     {
-        final int intAlignedByteIndex = (header.lengthInBits() / 32) * 4;
-        final int bitOffset = header.lengthInBits() % 32;
+        final long headerValue = header.readHeader();
+        final int lengthInBits = BlockHeader.lengthInBits(headerValue);
+        final boolean isVersion2 = BlockHeader.isVersion2(headerValue);
+        final int limit = isVersion2 ? blockSize.checkpointOffset() : byteLength;
+        final int intAlignedByteIndex = (lengthInBits / 32) * 4;
+        final int bitOffset = lengthInBits % 32;
+
+        if (isVersion2)
+        {
+            for (int i = 0; i < blockSize.checkpointCount(); i++)
+            {
+                final int offset = checkpointOffset(i);
+                if (buffer.getIntVolatile(offset + CHECKPOINT_BIT_OFFSET) >= lengthInBits)
+                {
+                    buffer.setMemory(offset, BlockSize.CHECKPOINT_LENGTH, (byte) 0);
+                }
+            }
+        }
+
+        if (intAlignedByteIndex >= limit)
+        {
+            return;
+        }
+
         final int remainingValue = buffer.getInt(intAlignedByteIndex, BYTE_ORDER) & (intMask(bitOffset) << (32 - bitOffset));
         buffer.putInt(intAlignedByteIndex, remainingValue, BYTE_ORDER);
 
-        for (int i = intAlignedByteIndex + 4; i < INT_LENGTH; i += 4)
+        for (int i = intAlignedByteIndex + 4; i < limit; i += 4)
         {
             buffer.putInt(i, 0);
         }
@@ -661,21 +1217,182 @@ public class Block implements Comparable<Block>
     public String toString()
     {
         return "Block{" +
-            "bitLength=" + header.lengthInBits() +
-            ", firstTimestamp=" + getUtc(firstTimestamp()) + " (" + firstTimestamp() + ")" +
-            ", lastTimestampDelta=" + getUtc(lastTimestamp()) + " (" + lastTimestamp() + ")" +
+            "blockSize=" + blockSize +
+            ", bitLength=" + header.lengthInBits() +
+            ", firstTimestamp=" + getUtc(firstTimestamp(), timestampPrecision()) + " (" + firstTimestamp() + ")" +
+            ", lastTimestampDelta=" + getUtc(lastTimestamp(), timestampPrecision()) + " (" + lastTimestamp() + ")" +
             ", isFrozen=" + isFrozen() +
             '}';
     }
 
     static ZonedDateTime getUtc(long firstTimestamp)
     {
-        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(firstTimestamp), ZoneId.of("UTC"));
+        return getUtc(firstTimestamp, TimestampPrecision.MILLISECONDS);
+    }
+
+    static ZonedDateTime getUtc(long timestamp, TimestampPrecision timestampPrecision)
+    {
+        return ZonedDateTime.ofInstant(timestampPrecision.toInstant(timestamp), ZoneId.of("UTC"));
     }
 
-    public synchronized void freeze()
+    public void freeze()
     {
-        header.writeHeader(true, header.lengthInBits(), header.lastTimestampDelta());
+        long headerValue = header.readHeader();
+
+        if (BlockHeader.isVersion2(headerValue) && !BlockHeader.isFrozen(headerValue))
+        {
+            headerValue = recodeIfSmaller(headerValue);
+            writeSummary(headerValue);
+        }
+
+        header.writeHeader(
+            BlockHeader.flags(headerValue), true,
+            BlockHeader.lengthInBits(headerValue), BlockHeader.lastTimestampDelta(headerValue));
+    }
+
+    /**
+     * Re-encodes the block with the codec that needs the fewest bits, using the statistics gathered while
+     * appending. Readers decoding the block in place see the sequence change and pick up where they were.
+     */
+    private long recodeIfSmaller(long headerValue)
+    {
+        final BlockCodec codec = BlockCodec.fromId(BlockHeader.codec(headerValue));
+        final int lengthInBits = BlockHeader.lengthInBits(headerValue);
+
+        if (pointCount < 2 || encodedBitLength != lengthInBits || codec.regularTimestamps() || codec.constantValues())
+        {
+            return headerValue;
+        }
+
+        // The regular codecs store the interval as an int, which a long cadence at fine precision can overflow.
+        final long interval = tMinusOne - tMinusTwo;
+        final boolean regularInterval = regularTimestamps && interval == (int) interval;
+
+        BlockCodec smallestCodec = codec;
+        int smallestLength = lengthInBits;
+
+        if (constantValues && lengthInBits - totalValueBits < smallestLength)
+        {
+            smallestCodec = BlockCodec.RUN_LENGTH;
+            smallestLength = lengthInBits - totalValueBits;
+        }
+
+        if (regularInterval && lengthInBits - totalTimestampBits + 64 < smallestLength)
+        {
+            smallestCodec = codec.withRegularTimestamps();
+            smallestLength = lengthInBits - totalTimestampBits + 64;
+        }
+
+        if (regularInterval && constantValues && REGULAR_DATA_START_BITS < smallestLength)
+        {
+            smallestCodec = BlockCodec.REGULAR_RUN_LENGTH;
+        }
+
+        if (smallestCodec == codec)
+        {
+            return headerValue;
+        }
+
+        beginWrite();
+        try
+        {
+            return recode(headerValue, smallestCodec);
+        }
+        finally
+        {
+            endWrite(false);
+        }
+    }
+
+    private long recode(long headerValue, BlockCodec codec)
+    {
+        final UnsafeBuffer source = recodeSource();
+        buffer.getBytes(0, source, 0, byteLength);
+
+        final BlockDecoder decoder = new BlockDecoder(source, headerValue);
+        decoder.next();
+
+        final long firstTimestamp = decoder.timestamp();
+        final long flags = BlockHeader.withCodec(BlockHeader.flags(headerValue), codec.id());
+        final int dataStartBits = codec.regularTimestamps() ? REGULAR_DATA_START_BITS : COMPRESSED_DATA_START_BITS;
+        final int dataStartOffset = COMPRESSED_DATA_START_BITS / 8;
+
+        buffer.setMemory(dataStartOffset, blockSize.summaryOffset() - dataStartOffset, (byte) 0);
+        startEncoding(codec, firstTimestamp, decoder.value(), dataStartBits);
+        header.writeHeader(flags, false, dataStartBits, 0);
+
+        long interval = 0;
+        while (decoder.next())
+        {
+            if (1 == pointCount)
+            {
+                interval = decoder.timestamp() - firstTimestamp;
+            }
+
+            appendCompressed(flags, encodedBitLength, decoder.timestamp(), decoder.value());
+        }
+
+        writeEncodedHeader(flags);
+
+        if (codec.regularTimestamps())
+        {
+            buffer.putInt(REGULAR_COUNT_OFFSET, pointCount, BYTE_ORDER);
+            buffer.putInt(REGULAR_INTERVAL_OFFSET, (int) interval, BYTE_ORDER);
+        }
+
+        return header.readHeader();
+    }
+
+    private UnsafeBuffer recodeSource()
+    {
+        final UnsafeBuffer[] sources = RECODE_SOURCES.get();
+        UnsafeBuffer source = sources[blockSize.ordinal()];
+        if (null == source)
+        {
+            source = new UnsafeBuffer(new byte[byteLength]);
+            sources[blockSize.ordinal()] = source;
+        }
+
+        return source;
+    }
+
+    private void writeSummary(long headerValue)
+    {
+        final BlockDecoder decoder = new BlockDecoder(buffer, headerValue);
+        final int summaryOffset = blockSize.summaryOffset();
+
+        int count = 0;
+        int flags = SUMMARY_FLAG_ASCENDING;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        double last = Double.NaN;
+        long previousTimestamp = Long.MIN_VALUE;
+
+        while (decoder.next())
+        {
+            final long timestamp = decoder.timestamp();
+            final double value = decoder.value();
+
+            if (timestamp < previousTimestamp)
+            {
+                flags &= ~SUMMARY_FLAG_ASCENDING;
+            }
+
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            last = value;
+            previousTimestamp = timestamp;
+        }
+
+        buffer.putInt(summaryOffset + SUMMARY_COUNT_OFFSET, count, BYTE_ORDER);
+        buffer.putInt(summaryOffset + SUMMARY_FLAGS_OFFSET, flags, BYTE_ORDER);
+        buffer.putDouble(summaryOffset + SUMMARY_MIN_OFFSET, min, BYTE_ORDER);
+        buffer.putDouble(summaryOffset + SUMMARY_MAX_OFFSET, max, BYTE_ORDER);
+        buffer.putDouble(summaryOffset + SUMMARY_SUM_OFFSET, sum, BYTE_ORDER);
+        buffer.putDouble(summaryOffset + SUMMARY_LAST_OFFSET, last, BYTE_ORDER);
     }
 
     @Override
@@ -691,7 +1408,12 @@ public class Block implements Comparable<Block>
         if (o == null || getClass() != o.getClass()) return false;
         Block block = (Block) o;
 
-        for (int i = 0; i < BYTE_LENGTH; i += 8)
+        if (byteLength != block.byteLength)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < byteLength; i += 8)
         {
             if (buffer.getLong(i) != block.buffer.getLong(i))
             {
@@ -0,0 +1,105 @@
+package com.lmax.utan.store;
+
+/**
+ * Encodings for the compressed section of a {@link Block}, keyed by the codec id stored in the block header.
+ *
+ * Blocks are appended with one of the codecs returned by {@link #forAppend}. The others are only chosen at freeze,
+ * when the block turns out to hold a single value (run-length) or to be sampled at a fixed interval (regular), and
+ * drop the value or timestamp bits respectively. Regular blocks store the point count and the interval in front of
+ * the compressed data. Codecs with chimp values encode non-integral values with {@link FloatCodec#CHIMP}.
+ */
+enum BlockCodec
+{
+    XOR(0, false, false, false, false),
+    INTEGER_DELTA(1, true, false, false, false),
+    RUN_LENGTH(2, false, false, true, false),
+    REGULAR_XOR(3, false, true, false, false),
+    REGULAR_INTEGER_DELTA(4, true, true, false, false),
+    REGULAR_RUN_LENGTH(5, false, true, true, false),
+    CHIMP(6, false, false, false, true),
+    INTEGER_DELTA_CHIMP(7, true, false, false, true),
+    REGULAR_CHIMP(8, false, true, false, true),
+    REGULAR_INTEGER_DELTA_CHIMP(9, true, true, false, true);
+
+    private static final BlockCodec[] CODECS = new BlockCodec[16];
+
+    static
+    {
+        for (BlockCodec codec : values())
+        {
+            CODECS[codec.id] = codec;
+        }
+    }
+
+    private final int id;
+    private final boolean integerValues;
+    private final boolean regularTimestamps;
+    private final boolean constantValues;
+    private final boolean chimpValues;
+
+    BlockCodec(int id, boolean integerValues, boolean regularTimestamps, boolean constantValues, boolean chimpValues)
+    {
+        this.id = id;
+        this.integerValues = integerValues;
+        this.regularTimestamps = regularTimestamps;
+        this.constantValues = constantValues;
+        this.chimpValues = chimpValues;
+    }
+
+    int id()
+    {
+        return id;
+    }
+
+    boolean integerValues()
+    {
+        return integerValues;
+    }
+
+    boolean regularTimestamps()
+    {
+        return regularTimestamps;
+    }
+
+    boolean constantValues()
+    {
+        return constantValues;
+    }
+
+    boolean chimpValues()
+    {
+        return chimpValues;
+    }
+
+    BlockCodec withRegularTimestamps()
+    {
+        if (chimpValues)
+        {
+            return integerValues ? REGULAR_INTEGER_DELTA_CHIMP : REGULAR_CHIMP;
+        }
+
+        return integerValues ? REGULAR_INTEGER_DELTA : REGULAR_XOR;
+    }
+
+    static BlockCodec forAppend(boolean integerValues, FloatCodec floatCodec)
+    {
+        if (FloatCodec.CHIMP == floatCodec)
+        {
+            return integerValues ? INTEGER_DELTA_CHIMP : CHIMP;
+        }
+
+        return integerValues ? INTEGER_DELTA : XOR;
+    }
+
+    static BlockCodec fromId(int id)
+    {
+        final BlockCodec codec = id < CODECS.length ? CODECS[id] : null;
+
+        if (null == codec)
+        {
+            throw new IllegalStateException("Data Corrupt, invalid codec id: " + id);
+        }
+
+        return codec;
+    }
+}
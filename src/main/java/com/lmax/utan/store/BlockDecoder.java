@@ -0,0 +1,505 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.AtomicBuffer;
+
+import static com.lmax.utan.store.Block.BYTE_ORDER;
+import static com.lmax.utan.store.Block.CHIMP_CENTER_NBITS;
+import static com.lmax.utan.store.Block.CHIMP_INDEX_NBITS;
+import static com.lmax.utan.store.Block.CHIMP_LEADING_NBITS;
+import static com.lmax.utan.store.Block.CHIMP_LEADING_ZEROS;
+import static com.lmax.utan.store.Block.CHIMP_NO_LEADING_ZEROS;
+import static com.lmax.utan.store.Block.CHIMP_REFERENCES;
+import static com.lmax.utan.store.Block.COMPRESSED_DATA_START_BITS;
+import static com.lmax.utan.store.Block.FIRST_TIMESTAMP_OFFSET;
+import static com.lmax.utan.store.Block.FIRST_VALUE_OFFSET;
+import static com.lmax.utan.store.Block.REGULAR_COUNT_OFFSET;
+import static com.lmax.utan.store.Block.REGULAR_DATA_START_BITS;
+import static com.lmax.utan.store.Block.REGULAR_INTERVAL_OFFSET;
+import static com.lmax.utan.store.Block.TS_FILL_NBITS;
+import static com.lmax.utan.store.Block.TS_WIDE_PREFIX_NBITS;
+import static com.lmax.utan.store.Block.VALUE_BUCKETS;
+import static com.lmax.utan.store.Block.VALUE_PREFIX_NBITS;
+
+/**
+ * Streaming decoder for the compressed section of a {@link Block}.
+ *
+ * Keeps the next (up to) 64 bits of the block left aligned in a register, so the timestamp prefix can be
+ * classified by counting leading ones and the buffer is only touched when the window needs to be refilled.
+ * Codecs that leave out the timestamps or the values, or that use chimp values, take a separate path, so the xor
+ * path pays a single branch.
+ */
+final class BlockDecoder
+{
+    private static final int REFILL_THRESHOLD = 57;
+
+    private final AtomicBuffer buffer;
+    private final int capacity;
+    private final int lengthInBits;
+    private final boolean impliedTimestamps;
+    private final boolean impliedValues;
+    private final boolean general;
+    private final long interval;
+    private final BlockSize blockSize;
+    private final TimestampPrecision timestampPrecision;
+    private final long[] references;
+
+    private long window = 0;
+    private int windowBits = 0;
+    private int nextByte = COMPRESSED_DATA_START_BITS / 8;
+    private boolean started = false;
+
+    private long timestamp;
+    private long tMinusOne;
+    private long tMinusTwo;
+    private long valueBits;
+    private long lastXorValue = 0;
+    private boolean integerValues;
+    private long longValue;
+    private long valueDelta = 0;
+    private int remaining = 0;
+    private int referenceCount = 0;
+    private int previousReference = 0;
+    private int storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+    private int nextReferenceResetBits = Integer.MAX_VALUE;
+
+    BlockDecoder(AtomicBuffer buffer, long headerValue)
+    {
+        final BlockCodec codec = BlockCodec.fromId(BlockHeader.codec(headerValue));
+
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+        this.lengthInBits = BlockHeader.lengthInBits(headerValue);
+        this.integerValues = codec.integerValues();
+        this.impliedTimestamps = codec.regularTimestamps();
+        this.impliedValues = codec.constantValues();
+        this.general = impliedTimestamps || impliedValues || codec.chimpValues();
+        this.blockSize = BlockHeader.blockSize(headerValue);
+        this.timestampPrecision = BlockHeader.timestampPrecision(headerValue);
+        this.references = codec.chimpValues() ? new long[CHIMP_REFERENCES] : null;
+
+        if (impliedTimestamps)
+        {
+            this.interval = buffer.getInt(REGULAR_INTERVAL_OFFSET, BYTE_ORDER);
+            this.remaining = buffer.getInt(REGULAR_COUNT_OFFSET, BYTE_ORDER) - 1;
+            this.nextByte = REGULAR_DATA_START_BITS / 8;
+        }
+        else
+        {
+            this.interval = 0;
+        }
+    }
+
+    long timestamp()
+    {
+        return timestamp;
+    }
+
+    double value()
+    {
+        return Double.longBitsToDouble(valueBits);
+    }
+
+    /**
+     * Positions the decoder at bitOffset, where valueState is the previous value delta when decoding integer
+     * values and the last xor otherwise. Chimp references start again from the last value, as they do in the
+     * encoder at every checkpoint.
+     */
+    void seek(int bitOffset, long tMinusOne, long tMinusTwo, long valueBits, long valueState, boolean integerValues)
+    {
+        this.started = true;
+        this.timestamp = tMinusOne;
+        this.tMinusOne = tMinusOne;
+        this.tMinusTwo = tMinusTwo;
+        this.valueBits = valueBits;
+        this.integerValues = integerValues;
+        this.longValue = (long) Double.longBitsToDouble(valueBits);
+        this.valueDelta = integerValues ? valueState : 0;
+        this.lastXorValue = integerValues ? 0 : valueState;
+
+        if (null != references)
+        {
+            resetReferences(bitOffset);
+        }
+
+        window = 0;
+        windowBits = 0;
+        nextByte = bitOffset >>> 3;
+        refill();
+        consume(bitOffset & 7);
+    }
+
+    boolean next()
+    {
+        if (!started)
+        {
+            return readFirst();
+        }
+
+        if (general)
+        {
+            return nextGeneral();
+        }
+
+        if ((nextByte << 3) - windowBits >= lengthInBits)
+        {
+            return false;
+        }
+
+        readTimestamp();
+        readValue();
+
+        return true;
+    }
+
+    private boolean nextGeneral()
+    {
+        final int bitIndex = (nextByte << 3) - windowBits;
+
+        if (impliedTimestamps && impliedValues)
+        {
+            // No bits are written per point, so the count is the only way to find the end.
+            if (0 == remaining)
+            {
+                return false;
+            }
+
+            remaining--;
+        }
+        else if (bitIndex >= lengthInBits)
+        {
+            return false;
+        }
+
+        if (null != references && bitIndex >= nextReferenceResetBits)
+        {
+            resetReferences(bitIndex);
+        }
+
+        if (impliedTimestamps)
+        {
+            timestamp = tMinusOne + interval;
+            tMinusTwo = tMinusOne;
+            tMinusOne = timestamp;
+        }
+        else
+        {
+            readTimestamp();
+        }
+
+        if (impliedValues)
+        {
+            return true;
+        }
+
+        if (integerValues)
+        {
+            readIntegerValue();
+        }
+        else
+        {
+            readFloatValue();
+        }
+
+        if (null != references)
+        {
+            addReference();
+        }
+
+        return true;
+    }
+
+    private void resetReferences(int bitIndex)
+    {
+        references[0] = canonical(valueBits);
+        referenceCount = 1;
+        previousReference = 0;
+        storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+        nextReferenceResetBits = blockSize.nextCheckpointBits(bitIndex);
+    }
+
+    private void addReference()
+    {
+        previousReference = referenceCount < CHIMP_REFERENCES ? referenceCount++ : (previousReference + 1) & (CHIMP_REFERENCES - 1);
+        references[previousReference] = valueBits;
+    }
+
+    private boolean readFirst()
+    {
+        started = true;
+
+        if (lengthInBits < COMPRESSED_DATA_START_BITS)
+        {
+            return false;
+        }
+
+        timestamp = buffer.getLong(FIRST_TIMESTAMP_OFFSET, BYTE_ORDER);
+        valueBits = buffer.getLong(FIRST_VALUE_OFFSET, BYTE_ORDER);
+        tMinusOne = timestamp;
+        tMinusTwo = timestamp;
+        longValue = (long) Double.longBitsToDouble(valueBits);
+
+        if (null != references)
+        {
+            resetReferences((nextByte << 3) - windowBits);
+        }
+
+        return true;
+    }
+
+    private void readTimestamp()
+    {
+        if (windowBits < TS_FILL_NBITS + 5)
+        {
+            refill();
+        }
+
+        final long delta = readDeltaOfDelta(Long.numberOfLeadingZeros(~window), timestampPrecision);
+
+        timestamp = delta + (tMinusOne - tMinusTwo) + tMinusOne;
+        tMinusTwo = tMinusOne;
+        tMinusOne = timestamp;
+    }
+
+    private long readDeltaOfDelta(int prefixLength, TimestampPrecision buckets)
+    {
+        final long delta;
+        switch (prefixLength)
+        {
+            case 0:
+                consume(1);
+                delta = 0;
+                break;
+
+            case 1:
+                delta = (window << 2 >>> (64 - buckets.shortBits)) + buckets.shortMin;
+                consume(2 + buckets.shortBits);
+                break;
+
+            case 2:
+                delta = (window << 3 >>> (64 - buckets.mediumBits)) + buckets.mediumMin;
+                consume(3 + buckets.mediumBits);
+                break;
+
+            case 3:
+                delta = (window << 4 >>> (64 - buckets.longBits)) + buckets.longMin;
+                consume(4 + buckets.longBits);
+                break;
+
+            case 4:
+                delta = (int) (window << 5 >>> (64 - TS_FILL_NBITS));
+                consume(5 + TS_FILL_NBITS);
+                break;
+
+            case 5:
+                consume(TS_WIDE_PREFIX_NBITS);
+                delta = readLong(64);
+                break;
+
+            default:
+                throw new IllegalStateException("Data Corrupt");
+        }
+
+        return delta;
+    }
+
+    private void readValue()
+    {
+        if (integerValues)
+        {
+            readIntegerValue();
+        }
+        else
+        {
+            readXorValue();
+        }
+    }
+
+    private void readIntegerValue()
+    {
+        if (windowBits < TS_FILL_NBITS + VALUE_PREFIX_NBITS)
+        {
+            refill();
+        }
+
+        final int prefixLength = Long.numberOfLeadingZeros(~window);
+        final long deltaOfDelta;
+        if (prefixLength < 5)
+        {
+            deltaOfDelta = readDeltaOfDelta(prefixLength, VALUE_BUCKETS);
+        }
+        else if ((window << 5) >= 0)
+        {
+            consume(VALUE_PREFIX_NBITS);
+            deltaOfDelta = readLong(64);
+        }
+        else
+        {
+            consume(VALUE_PREFIX_NBITS);
+            integerValues = false;
+            readFloatValue();
+            return;
+        }
+
+        valueDelta += deltaOfDelta;
+        longValue += valueDelta;
+        valueBits = Double.doubleToRawLongBits((double) longValue);
+    }
+
+    private void readFloatValue()
+    {
+        if (null != references)
+        {
+            readChimpValue();
+        }
+        else
+        {
+            readXorValue();
+        }
+    }
+
+    private void readChimpValue()
+    {
+        if (windowBits < 2 + CHIMP_INDEX_NBITS + CHIMP_LEADING_NBITS + CHIMP_CENTER_NBITS)
+        {
+            refill();
+        }
+
+        switch ((int) (window >>> 62))
+        {
+            case 0b00:
+            {
+                final int reference = (int) (window << 2 >>> (64 - CHIMP_INDEX_NBITS));
+                consume(2 + CHIMP_INDEX_NBITS);
+
+                valueBits = references[reference];
+                storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+                break;
+            }
+
+            case 0b01:
+            {
+                final int reference = (int) (window << 2 >>> (64 - CHIMP_INDEX_NBITS));
+                final int leadingZeros = CHIMP_LEADING_ZEROS[(int) (window << 5 >>> (64 - CHIMP_LEADING_NBITS))];
+                final int centerLength = (int) (window << 8 >>> (64 - CHIMP_CENTER_NBITS));
+                consume(2 + CHIMP_INDEX_NBITS + CHIMP_LEADING_NBITS + CHIMP_CENTER_NBITS);
+
+                valueBits = references[reference] ^ (readLong(centerLength) << (64 - (leadingZeros + centerLength)));
+                storedLeadingZeros = CHIMP_NO_LEADING_ZEROS;
+                break;
+            }
+
+            case 0b10:
+            {
+                consume(2);
+
+                valueBits = references[previousReference] ^ readLong(64 - storedLeadingZeros);
+                break;
+            }
+
+            default:
+            {
+                final int leadingZeros = CHIMP_LEADING_ZEROS[(int) (window << 2 >>> (64 - CHIMP_LEADING_NBITS))];
+                consume(2 + CHIMP_LEADING_NBITS);
+
+                valueBits = references[previousReference] ^ readLong(64 - leadingZeros);
+                storedLeadingZeros = leadingZeros;
+                break;
+            }
+        }
+    }
+
+    private void readXorValue()
+    {
+        if (windowBits < 2 + 5 + 6)
+        {
+            refill();
+        }
+
+        if (window >= 0)
+        {
+            consume(1);
+        }
+        else if ((window << 1) >= 0)
+        {
+            consume(2);
+
+            final int leadingZeros = Long.numberOfLeadingZeros(lastXorValue);
+            final int trailingZeros = Long.numberOfTrailingZeros(lastXorValue);
+            final long xorValue = readLong(64 - (leadingZeros + trailingZeros)) << trailingZeros;
+
+            valueBits = xorValue ^ canonical(valueBits);
+            lastXorValue = xorValue;
+        }
+        else
+        {
+            final int leadingZeros = (int) (window << 2 >>> (64 - 5));
+            final int length = (int) (window << 7 >>> (64 - 6)) + 1;
+            consume(2 + 5 + 6);
+
+            final long xorValue = readLong(length) << (64 - (leadingZeros + length));
+
+            valueBits = xorValue ^ canonical(valueBits);
+            lastXorValue = xorValue;
+        }
+    }
+
+    private static long canonical(long valueBits)
+    {
+        // The encoder works on Double.doubleToLongBits, so NaNs have to be collapsed the same way.
+        return Double.doubleToLongBits(Double.longBitsToDouble(valueBits));
+    }
+
+    private long readLong(int numBits)
+    {
+        if (numBits <= REFILL_THRESHOLD)
+        {
+            if (windowBits < numBits)
+            {
+                refill();
+            }
+
+            return take(numBits);
+        }
+
+        final long upper = readLong(numBits - 32);
+        return (upper << 32) | readLong(32);
+    }
+
+    private long take(int numBits)
+    {
+        final long bits = window >>> (64 - numBits);
+        consume(numBits);
+        return bits;
+    }
+
+    private void consume(int numBits)
+    {
+        window <<= numBits;
+        windowBits -= numBits;
+    }
+
+    private void refill()
+    {
+        if (nextByte + 8 <= capacity)
+        {
+            final long bits = buffer.getLong(nextByte, BYTE_ORDER);
+            final int bytesToLoad = (64 - windowBits) >>> 3;
+            final int newWindowBits = windowBits + (bytesToLoad << 3);
+            final long mask = newWindowBits == 64 ? -1L : ~(-1L >>> newWindowBits);
+
+            window = (window | (bits >>> windowBits)) & mask;
+            windowBits = newWindowBits;
+            nextByte += bytesToLoad;
+        }
+        else
+        {
+            while (windowBits < REFILL_THRESHOLD)
+            {
+                final long b = nextByte < capacity ? buffer.getByte(nextByte) & 0xFF : 0;
+                window |= b << (56 - windowBits);
+                windowBits += 8;
+                nextByte++;
+            }
+        }
+    }
+}
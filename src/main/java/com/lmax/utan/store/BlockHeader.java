@@ -13,7 +13,21 @@ public class BlockHeader
 {
     @SuppressWarnings("NumericOverflow")
     private static final long FROZEN_BIT = 1L << 63;
-    private static final long BIT_LENGTH_MASK = 0x7FFFFFFFL;
+    private static final long VERSION_2_BIT = 1L << 62;
+    private static final int SIZE_CODE_SHIFT = 58;
+    private static final long SIZE_CODE_MASK = 0xFL << SIZE_CODE_SHIFT;
+    private static final int CODEC_SHIFT = 54;
+    private static final long CODEC_MASK = 0xFL << CODEC_SHIFT;
+    private static final int PRECISION_SHIFT = 52;
+    private static final long PRECISION_MASK = 0x3L << PRECISION_SHIFT;
+    private static final long FLAGS_MASK = VERSION_2_BIT | SIZE_CODE_MASK | CODEC_MASK | PRECISION_MASK;
+    private static final long BIT_LENGTH_MASK = 0xFFFFFL;
+
+    /**
+     * Stands in for a last timestamp delta that does not fit the header's 32 bits, which at nanosecond precision is
+     * any span over about 2.1 seconds. The last timestamp of such a block is kept in full at the end of its summary.
+     */
+    static final int LONG_SPAN = Integer.MIN_VALUE;
 
     private final AtomicBuffer buffer;
 
@@ -43,7 +57,7 @@ public class BlockHeader
         return lengthInBits(readHeader());
     }
 
-    private static int lengthInBits(long headerValue)
+    static int lengthInBits(long headerValue)
     {
         return (int) (BIT_LENGTH_MASK & (headerValue >>> 32L));
     }
@@ -53,17 +67,97 @@ public class BlockHeader
         return isFrozen(readHeader());
     }
 
-    private static boolean isFrozen(long headerValue)
+    static boolean isFrozen(long headerValue)
     {
         return Long.highestOneBit(headerValue) == FROZEN_BIT;
     }
 
+    public int storedByteLength()
+    {
+        return storedByteLength(readHeader());
+    }
+
+    static int storedByteLength(long headerValue)
+    {
+        final BlockSize blockSize = blockSize(headerValue);
+
+        // Blocks written before the version bit are stored in full, frozen or not.
+        if (!isVersion2(headerValue))
+        {
+            return blockSize.byteLength();
+        }
+
+        return blockSize.storedByteLength(isFrozen(headerValue), lengthInBits(headerValue));
+    }
+
+    public boolean isVersion2()
+    {
+        return isVersion2(readHeader());
+    }
+
+    static boolean isVersion2(long headerValue)
+    {
+        return (headerValue & VERSION_2_BIT) != 0;
+    }
+
+    public BlockSize blockSize()
+    {
+        return blockSize(readHeader());
+    }
+
+    static BlockSize blockSize(long headerValue)
+    {
+        return BlockSize.fromCode((int) ((headerValue & SIZE_CODE_MASK) >>> SIZE_CODE_SHIFT));
+    }
+
+    public int codec()
+    {
+        return codec(readHeader());
+    }
+
+    static int codec(long headerValue)
+    {
+        return (int) ((headerValue & CODEC_MASK) >>> CODEC_SHIFT);
+    }
+
+    public TimestampPrecision timestampPrecision()
+    {
+        return timestampPrecision(readHeader());
+    }
+
+    static TimestampPrecision timestampPrecision(long headerValue)
+    {
+        return TimestampPrecision.fromCode((int) ((headerValue & PRECISION_MASK) >>> PRECISION_SHIFT));
+    }
+
+    static long withCodec(long flags, int codec)
+    {
+        return (flags & ~CODEC_MASK) | ((long) codec << CODEC_SHIFT);
+    }
+
+    static long flags(long headerValue)
+    {
+        return headerValue & FLAGS_MASK;
+    }
+
+    static long flags(BlockSize blockSize)
+    {
+        return flags(blockSize, TimestampPrecision.DEFAULT);
+    }
+
+    static long flags(BlockSize blockSize, TimestampPrecision timestampPrecision)
+    {
+        return VERSION_2_BIT |
+            ((long) blockSize.code() << SIZE_CODE_SHIFT) |
+            ((long) timestampPrecision.code() << PRECISION_SHIFT);
+    }
+
     public int lastTimestampDelta()
     {
         return lastTimestampDelta(readHeader());
     }
 
-    private static int lastTimestampDelta(long headerValue)
+    static int lastTimestampDelta(long headerValue)
     {
         return (int) (headerValue & 0xFFFFFFFFL);
     }
@@ -73,18 +167,38 @@ public class BlockHeader
         return buffer.getLong(FIRST_TIMESTAMP_OFFSET, BYTE_ORDER);
     }
 
+    public boolean isLongSpan()
+    {
+        return isLongSpan(readHeader());
+    }
+
+    static boolean isLongSpan(long headerValue)
+    {
+        return LONG_SPAN == lastTimestampDelta(headerValue);
+    }
+
+    /**
+     * The last timestamp, or Long.MAX_VALUE for a block spanning too long for the header to hold it, see
+     * {@link Block#lastTimestamp()} for the exact value.
+     */
     public long lastTimestamp()
     {
-        return firstTimestamp() + lastTimestampDelta();
+        final int lastTimestampDelta = lastTimestampDelta();
+        return LONG_SPAN == lastTimestampDelta ? Long.MAX_VALUE : firstTimestamp() + lastTimestampDelta;
     }
 
-    void writeHeader(boolean isFrozen, int length, int lastTimestampDelta)
+    void writeHeader(long flags, boolean isFrozen, int length, long lastTimestampDelta)
     {
         long frozenBit = isFrozen ? FROZEN_BIT : 0;
-        long header = frozenBit | widen(length) << 32L | widen(lastTimestampDelta);
+        long header = frozenBit | flags | widen(length) << 32L | widen(headerDelta(lastTimestampDelta));
         writeHeader(header);
     }
 
+    static int headerDelta(long lastTimestampDelta)
+    {
+        return lastTimestampDelta == (int) lastTimestampDelta ? (int) lastTimestampDelta : LONG_SPAN;
+    }
+
     void writeHeader(long headerValue)
     {
         buffer.putLongOrdered(0, headerValue);
@@ -99,9 +213,10 @@ public class BlockHeader
     public String toString()
     {
         return "Block{" +
-            "bitLength=" + lengthInBits() +
-            ", firstTimestamp=" + getUtc(firstTimestamp()) + " (" + firstTimestamp() + ")" +
-            ", lastTimestampDelta=" + getUtc(lastTimestamp()) + " (" + lastTimestamp() + ")" +
+            "blockSize=" + blockSize() +
+            ", bitLength=" + lengthInBits() +
+            ", firstTimestamp=" + getUtc(firstTimestamp(), timestampPrecision()) + " (" + firstTimestamp() + ")" +
+            ", lastTimestampDelta=" + getUtc(lastTimestamp(), timestampPrecision()) + " (" + lastTimestamp() + ")" +
             ", isFrozen=" + isFrozen() +
             '}';
     }
@@ -0,0 +1,144 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.UnsafeBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct blocks carved out of large slabs of native memory, so that a store does not allocate a direct buffer, with
+ * its cleaner, for every block. Blocks are kept per size and timestamp precision. A block that is released goes on a
+ * lock-free free list and is reset when it is next acquired.
+ *
+ * Blocks are acquired by a single thread, the one appending to the store, and may be released from any thread once
+ * nothing else refers to them. Slabs are never returned to the operating system.
+ */
+public final class BlockPool
+{
+    public static final int DEFAULT_SLAB_BYTE_LENGTH = 1024 * 1024;
+
+    private static final TimestampPrecision[] PRECISIONS = TimestampPrecision.values();
+    private static final BlockSize[] SIZES = BlockSize.values();
+
+    private final int slabByteLength;
+    private final Slabs[] slabsBySizeAndPrecision = new Slabs[SIZES.length * PRECISIONS.length];
+    private final AtomicLong blocksReleased = new AtomicLong();
+    private volatile long blocksCarved = 0;
+    private volatile long blocksAcquired = 0;
+    private volatile long slabBytes = 0;
+
+    public BlockPool()
+    {
+        this(DEFAULT_SLAB_BYTE_LENGTH);
+    }
+
+    /**
+     * @param slabByteLength the length of each slab, raised to the block length for larger blocks.
+     */
+    public BlockPool(int slabByteLength)
+    {
+        if (slabByteLength < BlockSize.MIN_BYTE_LENGTH)
+        {
+            throw new IllegalArgumentException("Slab length must be at least " + BlockSize.MIN_BYTE_LENGTH + ": " + slabByteLength);
+        }
+
+        this.slabByteLength = slabByteLength;
+    }
+
+    /**
+     * An empty block, from the free list if one has been released. Called from a single thread.
+     */
+    public Block acquire(BlockSize blockSize, TimestampPrecision timestampPrecision)
+    {
+        final int index = blockSize.ordinal() * PRECISIONS.length + timestampPrecision.ordinal();
+        Slabs slabs = slabsBySizeAndPrecision[index];
+        if (null == slabs)
+        {
+            slabs = new Slabs(blockSize, timestampPrecision);
+            slabsBySizeAndPrecision[index] = slabs;
+        }
+
+        blocksAcquired++;
+
+        final Block block = slabs.freeBlocks.poll();
+        if (null != block)
+        {
+            block.reset();
+            return block;
+        }
+
+        return slabs.carve();
+    }
+
+    /**
+     * Returns a block acquired from this pool, which must no longer be used by the caller.
+     */
+    public void release(Block block)
+    {
+        final int index = block.blockSize().ordinal() * PRECISIONS.length + block.timestampPrecision().ordinal();
+        slabsBySizeAndPrecision[index].freeBlocks.offer(block);
+        blocksReleased.incrementAndGet();
+    }
+
+    /**
+     * Blocks carved from slabs so far, both in use and free.
+     */
+    public long capacity()
+    {
+        return blocksCarved;
+    }
+
+    /**
+     * Blocks acquired and not yet released.
+     */
+    public long blocksInUse()
+    {
+        return blocksAcquired - blocksReleased.get();
+    }
+
+    /**
+     * Native memory allocated for slabs.
+     */
+    public long slabBytes()
+    {
+        return slabBytes;
+    }
+
+    private final class Slabs
+    {
+        private final Queue<Block> freeBlocks = new ConcurrentLinkedQueue<>();
+        private final BlockSize blockSize;
+        private final TimestampPrecision timestampPrecision;
+        private ByteBuffer slab = null;
+        private int position = 0;
+
+        private Slabs(BlockSize blockSize, TimestampPrecision timestampPrecision)
+        {
+            this.blockSize = blockSize;
+            this.timestampPrecision = timestampPrecision;
+        }
+
+        private Block carve()
+        {
+            final int byteLength = blockSize.byteLength();
+            if (null == slab || position + byteLength > slab.capacity())
+            {
+                final int length = Math.max(slabByteLength - slabByteLength % byteLength, byteLength);
+                slab = ByteBuffer.allocateDirect(length);
+                position = 0;
+                slabBytes += length;
+            }
+
+            // Slice so that the underlying buffer of the block covers only the block.
+            slab.limit(position + byteLength).position(position);
+            final ByteBuffer blockBuffer = slab.slice();
+            slab.clear();
+            position += byteLength;
+            blocksCarved++;
+
+            return new Block(new UnsafeBuffer(blockBuffer), FloatCodec.XOR, timestampPrecision);
+        }
+    }
+}
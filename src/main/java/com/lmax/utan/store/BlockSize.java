@@ -0,0 +1,144 @@
+package com.lmax.utan.store;
+
+/**
+ * Size classes for {@link Block}s. The code is stored in the block header, with 0 reserved for blocks written
+ * before size classes existed, which are always 512 bytes.
+ *
+ * Blocks of 4 KB and above reserve a checkpoint table in front of the summary so that a decode starting from a
+ * timestamp can skip the start of the block.
+ */
+public enum BlockSize
+{
+    BYTES_128(128),
+    BYTES_256(256),
+    BYTES_512(512),
+    KB_1(1024),
+    KB_2(2048),
+    KB_4(4096),
+    KB_8(8192),
+    KB_16(16384),
+    KB_32(32768),
+    KB_64(65536);
+
+    public static final BlockSize DEFAULT = BYTES_512;
+    public static final int MIN_BYTE_LENGTH = 128;
+
+    static final int SUMMARY_LENGTH = 48;
+    static final int CHECKPOINT_LENGTH = 48;
+    private static final int MAX_CHECKPOINTS = 15;
+    private static final int CHECKPOINT_MIN_BYTE_LENGTH = 4096;
+    private static final BlockSize[] VALUES = values();
+
+    private final int byteLength;
+    private final int checkpointCount;
+
+    BlockSize(int byteLength)
+    {
+        this.byteLength = byteLength;
+        this.checkpointCount = byteLength < CHECKPOINT_MIN_BYTE_LENGTH ? 0 : Math.min(MAX_CHECKPOINTS, byteLength / 1024 - 1);
+    }
+
+    public int byteLength()
+    {
+        return byteLength;
+    }
+
+    public int maxPoints()
+    {
+        return 1 + (byteLength * 8 - Block.COMPRESSED_DATA_START_BITS) / 2;
+    }
+
+    int code()
+    {
+        return ordinal() + 1;
+    }
+
+    int summaryOffset()
+    {
+        return byteLength - SUMMARY_LENGTH;
+    }
+
+    int checkpointCount()
+    {
+        return checkpointCount;
+    }
+
+    int checkpointOffset()
+    {
+        return summaryOffset() - checkpointCount * CHECKPOINT_LENGTH;
+    }
+
+    /**
+     * The checkpoint table and summary, which are stored after the encoded data of a frozen block.
+     */
+    int trailerLength()
+    {
+        return byteLength - checkpointOffset();
+    }
+
+    /**
+     * The number of bytes a block takes in a data file. A frozen block is trimmed to its encoded data followed by
+     * the trailer, while a block still being appended to is stored in full so that it can be overwritten in place.
+     */
+    int storedByteLength(boolean frozen, int lengthInBits)
+    {
+        if (!frozen)
+        {
+            return byteLength;
+        }
+
+        final int dataLength = (Math.max(lengthInBits, Block.COMPRESSED_DATA_START_BITS) + 7) / 8;
+
+        return dataLength + trailerLength();
+    }
+
+    int dataBitLimit()
+    {
+        return checkpointOffset() * 8;
+    }
+
+    int checkpointIntervalBits()
+    {
+        return dataBitLimit() / (checkpointCount + 1);
+    }
+
+    /**
+     * The first checkpoint boundary after the checkpoint interval containing bitIndex, or Integer.MAX_VALUE if
+     * there are no more checkpoints.
+     */
+    int nextCheckpointBits(int bitIndex)
+    {
+        final int intervalBits = checkpointIntervalBits();
+        final int checkpoint = bitIndex / intervalBits + 1;
+
+        return checkpoint <= checkpointCount ? checkpoint * intervalBits : Integer.MAX_VALUE;
+    }
+
+    static BlockSize fromCode(int code)
+    {
+        if (0 == code)
+        {
+            return BYTES_512;
+        }
+
+        if (code > VALUES.length)
+        {
+            throw new IllegalStateException("Data Corrupt, invalid block size code: " + code);
+        }
+
+        return VALUES[code - 1];
+    }
+
+    public static BlockSize forByteLength(int byteLength)
+    {
+        for (BlockSize blockSize : VALUES)
+        {
+            if (blockSize.byteLength == byteLength)
+            {
+                return blockSize;
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported block length: " + byteLength);
+    }
+}
@@ -1,85 +1,1243 @@
 package com.lmax.utan.store;
 
+import org.agrona.DirectBuffer;
+import org.agrona.ErrorHandler;
+import org.agrona.concurrent.IdleStrategy;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Buffers the points of each series in memory and persists them on a background thread. Points are held in a per
+ * series {@link ReorderBuffer} for the lateness window so that points arriving slightly out of order are encoded in
+ * timestamp order. Points later than the window are kept in a separate segment of the series, which readers merge.
+ *
+ * Series are partitioned by the hash of their key across one or more shards, each with its own series, blocks and
+ * background writer. A shard has a single writer: appending to a shard and flushing it must always be done from the
+ * same thread, so several producers can ingest without contention by each owning the keys of a set of shards, see
+ * {@link #shardOf(CharSequence)}. The counters, {@link #flush()} and {@link #stopAndWait()} cover every shard and must
+ * only be called once the producers have stopped, or when there is a single producer.
+ *
+ * Each shard maps the UTF-8 bytes of its keys to series ids in a {@link SeriesIndex}. Producers that resolve a key to
+ * a {@link SeriesHandle} once can then append to it without hashing the key or allocating.
+ *
+ * The blocks held in memory until the writers have stored them frozen can be given a budget, so that a slow disk does
+ * not exhaust direct memory. Appends over the budget wait, fail or drop the point, see {@link BackpressurePolicy}.
+ * Each series holds its active block until it fills, so the budget must be well above a block for every series.
+ *
+ * Points not yet in a persisted block are lost on a crash unless the store logs them ahead, see
+ * {@link WriteAheadLogPolicy}. Each shard then logs its appends to a {@link WriteAheadLog} that its writer group
+ * commits, and a store started on the same directory replays the log into its blocks. A segment of the log is
+ * deleted once the blocks holding its points are persisted, and the whole log once the store stops cleanly.
+ */
+public class ConcurrentStore
+{
+    private static final long WAIT_FOR_WRITERS_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long RETRY_FAILED_WRITES_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File[] dirs;
+    private final Shard[] shards;
+    private final Function<String, BlockSize> blockSizeForKey;
+    private final Function<String, TimestampPrecision> timestampPrecisionForKey;
+    private final long latenessWindowMillis;
+    private final long maxUnpersistedBytes;
+    private final BackpressurePolicy backpressurePolicy;
+    private final WriteAheadLogPolicy writeAheadLogPolicy;
+    private final ErrorHandler errorHandler;
+    private final AtomicLong unpersistedBytes = new AtomicLong();
+    private final AtomicLong droppedPoints = new AtomicLong();
+    private final AtomicLong blockedAppends = new AtomicLong();
+    private volatile boolean running = true;
+
+    public ConcurrentStore(File dir, ThreadFactory threadFactory) throws IOException
+    {
+        this(builder(dir).threadFactory(threadFactory));
+    }
+
+    /**
+     * Configures a store over one data directory, or several with one per disk, see {@link Builder#build()}.
+     */
+    public static Builder builder(File... dirs)
+    {
+        return new Builder(dirs);
+    }
+
+    private ConcurrentStore(Builder builder) throws IOException
+    {
+        if (builder.latenessWindowMillis < 0)
+        {
+            throw new IllegalArgumentException("Lateness window must not be negative: " + builder.latenessWindowMillis);
+        }
+
+        if (builder.shardCount < 1)
+        {
+            throw new IllegalArgumentException("Shard count must be positive: " + builder.shardCount);
+        }
+
+        if (builder.maxUnpersistedBytes <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Unpersisted bytes budget must be positive: " + builder.maxUnpersistedBytes);
+        }
+
+        if (0 == builder.dirs.length || 0 != builder.shardCount % builder.dirs.length)
+        {
+            throw new IllegalArgumentException(
+                "Shard count must be a multiple of the directory count: " + builder.shardCount + ", " +
+                builder.dirs.length);
+        }
+
+        if (null == builder.threadFactory)
+        {
+            throw new IllegalArgumentException("A thread factory is required for the background writers");
+        }
+
+        this.dirs = builder.dirs.clone();
+        this.blockSizeForKey = builder.blockSizeForKey;
+        this.timestampPrecisionForKey = builder.timestampPrecisionForKey;
+        this.latenessWindowMillis = builder.latenessWindowMillis;
+        this.maxUnpersistedBytes = builder.maxUnpersistedBytes;
+        this.backpressurePolicy = builder.backpressurePolicy;
+        this.writeAheadLogPolicy = builder.writeAheadLogPolicy;
+        this.errorHandler = builder.errorHandler;
+        this.shards = new Shard[builder.shardCount];
+
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = new Shard(
+                builder.threadFactory, i, builder.idleStrategy.get(), builder.writePolicy, builder.durabilityPolicy);
+        }
+
+        if (writeAheadLogPolicy.isEnabled())
+        {
+            replayWriteAheadLog();
+        }
+    }
+
+    public void start()
+    {
+        for (final Shard shard : shards)
+        {
+            shard.thread.start();
+        }
+    }
+
+    public void stopAndWait() throws InterruptedException
+    {
+        // The points held back are released first, so that the writers store them before they stop.
+        for (final Shard shard : shards)
+        {
+            shard.drain();
+        }
+
+        running = false;
+
+        for (final Shard shard : shards)
+        {
+            shard.backgroundWriter.running = false;
+        }
+
+        for (final Shard shard : shards)
+        {
+            shard.thread.join();
+
+            // A flush racing with the stop may have queued its barrier after the writer finished.
+            shard.backgroundWriter.failBarriers();
+        }
+    }
+
+    public int shardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * The shard that holds a series, producers appending from several threads should each own a distinct set.
+     */
+    public int shardOf(CharSequence key)
+    {
+        return shardFor(SeriesIndex.hash(key));
+    }
+
+    public int shardOf(DirectBuffer buffer, int offset, int length)
+    {
+        return shardFor(SeriesIndex.hash(buffer, offset, length));
+    }
+
+    /**
+     * The handle of a series, adding the series if it is new. Called from the thread appending to its shard.
+     */
+    public SeriesHandle handle(CharSequence key)
+    {
+        final int hash = SeriesIndex.hash(key);
+        final Shard shard = shards[shardFor(hash)];
+
+        return shard.handleOf(shard.index.idOf(hash, key));
+    }
+
+    /**
+     * The handle of a series from the UTF-8 bytes of its key, adding the series if it is new. Called from the thread
+     * appending to its shard.
+     */
+    public SeriesHandle handle(DirectBuffer buffer, int offset, int length)
+    {
+        final int hash = SeriesIndex.hash(buffer, offset, length);
+        final Shard shard = shards[shardFor(hash)];
+
+        return shard.handleOf(shard.index.idOf(hash, buffer, offset, length));
+    }
+
+    /**
+     * Appends a point, returning false if it was dropped because the store is over its memory budget.
+     *
+     * @throws StoreFullException if the store is over its budget and fails fast.
+     */
+    public boolean append(String key, long timestamp, double value)
+    {
+        return append(handle(key), timestamp, value);
+    }
+
+    public boolean append(SeriesHandle handle, long timestamp, double value)
+    {
+        if (unpersistedBytes.get() > maxUnpersistedBytes && !applyBackpressure(1))
+        {
+            return false;
+        }
+
+        final Shard shard = shards[handle.shard];
+        shard.log(handle, timestamp, value);
+        shard.blockQueues[handle.id].reorderBuffer.append(timestamp, value);
+        shard.retireClosedSegments();
+        return true;
+    }
+
+    /**
+     * Appends the first count points of a batch for one series, returning false if they were all dropped because the
+     * store is over its memory budget. Points in timestamp order are encoded as a run, starting new blocks as they fill,
+     * so the batch pays for the lookup, the budget check and publishing to the background writer once.
+     *
+     * @throws StoreFullException if the store is over its budget and fails fast.
+     */
+    public boolean append(String key, long[] timestamps, double[] values, int count)
+    {
+        return append(handle(key), timestamps, values, count);
+    }
+
+    public boolean append(SeriesHandle handle, long[] timestamps, double[] values, int count)
+    {
+        if (unpersistedBytes.get() > maxUnpersistedBytes && !applyBackpressure(count))
+        {
+            return false;
+        }
+
+        final Shard shard = shards[handle.shard];
+        for (int i = 0; i < count; i++)
+        {
+            shard.log(handle, timestamps[i], values[i]);
+        }
+        shard.blockQueues[handle.id].reorderBuffer.appendAll(timestamps, values, 0, count);
+        shard.retireClosedSegments();
+        return true;
+    }
+
+    private boolean applyBackpressure(int points)
+    {
+        switch (backpressurePolicy)
+        {
+            case BLOCK:
+                blockedAppends.incrementAndGet();
+                while (unpersistedBytes.get() > maxUnpersistedBytes)
+                {
+                    if (!running)
+                    {
+                        throw new IllegalStateException("Store stopped while waiting for blocks to be persisted");
+                    }
+
+                    LockSupport.parkNanos(WAIT_FOR_WRITERS_NANOS);
+                }
+                return true;
+
+            case FAIL_FAST:
+                throw new StoreFullException(
+                    "Unpersisted blocks of " + unpersistedBytes.get() + " bytes exceed the budget of " + maxUnpersistedBytes);
+
+            case DROP:
+                droppedPoints.addAndGet(points);
+                return false;
+
+            default:
+                throw new IllegalStateException("Unknown backpressure policy: " + backpressurePolicy);
+        }
+    }
+
+    private void replayWriteAheadLog() throws IOException
+    {
+        final PersistentStoreReader reader =
+            new PersistentStoreReader(dirs, key -> timestampPrecisionForKey.apply(key.toString()));
+        final Map<String, Long> lastPersistedTimestamps = new HashMap<>();
+        final Map<String, LoggedPoints> loggedLatePoints = new LinkedHashMap<>();
+
+        final WriteAheadLog.PointHandler replay = (key, timestamp, value) ->
+        {
+            Long lastPersistedTimestamp = lastPersistedTimestamps.get(key);
+            if (null == lastPersistedTimestamp)
+            {
+                lastPersistedTimestamp = reloadLastBlock(reader, key);
+                lastPersistedTimestamps.put(key, lastPersistedTimestamp);
+            }
+
+            if (timestamp > lastPersistedTimestamp)
+            {
+                final SeriesHandle handle = handle(key);
+                shards[handle.shard].blockQueues[handle.id].reorderBuffer.append(timestamp, value);
+            }
+            else
+            {
+                // Either written before the crash or a late point lost with the late block, told apart below.
+                loggedLatePoints.computeIfAbsent(key, k -> new LoggedPoints()).add(timestamp, value);
+            }
+        };
+
+        final List<File> replayed = new ArrayList<>();
+        for (final File dir : dirs)
+        {
+            replayed.addAll(WriteAheadLog.replay(walDir(dir), replay));
+        }
+
+        for (final Map.Entry<String, LoggedPoints> logged : loggedLatePoints.entrySet())
+        {
+            replayLatePoints(reader, logged.getKey(), logged.getValue());
+        }
+
+        if (!replayed.isEmpty())
+        {
+            flush().thenRun(() -> replayed.forEach(this::deleteSegment));
+        }
+    }
+
+    /**
+     * Appends the logged points of a series no later than its last persisted point to its late segment, unless they
+     * were persisted before the crash. Points are matched on their timestamp and value, each persisted point accounting
+     * for one logged point, so a point appended twice is only skipped as often as it was stored.
+     */
+    private void replayLatePoints(PersistentStoreReader reader, String key, LoggedPoints logged) throws IOException
+    {
+        final Map<Long, List<Long>> persisted = new HashMap<>();
+        reader.forEachPoint(
+            key,
+            logged.minTimestamp,
+            logged.maxTimestamp + 1,
+            (timestamp, value) ->
+            {
+                persisted.computeIfAbsent(timestamp, t -> new ArrayList<>()).add(Double.doubleToRawLongBits(value));
+                return true;
+            });
+
+        final SeriesHandle handle = handle(key);
+        final Shard shard = shards[handle.shard];
+        final BlockQueue blockQueue = shard.blockQueues[handle.id];
+        for (int i = 0; i < logged.size; i++)
+        {
+            final long timestamp = logged.timestamps[i];
+            final double value = logged.values[i];
+            final List<Long> values = persisted.get(timestamp);
+            if (null == values || !values.remove((Long)Double.doubleToRawLongBits(value)))
+            {
+                shard.lateQueueOf(blockQueue).accept(timestamp, value);
+            }
+        }
+    }
+
+    /**
+     * Appends the points of the last block persisted for a series again if it is still active, so that the block the
+     * replayed points go into replaces it. Returns the last timestamp persisted.
+     */
+    private long reloadLastBlock(PersistentStoreReader reader, String key) throws IOException
+    {
+        if (!reader.exists(key))
+        {
+            return Long.MIN_VALUE;
+        }
+
+        final long lastTimestamp = reader.lastTimestamp(key);
+        final Block block = reader.findBlockContainingTimestamp(key, lastTimestamp);
+        if (null != block && !block.isFrozen())
+        {
+            final SeriesHandle handle = handle(key);
+            final ReorderBuffer reorderBuffer = shards[handle.shard].blockQueues[handle.id].reorderBuffer;
+            block.foreach((timestamp, value) ->
+            {
+                reorderBuffer.append(timestamp, value);
+                return true;
+            });
+        }
+
+        return lastTimestamp;
+    }
+
+    private void deleteSegment(File segment)
+    {
+        try
+        {
+            WriteAheadLog.delete(segment);
+        }
+        catch (IOException e)
+        {
+            errorHandler.onError(e);
+        }
+    }
+
+    private static File walDir(File dir)
+    {
+        return new File(dir, "wal");
+    }
+
+    private int shardFor(int hash)
+    {
+        return SeriesIndex.partition(hash, shards.length);
+    }
+
+    /**
+     * Releases the points held back by the reorder buffers, so that they become visible to the background writers,
+     * and returns a future that completes once the writers have stored every point appended before the call and forced
+     * the data files to disk. Blocks held back by the {@link ActiveBlockWritePolicy} are written as well. The future completes exceptionally if a
+     * write fails or the store stops first.
+     */
+    public CompletableFuture<Void> flush()
+    {
+        final CompletableFuture<?>[] barriers = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++)
+        {
+            barriers[i] = shards[i].flush();
+        }
+
+        return CompletableFuture.allOf(barriers);
+    }
+
+    /**
+     * Flushes one shard, from the thread appending to it.
+     */
+    public CompletableFuture<Void> flush(int shard)
+    {
+        return shards[shard].flush();
+    }
+
+    /**
+     * Flushes the shard holding a series after releasing the points held back for it, from the thread appending to
+     * the shard. The future completes once everything appended to that shard before the call is stored.
+     */
+    public CompletableFuture<Void> flush(CharSequence key)
+    {
+        final SeriesHandle handle = handle(key);
+        final Shard shard = shards[handle.shard];
+
+        shard.blockQueues[handle.id].reorderBuffer.drain();
+
+        return shard.barrier();
+    }
+
+    /**
+     * Points that arrived out of order within the lateness window, summed over all series.
+     */
+    public long reorderedPoints()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            for (int i = 0; i < shard.seriesCount; i++)
+            {
+                count += shard.blockQueues[i].reorderBuffer.reorderedCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Points that arrived after the lateness window and were stored in the late segment, summed over all series.
+     */
+    public long latePoints()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            for (int i = 0; i < shard.seriesCount; i++)
+            {
+                count += shard.blockQueues[i].reorderBuffer.lateCount();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Passes of the background writers that wrote at least one block, summed over all shards. Together with
+     * {@link #writerIdleCycles()} this gives the duty cycle of the writers, for choosing an idle strategy.
+     */
+    public long writerWorkCycles()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.workCycles;
+        }
+
+        return count;
+    }
+
+    /**
+     * Passes of the background writers that found nothing to write and idled, summed over all shards.
+     */
+    public long writerIdleCycles()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.idleCycles;
+        }
+
+        return count;
+    }
+
+    /**
+     * Blocks written by the background writers, summed over all shards.
+     */
+    public long blocksWritten()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.blocksWritten;
+        }
+
+        return count;
+    }
+
+    /**
+     * Bytes written to data files by the background writers, including every rewrite of an active block.
+     */
+    public long bytesWritten()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.bytesWritten;
+        }
+
+        return count;
+    }
+
+    /**
+     * The growth of the encoded data of the blocks written, in bytes, which is what {@link #bytesWritten()} would be
+     * if each block were written once.
+     */
+    public long payloadBytesWritten()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.payloadBitsWritten;
+        }
+
+        return count / 8;
+    }
+
+    /**
+     * Bytes written per byte of payload, see {@link ActiveBlockWritePolicy} for reducing it.
+     */
+    public double writeAmplification()
+    {
+        final long payloadBytesWritten = payloadBytesWritten();
+        return 0 == payloadBytesWritten ? 0 : (double) bytesWritten() / payloadBytesWritten;
+    }
+
+    /**
+     * Writes of a series that failed, summed over all shards. Each failed series is retried until it is written.
+     */
+    public long writeFailures()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.writeFailures;
+        }
+
+        return count;
+    }
+
+    /**
+     * Bytes of the blocks held in memory until they are stored frozen, which the budget of the store applies to.
+     */
+    public long unpersistedBytes()
+    {
+        return unpersistedBytes.get();
+    }
+
+    /**
+     * Points dropped because the store was over its budget.
+     */
+    public long droppedPoints()
+    {
+        return droppedPoints.get();
+    }
+
+    /**
+     * Appends that waited for the background writers because the store was over its budget.
+     */
+    public long blockedAppends()
+    {
+        return blockedAppends.get();
+    }
+
+    /**
+     * Group syncs of the data files, by flushes and by the {@link DurabilityPolicy}, summed over all shards.
+     */
+    public long dataSyncs()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.backgroundWriter.writer.syncs();
+        }
+
+        return count;
+    }
+
+    /**
+     * Group commits of the write ahead logs, summed over all shards.
+     */
+    public long logSyncs()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += null == shard.wal ? 0 : shard.wal.syncs();
+        }
+
+        return count;
+    }
+
+    /**
+     * Bytes appended to the write ahead logs, summed over all shards.
+     */
+    public long loggedBytes()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += null == shard.wal ? 0 : shard.wal.bytesLogged();
+        }
+
+        return count;
+    }
+
+    /**
+     * Blocks carved from the slabs of the block pools, summed over all shards.
+     */
+    public long pooledBlocks()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.blockPool.capacity();
+        }
+
+        return count;
+    }
+
+    /**
+     * Blocks held by series, waiting to be stored frozen, summed over all shards. The rest of the pooled blocks are
+     * free for reuse.
+     */
+    public long pooledBlocksInUse()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.blockPool.blocksInUse();
+        }
+
+        return count;
+    }
+
+    /**
+     * Native memory allocated for blocks, summed over all shards.
+     */
+    public long pooledBlockBytes()
+    {
+        long count = 0;
+        for (final Shard shard : shards)
+        {
+            count += shard.blockPool.slabBytes();
+        }
+
+        return count;
+    }
+
+    /**
+     * The options of a {@link ConcurrentStore}. Each defaults to what a store over a single directory wants, so only
+     * the thread factory must be set. New options belong here rather than on a constructor.
+     */
+    public static final class Builder
+    {
+        private final File[] dirs;
+        private ThreadFactory threadFactory;
+        private Function<String, BlockSize> blockSizeForKey = key -> BlockSize.DEFAULT;
+        private Function<String, TimestampPrecision> timestampPrecisionForKey = key -> TimestampPrecision.DEFAULT;
+        private long latenessWindowMillis = 0;
+        private int shardCount = 1;
+        private Supplier<? extends IdleStrategy> idleStrategy = WriterIdleStrategy.DEFAULT;
+        private ActiveBlockWritePolicy writePolicy = ActiveBlockWritePolicy.everyChange();
+        private long maxUnpersistedBytes = Long.MAX_VALUE;
+        private BackpressurePolicy backpressurePolicy = BackpressurePolicy.BLOCK;
+        private WriteAheadLogPolicy writeAheadLogPolicy = WriteAheadLogPolicy.disabled();
+        private DurabilityPolicy durabilityPolicy = DurabilityPolicy.none();
+        private ErrorHandler errorHandler = throwable -> { };
+
+        private Builder(File[] dirs)
+        {
+            this.dirs = dirs.clone();
+        }
+
+        /**
+         * Makes the background writer thread of each shard, and its sync thread when the data files are synced.
+         */
+        public Builder threadFactory(ThreadFactory threadFactory)
+        {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+
+        public Builder blockSizeForKey(Function<String, BlockSize> blockSizeForKey)
+        {
+            this.blockSizeForKey = blockSizeForKey;
+            return this;
+        }
+
+        public Builder timestampPrecisionForKey(Function<String, TimestampPrecision> timestampPrecisionForKey)
+        {
+            this.timestampPrecisionForKey = timestampPrecisionForKey;
+            return this;
+        }
+
+        /**
+         * How long a point is held to reorder it among later points, those older than the window are kept apart.
+         */
+        public Builder latenessWindowMillis(long latenessWindowMillis)
+        {
+            this.latenessWindowMillis = latenessWindowMillis;
+            return this;
+        }
+
+        /**
+         * The number of shards, a multiple of the number of data directories.
+         */
+        public Builder shardCount(int shardCount)
+        {
+            this.shardCount = shardCount;
+            return this;
+        }
+
+        /**
+         * Supplies the strategy each background writer uses when it has nothing to write, see
+         * {@link WriterIdleStrategy}.
+         */
+        public Builder idleStrategy(Supplier<? extends IdleStrategy> idleStrategy)
+        {
+            this.idleStrategy = idleStrategy;
+            return this;
+        }
+
+        /**
+         * When the background writers rewrite blocks that are still being appended to.
+         */
+        public Builder writePolicy(ActiveBlockWritePolicy writePolicy)
+        {
+            this.writePolicy = writePolicy;
+            return this;
+        }
+
+        /**
+         * The budget for blocks held in memory until they are stored frozen, over all shards. Appends check it before
+         * adding to a series, so a store can go over it by a block per shard.
+         */
+        public Builder maxUnpersistedBytes(long maxUnpersistedBytes)
+        {
+            this.maxUnpersistedBytes = maxUnpersistedBytes;
+            return this;
+        }
+
+        /**
+         * What an append does while the store is over its budget.
+         */
+        public Builder backpressurePolicy(BackpressurePolicy backpressurePolicy)
+        {
+            this.backpressurePolicy = backpressurePolicy;
+            return this;
+        }
+
+        /**
+         * Whether appends are logged ahead of their blocks. A log left under the directories by a store that did not
+         * stop cleanly is replayed when the store is built, before the writers are started.
+         */
+        public Builder writeAheadLogPolicy(WriteAheadLogPolicy writeAheadLogPolicy)
+        {
+            this.writeAheadLogPolicy = writeAheadLogPolicy;
+            return this;
+        }
+
+        /**
+         * When each shard forces its data files to disk between flushes, on a sync thread of its own.
+         */
+        public Builder durabilityPolicy(DurabilityPolicy durabilityPolicy)
+        {
+            this.durabilityPolicy = durabilityPolicy;
+            return this;
+        }
+
+        /**
+         * Told of each failure of a background writer, from its thread. A series that fails to be written is retried
+         * and fails every flush until it is, so by default failures are left to the flush futures and
+         * {@link ConcurrentStore#writeFailures()}.
+         */
+        public Builder errorHandler(ErrorHandler errorHandler)
+        {
+            this.errorHandler = errorHandler;
+            return this;
+        }
+
+        /**
+         * Builds the store. Over several data directories series are partitioned by the hash of their key, as over
+         * the shards, and each shard writes to a single directory. Read the store with {@link PersistentStoreReader}
+         * over the same directories, in the same order.
+         */
+        public ConcurrentStore build() throws IOException
+        {
+            return new ConcurrentStore(this);
+        }
+    }
+
+    private final class Shard
+    {
+        private final int shardIndex;
+        private final SeriesIndex index = new SeriesIndex();
+        private final Queue<BlockQueue> dirtyQ = new ConcurrentLinkedQueue<>();
+        private final BlockPool blockPool = new BlockPool();
+        private final WriteAheadLog wal;
+        private final List<File> closedSegments = new ArrayList<>();
+        private final Queue<SegmentRetirement> retirements = new ArrayDeque<>();
+        private final BackgroundWriter backgroundWriter;
+        private final Thread thread;
+        private BlockQueue[] blockQueues = new BlockQueue[64];
+        private SeriesHandle[] handles = new SeriesHandle[64];
+        private int seriesCount = 0;
+
+        private Shard(
+            ThreadFactory threadFactory,
+            int shardIndex,
+            IdleStrategy idleStrategy,
+            ActiveBlockWritePolicy writePolicy,
+            DurabilityPolicy durabilityPolicy) throws IOException
+        {
+            // The shards of a directory are those its partition of the key hashes falls into.
+            final File dir = dirs[shardIndex * dirs.length / shards.length];
+
+            this.shardIndex = shardIndex;
+            this.wal = writeAheadLogPolicy.isEnabled() ?
+                new WriteAheadLog(
+                    new File(walDir(dir), Integer.toString(shardIndex)),
+                    writeAheadLogPolicy,
+                    closedSegments::add) :
+                null;
+            this.backgroundWriter = new BackgroundWriter(
+                dir,
+                dirtyQ,
+                wal,
+                idleStrategy,
+                writePolicy,
+                durabilityPolicy,
+                runnable ->
+                {
+                    final Thread syncThread = threadFactory.newThread(runnable);
+                    syncThread.setName("ConcurrentStore-sync-" + shardIndex);
+                    return syncThread;
+                },
+                errorHandler);
+            this.thread = threadFactory.newThread(backgroundWriter);
+            thread.setName("ConcurrentStore-backgroundWriter-" + shardIndex);
+        }
+
+        private SeriesHandle handleOf(int id)
+        {
+            if (id == seriesCount)
+            {
+                if (id == handles.length)
+                {
+                    handles = Arrays.copyOf(handles, id * 2);
+                    blockQueues = Arrays.copyOf(blockQueues, id * 2);
+                }
+
+                final String key = index.key(id);
+                blockQueues[id] = newBlockQueue(key);
+                handles[id] = new SeriesHandle(shardIndex, id, key);
+                seriesCount++;
+            }
+
+            return handles[id];
+        }
+
+        private void log(SeriesHandle handle, long timestamp, double value)
+        {
+            if (null == wal)
+            {
+                return;
+            }
+
+            try
+            {
+                wal.append(handle.id, handle.key(), timestamp, value);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Failed to log point - name: " + handle.key(), e);
+            }
+        }
+
+        /**
+         * Deletes the segments of the log closed by earlier appends once the points logged in them are persisted. A
+         * reorder buffer can hold a point for as long as the lateness window, longer than it takes to fill a segment,
+         * so a closed segment waits until every series has released the points it held when the segment closed, and
+         * then for a barrier to cover them. A series that stops receiving points never releases them by itself, so
+         * those still held a window of wall clock time after the close are released when the next segment closes. A
+         * batch may have logged points in a closed segment before any reached a buffer, so this waits until the
+         * whole append is buffered.
+         */
+        private void retireClosedSegments()
+        {
+            if (!closedSegments.isEmpty())
+            {
+                final long nowMillis = System.currentTimeMillis();
+                for (final SegmentRetirement retirement : retirements)
+                {
+                    if (nowMillis - retirement.closedMillis >= latenessWindowMillis)
+                    {
+                        retirement.release();
+                    }
+                }
+
+                retirements.add(new SegmentRetirement(new ArrayList<>(closedSegments), nowMillis));
+                closedSegments.clear();
+            }
+
+            while (!retirements.isEmpty() && retirements.peek().isReleased())
+            {
+                final List<File> segments = retirements.poll().segments;
+                barrier().thenRun(() -> segments.forEach(ConcurrentStore.this::deleteSegment));
+            }
+        }
+
+        private CompletableFuture<Void> flush()
+        {
+            drain();
+            retireClosedSegments();
 
-public class ConcurrentStore
-{
-    private final Map<String, BlockQueue> blocks = new HashMap<>();
-    private final Queue<BlockQueue> controlQ = new ConcurrentLinkedQueue<>();
-    private final Queue<Block> recycledBlockQ = new ConcurrentLinkedQueue<>();
-    private final File dir;
-    private final Thread thread;
-    private final BackgroundWriter backgroundWriter;
+            return barrier();
+        }
 
-    public ConcurrentStore(File dir, ThreadFactory threadFactory) throws IOException
-    {
-        this.dir = dir;
-        this.backgroundWriter = new BackgroundWriter(dir, controlQ);
-        thread = threadFactory.newThread(backgroundWriter);
-        thread.setName("ConcurrentStore-backgroundWriter");
-    }
+        private void drain()
+        {
+            for (int i = 0; i < seriesCount; i++)
+            {
+                blockQueues[i].reorderBuffer.drain();
+            }
+        }
 
-    public void start()
-    {
-        thread.start();
-    }
+        private CompletableFuture<Void> barrier()
+        {
+            final CompletableFuture<Void> barrier = new CompletableFuture<>();
+            if (!running)
+            {
+                barrier.completeExceptionally(new IllegalStateException("Store is stopped"));
+                return barrier;
+            }
 
-    public void stopAndWait() throws InterruptedException
-    {
-        backgroundWriter.running = false;
-        thread.join();
-    }
+            // Queued after the appends it covers, so the writer sees them dirty once it has taken the barrier.
+            backgroundWriter.barrierQ.offer(barrier);
 
-    public void append(String key, long timestamp, double value)
-    {
-        BlockQueue blockQueue = blocks.get(key);
+            return barrier;
+        }
+
+        private BlockQueue newBlockQueue(String key)
+        {
+            final TimestampPrecision timestampPrecision = timestampPrecisionForKey.apply(key);
+            final BlockQueue blockQueue = new BlockQueue(
+                key, blockSizeForKey.apply(key), timestampPrecision, false, dirtyQ, blockPool, unpersistedBytes);
+
+            blockQueue.reorderBuffer = new ReorderBuffer(
+                timestampPrecision.fromMillis(latenessWindowMillis),
+                blockQueue,
+                (timestamp, value) -> lateQueueOf(blockQueue).accept(timestamp, value));
+
+            return blockQueue;
+        }
+
+        private BlockQueue lateQueueOf(BlockQueue blockQueue)
+        {
+            if (null == blockQueue.lateQueue)
+            {
+                blockQueue.lateQueue = new BlockQueue(
+                    blockQueue.key,
+                    blockQueue.blockSize,
+                    blockQueue.timestampPrecision,
+                    true,
+                    dirtyQ,
+                    blockPool,
+                    unpersistedBytes);
+            }
+
+            return blockQueue.lateQueue;
+        }
 
-        if (null == blockQueue)
+        /**
+         * Segments of the log closed together, and the newest point each series held back when they closed. The
+         * segments can go once every series has released its points up to that one.
+         */
+        private final class SegmentRetirement
         {
-            blockQueue = new BlockQueue(key);
-            blocks.put(key, blockQueue);
-            controlQ.add(blockQueue);
+            private final List<File> segments;
+            private final long closedMillis;
+            private final int[] seriesIds;
+            private final long[] timestamps;
+            private int released = 0;
+
+            private SegmentRetirement(List<File> segments, long closedMillis)
+            {
+                this.segments = segments;
+                this.closedMillis = closedMillis;
+
+                final int[] seriesIds = new int[seriesCount];
+                final long[] timestamps = new long[seriesCount];
+                int count = 0;
+                for (int i = 0; i < seriesCount; i++)
+                {
+                    final ReorderBuffer reorderBuffer = blockQueues[i].reorderBuffer;
+                    if (0 != reorderBuffer.size())
+                    {
+                        seriesIds[count] = i;
+                        timestamps[count] = reorderBuffer.maxTimestamp();
+                        count++;
+                    }
+                }
+
+                this.seriesIds = Arrays.copyOf(seriesIds, count);
+                this.timestamps = Arrays.copyOf(timestamps, count);
+            }
+
+            /**
+             * Checked after every append, so it moves past the series that have released their points and stops at
+             * the first that has not.
+             */
+            private boolean isReleased()
+            {
+                while (released < seriesIds.length &&
+                    blockQueues[seriesIds[released]].reorderBuffer.hasReleasedUpTo(timestamps[released]))
+                {
+                    released++;
+                }
+
+                return released == seriesIds.length;
+            }
+
+            private void release()
+            {
+                for (int i = released; i < seriesIds.length; i++)
+                {
+                    blockQueues[seriesIds[i]].reorderBuffer.releaseUpTo(timestamps[i]);
+                }
+            }
         }
+    }
 
-        final Block.AppendStatus status = blockQueue.current.append(timestamp, value);
+    /**
+     * The points of a series replayed from the log that may already have been persisted, in the order logged.
+     */
+    private static class LoggedPoints
+    {
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size = 0;
+        private long minTimestamp = Long.MAX_VALUE;
+        private long maxTimestamp = Long.MIN_VALUE;
 
-        switch (status)
+        void add(long timestamp, double value)
         {
-            case OK:
-                break;
-            case FULL:
-                blockQueue.current.freeze();
-                blockQueue.newBlock().append(timestamp, value);
-                break;
-            case FROZEN:
-                throw new IllegalStateException();
+            if (size == timestamps.length)
+            {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
         }
     }
 
-    private static class BlockQueue
+    /**
+     * The blocks of a series, appended to by the producer and written by the background writer. After each append the
+     * producer queues the series on the dirty queue of its shard, unless it is already queued, so the writer only
+     * visits series that have changed. Blocks come from the pool of the shard and go back to it once the writer has
+     * stored them frozen.
+     *
+     * The dirty flag is only set with a CAS on the clean to dirty transition and cleared with an ordered write, so an
+     * append does not pay for a fence. An append racing with the writer clearing the flag may then see it still set
+     * and not queue the series, which the writer covers by checking the series it cleaned again, see
+     * {@link BackgroundWriter#recheck}.
+     */
+    private static class BlockQueue implements ValueConsumer
     {
+        private static final AtomicIntegerFieldUpdater<BlockQueue> DIRTY =
+            AtomicIntegerFieldUpdater.newUpdater(BlockQueue.class, "dirty");
+
         private final String key;
+        private final BlockSize blockSize;
+        private final TimestampPrecision timestampPrecision;
+        private final boolean late;
         private final Queue<Block> blocks = new ConcurrentLinkedQueue<>();
+        private final Queue<BlockQueue> dirtyQ;
+        private final BlockPool blockPool;
+        private final AtomicLong unpersistedBytes;
+        private volatile int dirty = 0;
         private Block current;
+        private ReorderBuffer reorderBuffer;
+        private BlockQueue lateQueue;
 
-        private BlockQueue(String key)
+        // Only used by the background writer.
+        private Block lastWrittenBlock = null;
+        private int lastWrittenLengthInBits = 0;
+        private boolean lastWrittenFrozen = false;
+        private long lastWriteNanos = 0;
+        private boolean written = false;
+        private boolean deferred = false;
+        private boolean failed = false;
+        private boolean cleanedSinceBarrier = false;
+
+        private BlockQueue(
+            String key,
+            BlockSize blockSize,
+            TimestampPrecision timestampPrecision,
+            boolean late,
+            Queue<BlockQueue> dirtyQ,
+            BlockPool blockPool,
+            AtomicLong unpersistedBytes)
         {
             this.key = key;
+            this.blockSize = blockSize;
+            this.timestampPrecision = timestampPrecision;
+            this.late = late;
+            this.dirtyQ = dirtyQ;
+            this.blockPool = blockPool;
+            this.unpersistedBytes = unpersistedBytes;
             newBlock();
         }
 
+        @Override
+        public boolean accept(long timestamp, double value)
+        {
+            // Late blocks are stored with the day of their first point, so each only holds points of that day.
+            if (late && !current.isEmpty() && dayOf(timestamp) != dayOf(current.firstTimestamp()))
+            {
+                current.freeze();
+                newBlock();
+            }
+
+            final Block.AppendStatus status = current.append(timestamp, value);
+
+            switch (status)
+            {
+                case OK:
+                    break;
+                case FULL:
+                    current.freeze();
+                    newBlock().append(timestamp, value);
+                    break;
+                case FROZEN:
+                    throw new IllegalStateException();
+            }
+
+            markDirty();
+
+            return true;
+        }
+
+        @Override
+        public void acceptAll(long[] timestamps, double[] values, int from, int to)
+        {
+            int index = from;
+            while (true)
+            {
+                final int appended = current.appendAll(timestamps, values, index, to);
+                index += appended;
+
+                if (index == to)
+                {
+                    break;
+                }
+
+                if (0 == appended && current.isFrozen())
+                {
+                    throw new IllegalStateException();
+                }
+
+                current.freeze();
+                newBlock();
+            }
+
+            markDirty();
+        }
+
+        private long dayOf(long timestamp)
+        {
+            return TimeSeriesStore.getDay(timestampPrecision.toMillis(timestamp));
+        }
+
+        private void markDirty()
+        {
+            if (0 == dirty && DIRTY.compareAndSet(this, 0, 1))
+            {
+                dirtyQ.offer(this);
+            }
+        }
+
+        private void clean()
+        {
+            DIRTY.lazySet(this, 0);
+        }
+
         public Block newBlock()
         {
-            current = Block.newDirectBlock();
+            current = blockPool.acquire(blockSize, timestampPrecision);
+            unpersistedBytes.addAndGet(blockSize.byteLength());
             blocks.add(current);
             return current;
         }
@@ -89,111 +1247,463 @@ public class ConcurrentStore
             return blocks.peek();
         }
 
+        /**
+         * Removes a frozen block once it is stored, the producer has moved on to a new block so nothing else uses it.
+         */
         public void pop()
         {
-            blocks.poll();
+            final Block block = blocks.poll();
+
+            // The block may be handed out again, so it must not be taken for the last block written.
+            lastWrittenBlock = null;
+            blockPool.release(block);
+            unpersistedBytes.addAndGet(-blockSize.byteLength());
         }
-    }
 
-    private static class WriterInfo
-    {
-        private final BlockQueue blockQueue;
-        private long lastWrittenTimestamp = 0;
+        public Block getChangedBlockForWriting()
+        {
+            Block block = peek();
+            if (null == block || block.isEmpty())
+            {
+                return null;
+            }
+
+            final boolean changed = block != lastWrittenBlock ||
+                block.lengthInBits() != lastWrittenLengthInBits ||
+                block.isFrozen() != lastWrittenFrozen;
 
-        private WriterInfo(BlockQueue blockQueue)
+            return changed ? block : null;
+        }
+
+        /**
+         * The bits the copy of a block has grown by since it was last written, all of them for a new block. A freeze
+         * that recodes the block to a smaller codec adds none, its rewrite is all amplification.
+         */
+        public int bitsChanged(Block block, Block copy)
         {
-            this.blockQueue = blockQueue;
+            if (block != lastWrittenBlock)
+            {
+                return copy.lengthInBits();
+            }
+
+            return Math.max(0, copy.lengthInBits() - lastWrittenLengthInBits);
         }
 
-        public Block getChangedBlockForWriting()
+        public long nanosSinceLastWrite(long nowNanos)
         {
-            Block block = blockQueue.peek();
-            return null != block && block.lastTimestamp() > lastWrittenTimestamp ? block : null;
+            return written ? nowNanos - lastWriteNanos : Long.MAX_VALUE;
         }
 
-        public void updateLastWrite(long timestamp)
+        public void updateLastWrite(Block block, Block copy, long nowNanos)
         {
-            lastWrittenTimestamp = timestamp;
+            lastWrittenBlock = block;
+            lastWrittenLengthInBits = copy.lengthInBits();
+            lastWrittenFrozen = copy.isFrozen();
+            lastWriteNanos = nowNanos;
+            written = true;
         }
     }
 
     private static class BackgroundWriter implements Runnable
     {
-        private final List<WriterInfo> blocks = new ArrayList<>();
+        private final Block[] copiesBySize = new Block[BlockSize.values().length];
+        private final Queue<BlockQueue> deferredQ = new ArrayDeque<>();
+        private final Queue<BlockQueue> failedQ = new ArrayDeque<>();
+        private final Queue<BlockQueue> recheckQ = new ArrayDeque<>();
+        private final Queue<BlockQueue> cleanedSinceBarrierQ = new ArrayDeque<>();
+        private final Queue<CompletableFuture<Void>> barrierQ = new ConcurrentLinkedQueue<>();
+        private final List<CompletableFuture<Void>> barriers = new ArrayList<>();
         private final File dir;
-        private final Queue<BlockQueue> controlQ;
+        private final Queue<BlockQueue> dirtyQ;
+        private final WriteAheadLog wal;
         private final PersistentStoreWriter writer;
+        private final IdleStrategy idleStrategy;
+        private final ActiveBlockWritePolicy writePolicy;
+        private final ErrorHandler errorHandler;
         private volatile boolean running = true;
+        private volatile long workCycles = 0;
+        private volatile long idleCycles = 0;
+        private volatile long blocksWritten = 0;
+        private volatile long bytesWritten = 0;
+        private volatile long payloadBitsWritten = 0;
+        private volatile long writeFailures = 0;
+        private long lastWriteFailureNanos = 0;
+        private IOException lastWriteFailure = null;
 
-        public BackgroundWriter(File dir, Queue<BlockQueue> controlQ) throws IOException
+        public BackgroundWriter(
+            File dir,
+            Queue<BlockQueue> dirtyQ,
+            WriteAheadLog wal,
+            IdleStrategy idleStrategy,
+            ActiveBlockWritePolicy writePolicy,
+            DurabilityPolicy durabilityPolicy,
+            ThreadFactory syncThreadFactory,
+            ErrorHandler errorHandler) throws IOException
         {
             this.dir = dir;
-            this.controlQ = controlQ;
-            this.writer = new PersistentStoreWriter(dir);
+            this.dirtyQ = dirtyQ;
+            this.wal = wal;
+            this.idleStrategy = idleStrategy;
+            this.writePolicy = writePolicy;
+            this.errorHandler = errorHandler;
+            this.writer = new PersistentStoreWriter(dir, durabilityPolicy, syncThreadFactory, errorHandler);
         }
 
         @Override
         public void run()
         {
+            writer.start();
+
             while (running && !Thread.currentThread().isInterrupted())
             {
-                pollControlQ();
-                if (0 != pollBlockQueues())
+                final int workCount = doWork(false);
+
+                // Only this thread updates the counters.
+                if (0 == workCount)
+                {
+                    idleCycles++;
+                }
+                else
+                {
+                    workCycles++;
+                }
+
+                idleStrategy.idle(workCount);
+            }
+
+            // Write what was appended or held back before stopping.
+            doWork(true);
+            final IOException syncFailure = syncData();
+            closeLog(failedQ.isEmpty() && null == syncFailure);
+            failBarriers();
+
+            try
+            {
+                writer.close();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void closeLog(boolean persisted)
+        {
+            if (null == wal)
+            {
+                return;
+            }
+
+            try
+            {
+                // Once every point is persisted the log is no longer needed, otherwise it is replayed on restart.
+                if (persisted)
+                {
+                    wal.closeAndDelete();
+                }
+                else
+                {
+                    wal.close();
+                }
+            }
+            catch (IOException e)
+            {
+                errorHandler.onError(e);
+            }
+        }
+
+        private void failBarriers()
+        {
+            CompletableFuture<Void> barrier;
+            while ((barrier = barrierQ.poll()) != null)
+            {
+                barrier.completeExceptionally(new IllegalStateException("Store stopped before flushing"));
+            }
+        }
+
+        private int doWork(boolean stopping)
+        {
+            // Take the barriers first, everything they cover is then already on the dirty queue.
+            CompletableFuture<Void> barrier;
+            while ((barrier = barrierQ.poll()) != null)
+            {
+                barriers.add(barrier);
+            }
+
+            final int synced = syncLogIfDue();
+
+            if (barriers.isEmpty())
+            {
+                return synced + pollDirtyQ(stopping);
+            }
+
+            final int workCount = synced + pollDirtyQ(true) + barriers.size();
+            final IOException failure = failure(syncData());
+
+            for (final CompletableFuture<Void> flushed : barriers)
+            {
+                if (null == failure)
+                {
+                    flushed.complete(null);
+                }
+                else
+                {
+                    flushed.completeExceptionally(failure);
+                }
+            }
+            barriers.clear();
+
+            return workCount;
+        }
+
+        private int syncLogIfDue()
+        {
+            // A failed log is not forced again, its failure is reported once and then fails every flush.
+            if (null == wal || null != wal.failure())
+            {
+                return 0;
+            }
+
+            try
+            {
+                return wal.syncIfDue(System.nanoTime()) ? 1 : 0;
+            }
+            catch (IOException e)
+            {
+                errorHandler.onError(e);
+                return 0;
+            }
+        }
+
+        /**
+         * Forces the data files written since the last sync, returning the failure if it did not. The files are
+         * forced again by the next sync.
+         */
+        private IOException syncData()
+        {
+            try
+            {
+                writer.sync();
+                return null;
+            }
+            catch (IOException e)
+            {
+                errorHandler.onError(e);
+                return e;
+            }
+        }
+
+        /**
+         * Why the points appended so far are not all persisted, if they are not. A series that failed to be written
+         * fails every flush until a retry writes it, after which only a failed sync does. A failed force of the write
+         * ahead log fails every flush from then on, as points appended between flushes are no longer safe.
+         */
+        private IOException failure(IOException syncFailure)
+        {
+            if (!failedQ.isEmpty())
+            {
+                return lastWriteFailure;
+            }
+
+            if (null != syncFailure)
+            {
+                return syncFailure;
+            }
+
+            return null == wal ? null : wal.failure();
+        }
+
+        private int pollDirtyQ(boolean force)
+        {
+            final long nowNanos = System.nanoTime();
+            int blocksWritten = recheck(nowNanos, force);
+
+            BlockQueue blockQueue;
+            while ((blockQueue = dirtyQ.poll()) != null)
+            {
+                blockQueue.clean();
+                recheckQ.add(blockQueue);
+                if (!blockQueue.cleanedSinceBarrier)
                 {
-                    LockSupport.parkNanos(1);
+                    blockQueue.cleanedSinceBarrier = true;
+                    cleanedSinceBarrierQ.add(blockQueue);
                 }
+
+                blocksWritten += write(blockQueue, nowNanos, force);
+            }
+
+            // Come back to the blocks held back by the minimum interval once it has passed, and to every block held
+            // back when stopping. Other policies wait for the series to change again.
+            final int deferred = force || writePolicy.minIntervalNanos() > 0 ? deferredQ.size() : 0;
+            for (int i = 0; i < deferred; i++)
+            {
+                blockQueue = deferredQ.poll();
+                if (force || blockQueue.nanosSinceLastWrite(nowNanos) >= writePolicy.minIntervalNanos())
+                {
+                    blockQueue.deferred = false;
+                    blocksWritten += write(blockQueue, nowNanos, force);
+                }
+                else
+                {
+                    deferredQ.add(blockQueue);
+                }
+            }
+
+            return blocksWritten + retryFailed(nowNanos, force);
+        }
+
+        /**
+         * Writes the series cleaned in the last pass that have changed since without being queued again. An append
+         * racing with the clear can see the flag still set, but its writes are visible by the next pass. A forced
+         * pass, made once a barrier or the stop has been seen, checks every series cleaned since the last one
+         * instead, as everything appended before them is visible by then.
+         */
+        private int recheck(long nowNanos, boolean force)
+        {
+            final Queue<BlockQueue> toRecheck = force ? cleanedSinceBarrierQ : recheckQ;
+
+            int blocksWritten = 0;
+            BlockQueue blockQueue;
+            for (int i = 0, n = toRecheck.size(); i < n; i++)
+            {
+                blockQueue = toRecheck.poll();
+                if (force)
+                {
+                    blockQueue.cleanedSinceBarrier = false;
+                }
+
+                if (0 == blockQueue.dirty && null != blockQueue.getChangedBlockForWriting())
+                {
+                    blocksWritten += write(blockQueue, nowNanos, force);
+                }
+            }
+
+            if (force)
+            {
+                recheckQ.clear();
+            }
+
+            return blocksWritten;
+        }
+
+        /**
+         * Writes again the series whose last write failed, once they have waited out the retry interval or when
+         * forced. The blocks not yet written are still queued, so a retry picks up where the failed write stopped.
+         */
+        private int retryFailed(long nowNanos, boolean force)
+        {
+            if (failedQ.isEmpty() || (!force && nowNanos - lastWriteFailureNanos < RETRY_FAILED_WRITES_NANOS))
+            {
+                return 0;
+            }
+
+            int blocksWritten = 0;
+            for (int i = 0, n = failedQ.size(); i < n; i++)
+            {
+                final BlockQueue blockQueue = failedQ.poll();
+
+                // Cleared first, so that failing again queues it again.
+                blockQueue.failed = false;
+                blocksWritten += write(blockQueue, nowNanos, true);
+            }
+
+            return blocksWritten;
+        }
+
+        private void writeFailed(BlockQueue blockQueue, IOException e, long nowNanos)
+        {
+            writeFailures++;
+            lastWriteFailureNanos = nowNanos;
+            lastWriteFailure = e;
+
+            // The series may not change again, so it is queued to be retried rather than waiting to be dirtied.
+            if (!blockQueue.failed)
+            {
+                blockQueue.failed = true;
+                failedQ.add(blockQueue);
             }
+
+            errorHandler.onError(e);
         }
 
-        private int pollBlockQueues()
+        private int write(BlockQueue blockQueue, long nowNanos, boolean force)
         {
-            final Block localBlockCopy = Block.newDirectBlock();
+            final Block localBlockCopy = copyFor(blockQueue.blockSize);
 
             int blocksWritten = 0;
-            for (int i = 0, n = blocks.size(); i < n; i++)
+            try
             {
-                WriterInfo writerInfo = blocks.get(i);
-                try
+                boolean pollNext = false;
+                do
                 {
-                    boolean pollNext = false;
-                    do
+                    Block blockToWrite = blockQueue.getChangedBlockForWriting();
+
+                    if (blockToWrite != null)
                     {
-                        Block blockToWrite = writerInfo.getChangedBlockForWriting();
+                        blockToWrite.copyTo(localBlockCopy);
 
-                        if (blockToWrite != null)
+                        final int bitsChanged = blockQueue.bitsChanged(blockToWrite, localBlockCopy);
+                        if (!force && !writePolicy.shouldWrite(
+                            localBlockCopy.isFrozen(), bitsChanged, blockQueue.nanosSinceLastWrite(nowNanos)))
                         {
-                            blockToWrite.copyTo(localBlockCopy);
+                            defer(blockQueue);
+                            break;
+                        }
 
-                            writer.store(writerInfo.blockQueue.key, localBlockCopy);
-                            writerInfo.updateLastWrite(localBlockCopy.lastTimestamp());
-                            blocksWritten++;
+                        if (blockQueue.late)
+                        {
+                            writer.storeLate(blockQueue.key, localBlockCopy);
+                        }
+                        else
+                        {
+                            writer.store(blockQueue.key, localBlockCopy);
+                        }
+                        blockQueue.updateLastWrite(blockToWrite, localBlockCopy, nowNanos);
+                        blocksWritten++;
+                        this.blocksWritten++;
+                        this.bytesWritten += localBlockCopy.storedByteLength();
+                        this.payloadBitsWritten += bitsChanged;
 
-                            pollNext = localBlockCopy.isFrozen();
-                            if (pollNext)
-                            {
-                                writerInfo.blockQueue.pop();
-                            }
+                        pollNext = localBlockCopy.isFrozen();
+                        if (pollNext)
+                        {
+                            blockQueue.pop();
                         }
                     }
-                    while (pollNext);
-                }
-                catch (IOException e)
-                {
-                    // Logging perhaps
-                    e.printStackTrace();
+                    else
+                    {
+                        pollNext = false;
+                    }
                 }
+                while (pollNext);
+            }
+            catch (IOException e)
+            {
+                writeFailed(blockQueue, e, nowNanos);
             }
 
             return blocksWritten;
         }
 
-        private void pollControlQ()
+        private void defer(BlockQueue blockQueue)
+        {
+            if (!blockQueue.deferred)
+            {
+                blockQueue.deferred = true;
+                deferredQ.add(blockQueue);
+            }
+        }
+
+        private Block copyFor(BlockSize blockSize)
         {
-            BlockQueue bq;
-            while ((bq = controlQ.poll()) != null)
+            Block block = copiesBySize[blockSize.ordinal()];
+            if (null == block)
             {
-                blocks.add(new WriterInfo(bq));
+                block = Block.newDirectBlock(blockSize);
+                copiesBySize[blockSize.ordinal()] = block;
             }
+
+            return block;
         }
     }
 }
@@ -0,0 +1,83 @@
+package com.lmax.utan.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a {@link PersistentStoreWriter} forces the data files it has written to disk, other than when asked to with
+ * {@link PersistentStoreWriter#sync()}. Files are forced as a group on a separate sync thread, so the thread storing
+ * blocks never waits on a force. Forcing many files together costs far less than forcing each after its write.
+ */
+public final class DurabilityPolicy
+{
+    private static final DurabilityPolicy NONE = new DurabilityPolicy(0, false);
+    private static final DurabilityPolicy ON_FREEZE = new DurabilityPolicy(0, true);
+
+    private final long intervalNanos;
+    private final boolean onFreeze;
+
+    private DurabilityPolicy(long intervalNanos, boolean onFreeze)
+    {
+        if (intervalNanos < 0)
+        {
+            throw new IllegalArgumentException("Sync interval must not be negative: " + intervalNanos);
+        }
+
+        this.intervalNanos = intervalNanos;
+        this.onFreeze = onFreeze;
+    }
+
+    /**
+     * Leaves the data files to the operating system, blocks written since the last explicit sync may be lost on a
+     * crash. The default.
+     */
+    public static DurabilityPolicy none()
+    {
+        return NONE;
+    }
+
+    /**
+     * Forces every data file written since the last sync once per interval.
+     */
+    public static DurabilityPolicy periodic(long interval, TimeUnit unit)
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("Sync interval must be positive: " + interval);
+        }
+
+        return new DurabilityPolicy(unit.toNanos(interval), false);
+    }
+
+    /**
+     * Forces the data files written since the last sync as soon as a frozen block has been stored, along with any
+     * others frozen meanwhile.
+     */
+    public static DurabilityPolicy onFreeze()
+    {
+        return ON_FREEZE;
+    }
+
+    boolean isNone()
+    {
+        return 0 == intervalNanos && !onFreeze;
+    }
+
+    long intervalNanos()
+    {
+        return intervalNanos;
+    }
+
+    boolean isOnFreeze()
+    {
+        return onFreeze;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DurabilityPolicy{" +
+            "intervalNanos=" + intervalNanos +
+            ", onFreeze=" + onFreeze +
+            '}';
+    }
+}
@@ -0,0 +1,14 @@
+package com.lmax.utan.store;
+
+/**
+ * Encodings available for non-integral values in a {@link Block}.
+ *
+ * {@link #XOR} is the Gorilla encoding against the previous value. {@link #CHIMP} picks the best of the last eight
+ * values as the reference and spends fewer control bits on xors with long runs of trailing zeros, which suits
+ * gauges that move between a handful of levels.
+ */
+public enum FloatCodec
+{
+    XOR,
+    CHIMP
+}
@@ -11,6 +11,16 @@ public class InMemoryTimeSeries
     private final int maxActiveBlocks;
 
     public InMemoryTimeSeries(int numBlocks)
+    {
+        this(numBlocks, BlockSize.DEFAULT);
+    }
+
+    public InMemoryTimeSeries(int numBlocks, BlockSize blockSize)
+    {
+        this(numBlocks, blockSize, TimestampPrecision.DEFAULT);
+    }
+
+    public InMemoryTimeSeries(int numBlocks, BlockSize blockSize, TimestampPrecision timestampPrecision)
     {
         if (Integer.bitCount(numBlocks) != 1)
         {
@@ -21,7 +31,7 @@ public class InMemoryTimeSeries
             throw new RuntimeException("numBlocks must at least 4");
         }
 
-        this.blocks = Block.new4KDirectBlocks(numBlocks);
+        this.blocks = Block.newDirectBlocks(numBlocks, blockSize, timestampPrecision);
         this.maxActiveBlocks = (numBlocks / 4) * 3;
     }
 
@@ -69,13 +79,7 @@ public class InMemoryTimeSeries
 
         for (long l = tailForReseting.get(), n = tailForReading.get(); l < n; l++)
         {
-            Block blockToReset = blocks[indexOf(l)];
-
-            if (!blockToReset.reset())
-            {
-                break;
-            }
-
+            blocks[indexOf(l)].reset();
             tailForReseting.incrementAndGet();
         }
     }
@@ -88,10 +92,16 @@ public class InMemoryTimeSeries
 
         for (long i = tail; i < head; i++)
         {
+            final long position = i;
             Block b = blocks[indexOf(i)];
             b.foreach(
                 (k, v) ->
                 {
+                    if (isRecycled(position))
+                    {
+                        return false;
+                    }
+
                     if (startTimestamp <= k && k < endTimestamp)
                     {
                         return consumer.accept(k, v);
@@ -102,6 +112,37 @@ public class InMemoryTimeSeries
         }
     }
 
+    public int query(long startTimestamp, long endTimestamp, long[] timestamps, double[] values, int offset)
+    {
+        long head = headBlock.get();
+        long tail = tailForReading.get();
+        final int limit = Math.min(timestamps.length, values.length);
+
+        int count = 0;
+        for (long i = tail; i < head && offset + count < limit; i++)
+        {
+            Block b = blocks[indexOf(i)];
+            final int decoded = b.decodeInto(startTimestamp, endTimestamp, timestamps, values, offset + count);
+
+            if (!isRecycled(i))
+            {
+                count += decoded;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Whether the block at a position has been reset to take later points since the query found it. Its points are
+     * then gone and whatever it holds now is newer than the rest of the query, so none of it may be returned. The
+     * reset is counted before the block is appended to again, so seeing any of its new content implies seeing this.
+     */
+    private boolean isRecycled(long position)
+    {
+        return position < tailForReseting.get();
+    }
+
     public long head()
     {
         return headBlock.get();
@@ -0,0 +1,194 @@
+package com.lmax.utan.store;
+
+import org.agrona.MutableDirectBuffer;
+import org.agrona.concurrent.MessageHandler;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.agrona.concurrent.ringbuffer.ManyToOneRingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBuffer;
+import org.agrona.concurrent.ringbuffer.RingBufferDescriptor;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.ThreadLocal.withInitial;
+
+/**
+ * Hands points from many producer threads, such as the network and parsing threads, to a single thread that appends
+ * them to a {@link ConcurrentStore}. Producers encode each point into a bounded ring buffer without locks and are
+ * told when it is full, so a stalled store never blocks them and the memory held is fixed.
+ *
+ * The store thread drains the ring buffer in batches and appends the points of a batch grouped by series, keeping
+ * the order of each series, so that the blocks of a series stay in cache for a run of appends. It resolves the key
+ * bytes of each record to a {@link SeriesHandle} without decoding them. As the only thread appending, it keeps the
+ * single writer contract of every shard of the store.
+ *
+ * If the store blocks appends because it is over its memory budget, the ring buffer fills and {@link #offer} returns
+ * false, which is how backpressure reaches the producers. A store that fails fast instead rejects the points, which
+ * are counted in {@link #rejectedPoints()}.
+ */
+public class IngestPipeline implements Runnable
+{
+    public static final int MAX_KEY_LENGTH = 1024;
+
+    private static final int POINT_MSG_TYPE_ID = 1;
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int VALUE_OFFSET = TIMESTAMP_OFFSET + 8;
+    private static final int KEY_OFFSET = VALUE_OFFSET + 8;
+    private static final int BATCH_LIMIT = 256;
+
+    private final ConcurrentStore store;
+    private final RingBuffer ringBuffer;
+    private final Thread thread;
+    private final ThreadLocal<UnsafeBuffer> encodingBuffer =
+        withInitial(() -> new UnsafeBuffer(new byte[KEY_OFFSET + 3 * MAX_KEY_LENGTH]));
+    private final Batch batch;
+    private volatile boolean running = true;
+    private volatile CompletableFuture<Void> flushed = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param capacity the size of the ring buffer in bytes, a power of two.
+     */
+    public IngestPipeline(ConcurrentStore store, ThreadFactory threadFactory, int capacity)
+    {
+        this.store = store;
+        this.batch = new Batch(store);
+        this.ringBuffer = new ManyToOneRingBuffer(
+            new UnsafeBuffer(ByteBuffer.allocateDirect(capacity + RingBufferDescriptor.TRAILER_LENGTH)));
+        this.thread = threadFactory.newThread(this);
+        thread.setName("IngestPipeline-store");
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Stops the store thread once it has appended every point already offered, returning the future of the flush of
+     * the store it ends with.
+     */
+    public CompletableFuture<Void> stopAndWait() throws InterruptedException
+    {
+        running = false;
+        thread.join();
+
+        return flushed;
+    }
+
+    /**
+     * Points the store rejected because it was over its memory budget and fails fast, see
+     * {@link BackpressurePolicy#FAIL_FAST}.
+     */
+    public long rejectedPoints()
+    {
+        return batch.rejectedPoints.get();
+    }
+
+    /**
+     * Offers a point from any thread, returning false if the ring buffer is full and the point was not taken.
+     */
+    public boolean offer(String key, long timestamp, double value)
+    {
+        if (key.length() > MAX_KEY_LENGTH)
+        {
+            throw new IllegalArgumentException("Key is longer than " + MAX_KEY_LENGTH + " characters: " + key);
+        }
+
+        final UnsafeBuffer buffer = encodingBuffer.get();
+        buffer.putLong(TIMESTAMP_OFFSET, timestamp);
+        buffer.putDouble(VALUE_OFFSET, value);
+        final int length = KEY_OFFSET + buffer.putStringWithoutLengthUtf8(KEY_OFFSET, key);
+
+        if (length > ringBuffer.maxMsgLength())
+        {
+            throw new IllegalArgumentException("Point of " + length + " bytes is too long for the ring buffer: " + key);
+        }
+
+        return ringBuffer.write(POINT_MSG_TYPE_ID, buffer, 0, length);
+    }
+
+    @Override
+    public void run()
+    {
+        while (running && !Thread.currentThread().isInterrupted())
+        {
+            if (0 == drain())
+            {
+                LockSupport.parkNanos(1);
+            }
+        }
+
+        while (0 != drain())
+        {
+            // Append what was offered before stopping.
+        }
+
+        flushed = store.flush();
+    }
+
+    /**
+     * Appends a batch of points to the store, returning the number appended. Called from the store thread only.
+     */
+    int drain()
+    {
+        batch.size = 0;
+        final int count = ringBuffer.read(batch, BATCH_LIMIT);
+
+        batch.appendTo();
+
+        return count;
+    }
+
+    private static final class Batch implements MessageHandler
+    {
+        private final ConcurrentStore store;
+        private final SeriesHandle[] handles = new SeriesHandle[BATCH_LIMIT];
+        private final long[] timestamps = new long[BATCH_LIMIT];
+        private final double[] values = new double[BATCH_LIMIT];
+        private final long[] order = new long[BATCH_LIMIT];
+        private final AtomicLong rejectedPoints = new AtomicLong();
+        private int size = 0;
+
+        private Batch(ConcurrentStore store)
+        {
+            this.store = store;
+        }
+
+        @Override
+        public void onMessage(int msgTypeId, MutableDirectBuffer buffer, int index, int length)
+        {
+            final SeriesHandle handle = store.handle(buffer, index + KEY_OFFSET, length - KEY_OFFSET);
+
+            handles[size] = handle;
+            timestamps[size] = buffer.getLong(index + TIMESTAMP_OFFSET);
+            values[size] = buffer.getDouble(index + VALUE_OFFSET);
+
+            // Sorting on the series and then the arrival index groups each series and keeps its order.
+            order[size] = ((long) handle.id << 24) | ((handle.shard & 0xFFFF) << 8) | size;
+            size++;
+        }
+
+        private void appendTo()
+        {
+            Arrays.sort(order, 0, size);
+
+            for (int i = 0; i < size; i++)
+            {
+                final int index = (int) (order[i] & (BATCH_LIMIT - 1));
+                try
+                {
+                    store.append(handles[index], timestamps[index], values[index]);
+                }
+                catch (final StoreFullException e)
+                {
+                    // The store thread keeps draining, a store that fails fast loses the points it cannot take.
+                    rejectedPoints.incrementAndGet();
+                }
+            }
+        }
+    }
+}
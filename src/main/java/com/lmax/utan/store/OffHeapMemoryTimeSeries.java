@@ -23,6 +23,17 @@ public class OffHeapMemoryTimeSeries
     private final MappedByteBuffer controlMMap;
 
     public OffHeapMemoryTimeSeries(int numBlocks, Path controlFile, Path dataFile) throws IOException
+    {
+        this(numBlocks, controlFile, dataFile, BlockSize.DEFAULT);
+    }
+
+    public OffHeapMemoryTimeSeries(int numBlocks, Path controlFile, Path dataFile, BlockSize blockSize) throws IOException
+    {
+        this(numBlocks, controlFile, dataFile, blockSize, TimestampPrecision.DEFAULT);
+    }
+
+    public OffHeapMemoryTimeSeries(
+        int numBlocks, Path controlFile, Path dataFile, BlockSize blockSize, TimestampPrecision timestampPrecision) throws IOException
     {
         if (Integer.bitCount(numBlocks) != 1)
         {
@@ -36,7 +47,8 @@ public class OffHeapMemoryTimeSeries
         control = FileChannel.open(controlFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
         data = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
 
-        dataMMap = data.map(FileChannel.MapMode.READ_WRITE, 0, numBlocks * Block.BYTE_LENGTH);
+        final int byteLength = blockSize.byteLength();
+        dataMMap = data.map(FileChannel.MapMode.READ_WRITE, 0, (long) numBlocks * byteLength);
         controlMMap = control.map(FileChannel.MapMode.READ_WRITE, 0, 24);
 
         controlBuffer = new UnsafeBuffer(controlMMap, 0, 24);
@@ -45,8 +57,8 @@ public class OffHeapMemoryTimeSeries
         blocks = new Block[numBlocks];
         for (int i = 0; i < numBlocks; i++)
         {
-            UnsafeBuffer blockBuffer = new UnsafeBuffer(dataMMap, i * Block.BYTE_LENGTH, Block.BYTE_LENGTH);
-            blocks[i] = new Block(blockBuffer);
+            UnsafeBuffer blockBuffer = new UnsafeBuffer(dataMMap, i * byteLength, byteLength);
+            blocks[i] = new Block(blockBuffer, FloatCodec.XOR, timestampPrecision);
             blocks[i].reset();
         }
 
@@ -109,13 +121,7 @@ public class OffHeapMemoryTimeSeries
 
         for (long l = getTailForReseting(), n = getTailForReading(); l < n; l++)
         {
-            Block blockToReset = blocks[indexOf(l)];
-
-            if (!blockToReset.reset())
-            {
-                break;
-            }
-
+            blocks[indexOf(l)].reset();
             incrementTailForReseting();
         }
     }
@@ -127,10 +133,16 @@ public class OffHeapMemoryTimeSeries
 
         for (long i = tail; i < head; i++)
         {
+            final long position = i;
             Block b = blocks[indexOf(i)];
             b.foreach(
                 (k, v) ->
                 {
+                    if (isRecycled(position))
+                    {
+                        return false;
+                    }
+
                     if (startTimestamp <= k && k < endTimestamp)
                     {
                         return consumer.accept(k, v);
@@ -141,6 +153,37 @@ public class OffHeapMemoryTimeSeries
         }
     }
 
+    public int query(long startTimestamp, long endTimestamp, long[] timestamps, double[] values, int offset)
+    {
+        long head = getHead();
+        long tail = getTailForReading();
+        final int limit = Math.min(timestamps.length, values.length);
+
+        int count = 0;
+        for (long i = tail; i < head && offset + count < limit; i++)
+        {
+            Block b = blocks[indexOf(i)];
+            final int decoded = b.decodeInto(startTimestamp, endTimestamp, timestamps, values, offset + count);
+
+            if (!isRecycled(i))
+            {
+                count += decoded;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Whether the block at a position has been reset to take later points since the query found it. Its points are
+     * then gone and whatever it holds now is newer than the rest of the query, so none of it may be returned. The
+     * reset is counted before the block is appended to again, so seeing any of its new content implies seeing this.
+     */
+    private boolean isRecycled(long position)
+    {
+        return position < getTailForReseting();
+    }
+
     public long getHead()
     {
         return controlBuffer.getLongVolatile(controlHeadOffset);
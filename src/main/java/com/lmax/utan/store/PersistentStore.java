@@ -2,6 +2,7 @@ package com.lmax.utan.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.OpenOption;
@@ -31,6 +32,8 @@ public class PersistentStore
                 throw new RuntimeException(e);
             }
         });
+    private static final ThreadLocal<ByteBuffer> LAST_TIMESTAMP_LOCAL = withInitial(
+        () -> ByteBuffer.allocate(8).order(Block.BYTE_ORDER));
 
     static File getKeyDir(File parent, CharSequence key, boolean createIfNotExists) throws IOException
     {
@@ -63,9 +66,128 @@ public class PersistentStore
         return FileChannel.open(timeDir.toPath().resolve("timeseries.dat"), openOptions);
     }
 
-    static File getTimeDir(File keyDir, long timestamp, boolean createIfNotExists) throws IOException
+    /**
+     * Whether a time directory holds time ordered data, rather than only the points of its day that arrived late.
+     */
+    static boolean hasTimeSeries(File timeDir)
     {
-        File timePath = keyDir.toPath().resolve(formatAsDate(timestamp)).toFile();
+        return timeDir.toPath().resolve("timeseries.dat").toFile().exists();
+    }
+
+    /**
+     * Points that arrived after the reorder window of their series are kept in a file per day next to the time
+     * ordered data of that day, as blocks in arrival order that readers merge with it. A query only reads the late
+     * files of the days it covers.
+     */
+    static FileChannel getLateChannel(File timeDir, Set<? extends OpenOption> openOptions) throws IOException
+    {
+        return FileChannel.open(timeDir.toPath().resolve("late.dat"), openOptions);
+    }
+
+    static void readHeader(FileChannel channel, long position, BlockHeader header) throws IOException
+    {
+        header.underlyingBuffer().clear();
+        channel.read(header.underlyingBuffer(), position);
+    }
+
+    /**
+     * Reads the last timestamp of the block stored at a position, given the header already read from there. A span
+     * too long for the header is read from the end of the summary, which a stored block always ends with.
+     */
+    static long readLastTimestamp(FileChannel channel, long position, BlockHeader header) throws IOException
+    {
+        if (!header.isLongSpan())
+        {
+            return header.lastTimestamp();
+        }
+
+        final ByteBuffer lastTimestamp = LAST_TIMESTAMP_LOCAL.get();
+        lastTimestamp.clear();
+        final long summaryPosition = position + header.storedByteLength() - BlockSize.SUMMARY_LENGTH;
+        channel.read(lastTimestamp, summaryPosition + Block.SUMMARY_LAST_TIMESTAMP_OFFSET);
+
+        return lastTimestamp.getLong(0);
+    }
+
+    /**
+     * Reads the block stored at a position, given the header already read from there. The bytes of a trimmed block
+     * that were not stored are cleared.
+     */
+    static void readBlock(FileChannel channel, long position, BlockHeader header, Block block) throws IOException
+    {
+        final BlockSize blockSize = header.blockSize();
+        final int storedByteLength = header.storedByteLength();
+        final ByteBuffer buffer = block.underlyingBuffer();
+
+        buffer.clear();
+        if (storedByteLength == blockSize.byteLength())
+        {
+            channel.read(buffer, position);
+            return;
+        }
+
+        final int dataLength = storedByteLength - blockSize.trailerLength();
+
+        buffer.limit(dataLength);
+        channel.read(buffer, position);
+        block.clear(dataLength, blockSize.checkpointOffset() - dataLength);
+
+        buffer.limit(blockSize.byteLength());
+        buffer.position(blockSize.checkpointOffset());
+        channel.read(buffer, position + dataLength);
+    }
+
+    /**
+     * Writes a block at a position, trimmed if it is frozen, returning the number of bytes written.
+     */
+    static int writeBlock(FileChannel channel, long position, Block block) throws IOException
+    {
+        final BlockSize blockSize = block.blockSize();
+        final int storedByteLength = block.storedByteLength();
+        final ByteBuffer buffer = block.underlyingBuffer();
+
+        buffer.clear();
+        if (storedByteLength == blockSize.byteLength())
+        {
+            channel.write(buffer, position);
+            return storedByteLength;
+        }
+
+        final int dataLength = storedByteLength - blockSize.trailerLength();
+
+        buffer.limit(dataLength);
+        channel.write(buffer, position);
+
+        buffer.limit(blockSize.byteLength());
+        buffer.position(blockSize.checkpointOffset());
+        channel.write(buffer, position + dataLength);
+
+        return storedByteLength;
+    }
+
+    /**
+     * Walks the headers of a data file to find the position of the last block, or -1 if the file is empty.
+     */
+    static long lastBlockPosition(FileChannel channel, BlockHeader header) throws IOException
+    {
+        final long size = channel.size();
+
+        long lastPosition = -1;
+        for (long position = 0; position < size; position += header.storedByteLength())
+        {
+            readHeader(channel, position, header);
+            lastPosition = position;
+        }
+
+        return lastPosition;
+    }
+
+    private static final long MIN_TIME_DIR_MILLIS = LocalDate.of(1000, 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    private static final long MAX_TIME_DIR_MILLIS = LocalDate.of(9999, 12, 31).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+    static File getTimeDir(File keyDir, long timestampMillis, boolean createIfNotExists) throws IOException
+    {
+        File timePath = keyDir.toPath().resolve(formatAsDate(timestampMillis)).toFile();
         if (createIfNotExists)
         {
             ensureDirExists(timePath);
@@ -74,6 +196,15 @@ public class PersistentStore
         return timePath;
     }
 
+    /**
+     * The name of the time directory of a timestamp, clamped to the years of four digits so that names compare as the
+     * dates they stand for.
+     */
+    static String getTimeDirName(long timestampMillis)
+    {
+        return formatAsDate(Math.max(MIN_TIME_DIR_MILLIS, Math.min(timestampMillis, MAX_TIME_DIR_MILLIS)));
+    }
+
     private static String formatAsDate(long timestamp)
     {
         final LocalDate date = Instant.ofEpochMilli(timestamp).atOffset(ZoneOffset.UTC).toLocalDate();
@@ -9,9 +9,11 @@ import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.function.Function;
 import java.util.stream.IntStream;
 
 import static java.nio.file.StandardOpenOption.READ;
@@ -25,11 +27,37 @@ public class PersistentStoreReader
 
     private static final Set<? extends OpenOption> READ_ONLY_OPTIONS = EnumSet.of(READ);
 
-    private final File dir;
+    private final File[] dirs;
+    private final Function<CharSequence, TimestampPrecision> timestampPrecisionForKey;
 
     public PersistentStoreReader(File dir)
     {
-        this.dir = dir;
+        this(dir, key -> TimestampPrecision.DEFAULT);
+    }
+
+    public PersistentStoreReader(File dir, Function<CharSequence, TimestampPrecision> timestampPrecisionForKey)
+    {
+        this(new File[] {dir}, timestampPrecisionForKey);
+    }
+
+    public PersistentStoreReader(File[] dirs)
+    {
+        this(dirs, key -> TimestampPrecision.DEFAULT);
+    }
+
+    /**
+     * Reads a store spread over several data directories, each key from the one its hash maps it to, see
+     * {@link ConcurrentStore}. The directories must be in the order the store was given them.
+     */
+    public PersistentStoreReader(File[] dirs, Function<CharSequence, TimestampPrecision> timestampPrecisionForKey)
+    {
+        if (0 == dirs.length)
+        {
+            throw new IllegalArgumentException("At least one directory is required");
+        }
+
+        this.dirs = dirs.clone();
+        this.timestampPrecisionForKey = timestampPrecisionForKey;
     }
 
     public Block findBlockContainingTimestamp(CharSequence key, long timestamp) throws IOException
@@ -38,8 +66,8 @@ public class PersistentStoreReader
         {
             if (query.moveNext())
             {
-                Block block = Block.newHeapBlock();
                 final Block current = query.current();
+                Block block = Block.newHeapBlock(current.blockSize());
                 current.copyTo(block);
 
                 return block;
@@ -49,11 +77,24 @@ public class PersistentStoreReader
         return null;
     }
 
+    private File dirOf(CharSequence key)
+    {
+        return 1 == dirs.length ? dirs[0] : dirs[SeriesIndex.partition(SeriesIndex.hash(key), dirs.length)];
+    }
+
     private static File nextDir(File timeDir)
     {
-        return Dirs.nextSibling(
-            timeDir,
-            candidate -> timeDir.getParent().compareTo(candidate) < 0 && PersistentStore.isTimeDir(candidate));
+        File nextDir = timeDir;
+        do
+        {
+            final File previousDir = nextDir;
+            nextDir = Dirs.nextSibling(
+                previousDir,
+                candidate -> previousDir.getParent().compareTo(candidate) < 0 && PersistentStore.isTimeDir(candidate));
+        }
+        while (null != nextDir && !PersistentStore.hasTimeSeries(nextDir));
+
+        return nextDir;
     }
 
     private static File prevDir(File timeDir)
@@ -65,31 +106,33 @@ public class PersistentStoreReader
 
     private void readHeader(final BlockHeader blockHeader, final FileChannel timeSeries, final long currentPosition) throws IOException
     {
-        blockHeader.underlyingBuffer().clear();
-        timeSeries.read(blockHeader.underlyingBuffer(), currentPosition);
+        PersistentStore.readHeader(timeSeries, currentPosition, blockHeader);
     }
 
     private void readBlock(File timeDir, FileChannel fileChannel, BlockCursor blockCursor, long position) throws IOException
     {
-        blockCursor.currentBlock.underlyingBuffer().clear();
-        fileChannel.read(blockCursor.currentBlock.underlyingBuffer(), position);
-        blockCursor.setLocation(timeDir, fileChannel, position);
+        readHeader(blockCursor.header, fileChannel, position);
+        final Block block = blockCursor.blockFor(blockCursor.header.blockSize());
+
+        PersistentStore.readBlock(fileChannel, position, blockCursor.header, block);
+        blockCursor.setLocation(timeDir, fileChannel, position, block);
     }
 
     boolean findCurrentBlock(BlockCursor blockCursor) throws IOException
     {
         final BlockHeader blockHeader = BlockHeader.allocateDirect();
         final byte[] keyAsBytes = blockCursor.key.toString().getBytes(StandardCharsets.UTF_8);
-        File keyDir = PersistentStore.getKeyDir(dir, keyAsBytes, false);
+        File keyDir = PersistentStore.getKeyDir(dirOf(blockCursor.key), keyAsBytes, false);
 
         if (!keyDir.exists())
         {
             throw new NoSuchFileException("Key directory: " + keyDir.toString());
         }
 
-        File timeDir = PersistentStore.getTimeDir(keyDir, blockCursor.startTimestamp, false);
+        final TimestampPrecision timestampPrecision = timestampPrecisionForKey.apply(blockCursor.key);
+        File timeDir = PersistentStore.getTimeDir(keyDir, timestampPrecision.toMillis(blockCursor.startTimestamp), false);
 
-        if (!timeDir.exists())
+        if (!PersistentStore.hasTimeSeries(timeDir))
         {
             timeDir = nextDir(timeDir);
         }
@@ -100,7 +143,7 @@ public class PersistentStoreReader
         }
 
         final FileChannel timeSeries = PersistentStore.getTimeSeriesChannel(timeDir, READ_ONLY_OPTIONS);
-        if (timeSeries.size() < Block.BYTE_LENGTH)
+        if (0 == timeSeries.size())
         {
             throw new IOException("No data in time series for key: " + blockCursor.key + ", timeDir: " + timeDir);
         }
@@ -117,7 +160,7 @@ public class PersistentStoreReader
                 readBlock(timeDir, timeSeries, blockCursor, currentPosition);
                 return true;
             }
-            currentPosition += Block.BYTE_LENGTH;
+            currentPosition += blockHeader.storedByteLength();
         }
         while (currentPosition < timeSeries.size());
 
@@ -142,9 +185,10 @@ public class PersistentStoreReader
     {
         final boolean nextBlock;
 
-        if (blockCursor.filePosition + Block.BYTE_LENGTH < blockCursor.currentChannel.size())
+        final int storedByteLength = blockCursor.currentBlock.storedByteLength();
+        if (blockCursor.filePosition + storedByteLength < blockCursor.currentChannel.size())
         {
-            blockCursor.filePosition += Block.BYTE_LENGTH;
+            blockCursor.filePosition += storedByteLength;
             readBlock(blockCursor.currentTimeDir, blockCursor.currentChannel, blockCursor, blockCursor.filePosition);
             nextBlock = blockCursor.currentBlock.firstTimestamp() < blockCursor.endTimestamp;
         }
@@ -166,25 +210,151 @@ public class PersistentStoreReader
         return nextBlock;
     }
 
+    /**
+     * Iterates over the time ordered blocks of a series. Points stored in the late files are not included, use the
+     * decoding query or aggregate to have them merged in.
+     */
     public Cursor<Block> query(CharSequence key, long startTimestamp, long endTimestamp)
     {
         return new BlockCursor(key, startTimestamp, endTimestamp);
     }
 
+    public int query(
+        CharSequence key,
+        long startTimestamp,
+        long endTimestamp,
+        long[] timestamps,
+        double[] values,
+        int offset) throws IOException
+    {
+        final int limit = Math.min(timestamps.length, values.length);
+
+        int count = 0;
+        try (final Cursor<Block> cursor = query(key, startTimestamp, endTimestamp))
+        {
+            while (offset + count < limit && cursor.moveNext())
+            {
+                final Block block = cursor.current();
+                count += block.decodeInto(startTimestamp, endTimestamp, timestamps, values, offset + count);
+            }
+        }
+
+        final Points late = new Points();
+        forEachLatePoint(key, startTimestamp, endTimestamp, late);
+
+        return 0 == late.size ? count : late.mergeInto(timestamps, values, offset, count, limit);
+    }
+
+    public void aggregate(CharSequence key, long startTimestamp, long endTimestamp, Aggregate aggregate) throws IOException
+    {
+        try (final Cursor<Block> cursor = query(key, startTimestamp, endTimestamp))
+        {
+            while (cursor.moveNext())
+            {
+                cursor.current().aggregate(startTimestamp, endTimestamp, aggregate);
+            }
+        }
+
+        forEachLatePoint(key, startTimestamp, endTimestamp, aggregate);
+    }
+
+    /**
+     * Visits every point of a series in a time range, those of the time ordered blocks in order followed by the late
+     * ones in arrival order.
+     */
+    void forEachPoint(CharSequence key, long startTimestamp, long endTimestamp, ValueConsumer consumer) throws IOException
+    {
+        final ValueConsumer inRange =
+            (timestamp, value) -> timestamp < startTimestamp || endTimestamp <= timestamp || consumer.accept(timestamp, value);
+
+        try (final Cursor<Block> cursor = query(key, startTimestamp, endTimestamp))
+        {
+            while (cursor.moveNext())
+            {
+                cursor.current().foreach(inRange);
+            }
+        }
+
+        forEachLatePoint(key, startTimestamp, endTimestamp, consumer);
+    }
+
+    private void forEachLatePoint(
+        CharSequence key, long startTimestamp, long endTimestamp, ValueConsumer consumer) throws IOException
+    {
+        final File keyDir = PersistentStore.getKeyDir(dirOf(key), key, false);
+        final ValueConsumer inRange =
+            (timestamp, value) -> timestamp < startTimestamp || endTimestamp <= timestamp || consumer.accept(timestamp, value);
+
+        final BlockHeader header = BlockHeader.allocateDirect();
+        final Block[] blocksBySize = new Block[BlockSize.values().length];
+        for (final File timeDir : lateTimeDirs(keyDir, key, startTimestamp, endTimestamp))
+        {
+            try (FileChannel late = PersistentStore.getLateChannel(timeDir, READ_ONLY_OPTIONS))
+            {
+                for (long position = 0; position < late.size(); position += header.storedByteLength())
+                {
+                    readHeader(header, late, position);
+
+                    Block block = blocksBySize[header.blockSize().ordinal()];
+                    if (null == block)
+                    {
+                        block = Block.newHeapBlock(header.blockSize());
+                        blocksBySize[header.blockSize().ordinal()] = block;
+                    }
+
+                    PersistentStore.readBlock(late, position, header, block);
+                    block.foreach(inRange);
+                }
+            }
+            catch (NoSuchFileException e)
+            {
+                // No points of this day have arrived late.
+            }
+        }
+    }
+
+    /**
+     * The time directories of the days a query covers, in date order. Late points are stored with the day they fall
+     * on, so those of other days need not be read.
+     */
+    private File[] lateTimeDirs(File keyDir, CharSequence key, long startTimestamp, long endTimestamp)
+    {
+        if (endTimestamp <= startTimestamp)
+        {
+            return new File[0];
+        }
+
+        final TimestampPrecision timestampPrecision = timestampPrecisionForKey.apply(key);
+        final String firstDay = PersistentStore.getTimeDirName(timestampPrecision.toMillis(startTimestamp));
+        final String lastDay = PersistentStore.getTimeDirName(timestampPrecision.toMillis(endTimestamp - 1));
+
+        final File[] timeDirs = keyDir.listFiles(
+            file -> PersistentStore.isTimeDir(file.getName()) &&
+                firstDay.compareTo(file.getName()) <= 0 && file.getName().compareTo(lastDay) <= 0);
+        if (null == timeDirs)
+        {
+            return new File[0];
+        }
+
+        Arrays.sort(timeDirs);
+        return timeDirs;
+    }
+
     public boolean exists(final CharSequence key) throws IOException
     {
-        return PersistentStore.getKeyDir(dir, key, false).exists();
+        return PersistentStore.getKeyDir(dirOf(key), key, false).exists();
     }
 
     public long lastTimestamp(final String key) throws IOException
     {
-        final File keyDir = PersistentStore.getKeyDir(dir, key, false);
+        final File keyDir = PersistentStore.getKeyDir(dirOf(key), key, false);
         if (null == keyDir)
         {
             return -1;
         }
 
-        final File timeDir = Dirs.lastInDir(keyDir, PersistentStore::isTimeDir);
+        final File timeDir = Dirs.lastInDir(
+            keyDir, name -> PersistentStore.isTimeDir(name) && PersistentStore.hasTimeSeries(new File(keyDir, name)));
         if (null == timeDir)
         {
             return -1;
@@ -192,16 +362,15 @@ public class PersistentStoreReader
 
         try (final FileChannel timeSeriesChannel = PersistentStore.getTimeSeriesChannel(timeDir, READ_ONLY_OPTIONS))
         {
-            if (timeSeriesChannel.size() < Block.BYTE_LENGTH)
+            if (0 == timeSeriesChannel.size())
             {
                 prevDir(timeDir);
             }
 
             final BlockHeader header = BlockHeader.allocateDirect();
 
-            readHeader(header, timeSeriesChannel, timeSeriesChannel.size() - Block.BYTE_LENGTH);
-
-            return header.lastTimestamp();
+            final long position = PersistentStore.lastBlockPosition(timeSeriesChannel, header);
+            return PersistentStore.readLastTimestamp(timeSeriesChannel, position, header);
         }
     }
 
@@ -210,9 +379,12 @@ public class PersistentStoreReader
         private final CharSequence key;
         private final long startTimestamp;
         private final long endTimestamp;
-        private final Block currentBlock = Block.newDirectBlock();
+        private final BlockHeader header = BlockHeader.allocateDirect();
+        private final Block[] blocksBySize = new Block[BlockSize.values().length];
         private final Set<FileChannel> channelsToClose = new HashSet<>();
 
+        private Block currentBlock = null;
+
         private File currentTimeDir = null;
         private FileChannel currentChannel = null;
         private long filePosition = -1;
@@ -225,11 +397,24 @@ public class PersistentStoreReader
             this.endTimestamp = endTimestamp;
         }
 
-        private void setLocation(File timeDir, FileChannel timeSeriesChannel, long filePosition)
+        private Block blockFor(BlockSize blockSize)
+        {
+            Block block = blocksBySize[blockSize.ordinal()];
+            if (null == block)
+            {
+                block = Block.newDirectBlock(blockSize);
+                blocksBySize[blockSize.ordinal()] = block;
+            }
+
+            return block;
+        }
+
+        private void setLocation(File timeDir, FileChannel timeSeriesChannel, long filePosition, Block block)
         {
             this.currentTimeDir = timeDir;
             this.currentChannel = timeSeriesChannel;
             this.filePosition = filePosition;
+            this.currentBlock = block;
 
             channelsToClose.add(timeSeriesChannel);
         }
@@ -285,4 +470,66 @@ public class PersistentStoreReader
             // No-op
         }
     }
+
+    /**
+     * Late points of a query, collected in arrival order and merged into the time ordered result.
+     */
+    private static final class Points implements ValueConsumer
+    {
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size = 0;
+
+        @Override
+        public boolean accept(long timestamp, double value)
+        {
+            if (size == timestamps.length)
+            {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            int index = size;
+            while (index > 0 && timestamps[index - 1] > timestamp)
+            {
+                timestamps[index] = timestamps[index - 1];
+                values[index] = values[index - 1];
+                index--;
+            }
+
+            timestamps[index] = timestamp;
+            values[index] = value;
+            size++;
+
+            return true;
+        }
+
+        int mergeInto(long[] outTimestamps, double[] outValues, int offset, int count, int limit)
+        {
+            final long[] mainTimestamps = Arrays.copyOfRange(outTimestamps, offset, offset + count);
+            final double[] mainValues = Arrays.copyOfRange(outValues, offset, offset + count);
+
+            int main = 0;
+            int late = 0;
+            int out = offset;
+            while (out < limit && (main < count || late < size))
+            {
+                if (late == size || (main < count && mainTimestamps[main] <= timestamps[late]))
+                {
+                    outTimestamps[out] = mainTimestamps[main];
+                    outValues[out] = mainValues[main];
+                    main++;
+                }
+                else
+                {
+                    outTimestamps[out] = timestamps[late];
+                    outValues[out] = values[late];
+                    late++;
+                }
+                out++;
+            }
+
+            return out - offset;
+        }
+    }
 }
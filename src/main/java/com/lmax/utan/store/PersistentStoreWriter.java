@@ -1,5 +1,7 @@
 package com.lmax.utan.store;
 
+import org.agrona.ErrorHandler;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -8,8 +10,13 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.OpenOption;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.lmax.utan.io.Dirs.ensureDirExists;
 import static java.lang.ThreadLocal.withInitial;
@@ -17,22 +24,74 @@ import static java.nio.file.StandardOpenOption.CREATE;
 import static java.nio.file.StandardOpenOption.READ;
 import static java.nio.file.StandardOpenOption.WRITE;
 
+/**
+ * Stores blocks in the data files of each key. Data files are forced to disk by {@link #sync()}, and in the background
+ * as the {@link DurabilityPolicy} says. The files written since the last sync are tracked so that a sync forces only
+ * those, as a group.
+ */
 public class PersistentStoreWriter
 {
     private static final long BLOCK_ALREADY_FROZEN = -1;
     private static final long BLOCK_OLDER_THAN_EXISTING = -2;
     private final static Set<? extends OpenOption> READ_WRITE_OPTIONS = EnumSet.of(CREATE, READ, WRITE);
+    private final static Set<? extends OpenOption> WRITE_OPTIONS = EnumSet.of(WRITE);
     private final Map<String, File> keyDirCache = new HashMap<>();
+    private final Map<String, LastBlock> lastBlockCache = new HashMap<>();
+    private final Map<String, LastBlock> lastLateBlockCache = new HashMap<>();
+    private final Set<File> unsyncedTimeDirs = ConcurrentHashMap.newKeySet();
+    private final Set<File> unsyncedLateTimeDirs = ConcurrentHashMap.newKeySet();
+    private final AtomicLong syncs = new AtomicLong();
 
     private final File dir;
+    private final DurabilityPolicy durabilityPolicy;
+    private final ErrorHandler errorHandler;
+    private final Thread syncThread;
+    private volatile boolean syncing = true;
+    private volatile IOException backgroundSyncFailure = null;
 
     private final ThreadLocal<BlockHeader> currentBlock = withInitial(BlockHeader::allocateDirect);
 
     public PersistentStoreWriter(File dir) throws IOException
+    {
+        this(dir, DurabilityPolicy.none(), Thread::new, throwable -> { });
+    }
+
+    /**
+     * @param threadFactory creates the sync thread, unless the policy is none. It is started by {@link #start()}.
+     * @param errorHandler  told of each sync that fails on the sync thread, which the next {@link #sync()} throws.
+     */
+    public PersistentStoreWriter(
+        File dir, DurabilityPolicy durabilityPolicy, ThreadFactory threadFactory, ErrorHandler errorHandler)
+        throws IOException
     {
         ensureDirExists(dir);
 
         this.dir = dir;
+        this.durabilityPolicy = durabilityPolicy;
+        this.errorHandler = errorHandler;
+        this.syncThread = durabilityPolicy.isNone() ? null : threadFactory.newThread(this::runSyncs);
+    }
+
+    public void start()
+    {
+        if (null != syncThread)
+        {
+            syncThread.start();
+        }
+    }
+
+    /**
+     * Stops the sync thread, leaving any files written since its last sync to an explicit {@link #sync()}.
+     */
+    public void close() throws InterruptedException
+    {
+        syncing = false;
+
+        if (null != syncThread && syncThread.isAlive())
+        {
+            LockSupport.unpark(syncThread);
+            syncThread.join();
+        }
     }
 
     public File keyDir(String key)
@@ -55,13 +114,17 @@ public class PersistentStoreWriter
     public void store(CharSequence key, Block block) throws IOException
     {
         final File keyDir = keyDirCache.computeIfAbsent(key.toString(), this::keyDir);
-        final File timeDir = PersistentStore.getTimeDir(keyDir, block.firstTimestamp(), true);
+        final long firstTimestampMillis = block.timestampPrecision().toMillis(block.firstTimestamp());
+        final File timeDir = PersistentStore.getTimeDir(keyDir, firstTimestampMillis, true);
+
+        final LastBlock lastBlock = lastBlockCache.computeIfAbsent(key.toString(), k -> new LastBlock());
 
         try (FileChannel timeSeries = PersistentStore.getTimeSeriesChannel(timeDir, READ_WRITE_OPTIONS))
         {
-            final long writePosition = getWritePosition(timeSeries, block);
-            block.underlyingBuffer().clear();
-            timeSeries.write(block.underlyingBuffer(), writePosition);
+            final long writePosition = getWritePosition(timeSeries, timeDir, lastBlock, block, true);
+            write(timeSeries, timeDir, lastBlock, writePosition, block);
+            unsyncedTimeDirs.add(timeDir);
+            requestSyncIfFrozen(block);
         }
         catch (Exception e)
         {
@@ -70,18 +133,186 @@ public class PersistentStoreWriter
         }
     }
 
-    private long getWritePosition(FileChannel timeSeries, Block incomingBlock) throws IOException
+    /**
+     * Stores a block of points that arrived too late to be written in order, in the late file of the day of its first
+     * point. Each late block must only hold points of one day, so that a query finds them with that day. Late blocks
+     * are kept in arrival order, so the block replaces the last one stored by this writer unless that one is frozen.
+     */
+    public void storeLate(CharSequence key, Block block) throws IOException
+    {
+        final File keyDir = keyDirCache.computeIfAbsent(key.toString(), this::keyDir);
+        final long firstTimestampMillis = block.timestampPrecision().toMillis(block.firstTimestamp());
+        final File timeDir = PersistentStore.getTimeDir(keyDir, firstTimestampMillis, true);
+
+        final LastBlock lastBlock = lastLateBlockCache.computeIfAbsent(key.toString(), k -> new LastBlock());
+
+        try (FileChannel late = PersistentStore.getLateChannel(timeDir, READ_WRITE_OPTIONS))
+        {
+            final long writePosition = getWritePosition(late, timeDir, lastBlock, block, false);
+            write(late, timeDir, lastBlock, writePosition, block);
+            unsyncedLateTimeDirs.add(timeDir);
+            requestSyncIfFrozen(block);
+        }
+        catch (Exception e)
+        {
+            final String message = "Failed to write late block - name: " + key + ", dir: " + timeDir;
+            throw new IOException(message, e);
+        }
+    }
+
+    /**
+     * Forces the data files written since the last sync to disk, so that the blocks stored survive a crash. Waits for
+     * a sync already under way on the sync thread, as it may be forcing files written before this call. Throws the
+     * failure of a sync on the sync thread since the last call, even if forcing its files again succeeds, as the
+     * pages that failed to be written may have been dropped.
+     */
+    public synchronized void sync() throws IOException
+    {
+        final IOException failure = backgroundSyncFailure;
+        backgroundSyncFailure = null;
+
+        forceUnsynced();
+
+        if (null != failure)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Group syncs done, explicitly or on the sync thread.
+     */
+    public long syncs()
+    {
+        return syncs.get();
+    }
+
+    private void requestSyncIfFrozen(Block block)
+    {
+        if (durabilityPolicy.isOnFreeze() && block.isFrozen())
+        {
+            LockSupport.unpark(syncThread);
+        }
+    }
+
+    private void runSyncs()
+    {
+        while (syncing)
+        {
+            if (durabilityPolicy.isOnFreeze())
+            {
+                LockSupport.park(this);
+            }
+            else
+            {
+                LockSupport.parkNanos(this, durabilityPolicy.intervalNanos());
+            }
+
+            if (unsyncedTimeDirs.isEmpty() && unsyncedLateTimeDirs.isEmpty())
+            {
+                continue;
+            }
+
+            try
+            {
+                synchronized (this)
+                {
+                    forceUnsynced();
+                }
+            }
+            catch (IOException e)
+            {
+                // The files are forced again on the next sync, which reports the failure to its caller.
+                backgroundSyncFailure = e;
+                errorHandler.onError(e);
+            }
+        }
+    }
+
+    private void forceUnsynced() throws IOException
+    {
+        force(unsyncedTimeDirs, false);
+        force(unsyncedLateTimeDirs, true);
+        syncs.incrementAndGet();
+    }
+
+    private static void force(Set<File> unsyncedDirs, boolean late) throws IOException
+    {
+        final Iterator<File> dirs = unsyncedDirs.iterator();
+        while (dirs.hasNext())
+        {
+            // Removed before the force, so a write racing with it marks the file again.
+            final File dir = dirs.next();
+            dirs.remove();
+
+            try (FileChannel channel = late ?
+                PersistentStore.getLateChannel(dir, WRITE_OPTIONS) :
+                PersistentStore.getTimeSeriesChannel(dir, WRITE_OPTIONS))
+            {
+                channel.force(false);
+            }
+            catch (IOException e)
+            {
+                unsyncedDirs.add(dir);
+                throw e;
+            }
+        }
+    }
+
+    private static void write(FileChannel channel, File dir, LastBlock lastBlock, long position, Block block)
+        throws IOException
+    {
+        final int written = PersistentStore.writeBlock(channel, position, block);
+
+        // A frozen block is shorter than the copy it replaces.
+        if (position + written < channel.size())
+        {
+            channel.truncate(position + written);
+        }
+
+        lastBlock.dir = dir;
+        lastBlock.position = position;
+    }
+
+    private long getWritePosition(
+        FileChannel timeSeries, File dir, LastBlock lastBlock, Block incomingBlock, boolean ordered) throws IOException
     {
         if (timeSeries.size() == 0)
         {
             return 0;
         }
 
-        // Read last block.
+        // All blocks in a data file share the size class of the first one.
         BlockHeader storedBlock = currentBlock.get();
         storedBlock.underlyingBuffer().clear();
-        final long position = timeSeries.size() - Block.BYTE_LENGTH;
-        timeSeries.read(storedBlock.underlyingBuffer(), position);
+        timeSeries.read(storedBlock.underlyingBuffer(), 0);
+
+        final BlockSize storedBlockSize = storedBlock.blockSize();
+        if (storedBlockSize != incomingBlock.blockSize())
+        {
+            throw new IOException("Stored block size is " + storedBlockSize + ", incoming: " + incomingBlock);
+        }
+
+        // Frozen blocks are stored trimmed, so the last block is found by walking the file once and then remembered.
+        if (!dir.equals(lastBlock.dir) || timeSeries.size() <= lastBlock.position)
+        {
+            lastBlock.dir = dir;
+            lastBlock.position = PersistentStore.lastBlockPosition(timeSeries, storedBlock);
+
+            // A late block left active by an earlier writer holds points this one has not got, so it is kept.
+            if (!ordered)
+            {
+                return timeSeries.size();
+            }
+        }
+
+        final long position = lastBlock.position;
+        PersistentStore.readHeader(timeSeries, position, storedBlock);
+
+        if (!ordered)
+        {
+            return storedBlock.isFrozen() ? timeSeries.size() : position;
+        }
 
         if (incomingBlock.firstTimestamp() == storedBlock.firstTimestamp() && storedBlock.isFrozen())
         {
@@ -96,6 +327,12 @@ public class PersistentStoreWriter
         return storedBlock.isFrozen() ? timeSeries.size() : position;
     }
 
+    private static final class LastBlock
+    {
+        private File dir = null;
+        private long position = -1;
+    }
+
     private void ensureKeyFileExists(File keyPath, byte[] key) throws IOException
     {
         File keyFile = new File(keyPath, "key.txt");
@@ -0,0 +1,231 @@
+package com.lmax.utan.store;
+
+/**
+ * Holds back the newest points of a series for a lateness window, so that points arriving out of order are put back
+ * in timestamp order before they are encoded. A point is released once the newest timestamp is at least the window
+ * ahead of it. A point older than the last one released can no longer be ordered and goes to the late consumer.
+ *
+ * Late arrivals are usually close to the newest point, so they are inserted by shifting from the end of the buffer.
+ * There is a buffer per series, so nothing is allocated until a point is held back, and with no window none ever is.
+ * Not thread safe, each series has a single writer.
+ */
+public final class ReorderBuffer
+{
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long[] NO_TIMESTAMPS = new long[0];
+    private static final double[] NO_VALUES = new double[0];
+
+    private final long window;
+    private final ValueConsumer inOrder;
+    private final ValueConsumer late;
+
+    private long[] timestamps = NO_TIMESTAMPS;
+    private double[] values = NO_VALUES;
+    private int head = 0;
+    private int tail = 0;
+    private long maxTimestamp = Long.MIN_VALUE;
+    private long lastReleasedTimestamp = Long.MIN_VALUE;
+    private long reorderedCount = 0;
+    private long lateCount = 0;
+
+    public ReorderBuffer(long window, ValueConsumer inOrder, ValueConsumer late)
+    {
+        if (window < 0)
+        {
+            throw new IllegalArgumentException("Reorder window must not be negative: " + window);
+        }
+
+        this.window = window;
+        this.inOrder = inOrder;
+        this.late = late;
+    }
+
+    public void append(long timestamp, double value)
+    {
+        if (timestamp < lastReleasedTimestamp)
+        {
+            lateCount++;
+            late.accept(timestamp, value);
+            return;
+        }
+
+        if (0 == window && head == tail)
+        {
+            lastReleasedTimestamp = timestamp;
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            inOrder.accept(timestamp, value);
+            return;
+        }
+
+        insert(timestamp, value);
+        maxTimestamp = Math.max(maxTimestamp, timestamp);
+
+        while (head < tail && maxTimestamp - timestamps[head] >= window)
+        {
+            releaseHead();
+        }
+    }
+
+    /**
+     * Appends the points from index from up to index to. With no window, runs of points in timestamp order are handed
+     * to the in order consumer as a batch, the rest are appended one at a time.
+     */
+    public void appendAll(long[] timestamps, double[] values, int from, int to)
+    {
+        int index = from;
+        while (index < to)
+        {
+            if (0 == window && head == tail && timestamps[index] >= lastReleasedTimestamp)
+            {
+                int end = index + 1;
+                while (end < to && timestamps[end] >= timestamps[end - 1])
+                {
+                    end++;
+                }
+
+                lastReleasedTimestamp = timestamps[end - 1];
+                maxTimestamp = Math.max(maxTimestamp, lastReleasedTimestamp);
+                inOrder.acceptAll(timestamps, values, index, end);
+                index = end;
+            }
+            else
+            {
+                append(timestamps[index], values[index]);
+                index++;
+            }
+        }
+    }
+
+    /**
+     * Releases every buffered point, as if the window had passed.
+     */
+    public void drain()
+    {
+        while (head < tail)
+        {
+            releaseHead();
+        }
+    }
+
+    /**
+     * Releases the buffered points at or before a timestamp, as if the window had passed them.
+     */
+    public void releaseUpTo(long timestamp)
+    {
+        while (head < tail && timestamps[head] <= timestamp)
+        {
+            releaseHead();
+        }
+    }
+
+    /**
+     * Whether every point at or before a timestamp has been released.
+     */
+    public boolean hasReleasedUpTo(long timestamp)
+    {
+        return head == tail || timestamps[head] > timestamp;
+    }
+
+    public int size()
+    {
+        return tail - head;
+    }
+
+    /**
+     * The newest timestamp appended, or Long.MIN_VALUE if there has been none.
+     */
+    public long maxTimestamp()
+    {
+        return maxTimestamp;
+    }
+
+    public long window()
+    {
+        return window;
+    }
+
+    /**
+     * Points that arrived out of order but within the window, and were released in order.
+     */
+    public long reorderedCount()
+    {
+        return reorderedCount;
+    }
+
+    /**
+     * Points that arrived after the window had passed them, and went to the late consumer.
+     */
+    public long lateCount()
+    {
+        return lateCount;
+    }
+
+    private void insert(long timestamp, double value)
+    {
+        if (tail == timestamps.length)
+        {
+            makeRoom();
+        }
+
+        int index = tail;
+        while (index > head && timestamps[index - 1] > timestamp)
+        {
+            timestamps[index] = timestamps[index - 1];
+            values[index] = values[index - 1];
+            index--;
+        }
+
+        if (index != tail)
+        {
+            reorderedCount++;
+        }
+
+        timestamps[index] = timestamp;
+        values[index] = value;
+        tail++;
+    }
+
+    private void releaseHead()
+    {
+        final long timestamp = timestamps[head];
+        final double value = values[head];
+
+        head++;
+        if (head == tail)
+        {
+            head = 0;
+            tail = 0;
+        }
+
+        lastReleasedTimestamp = timestamp;
+        inOrder.accept(timestamp, value);
+    }
+
+    private void makeRoom()
+    {
+        final int size = tail - head;
+
+        if (0 == timestamps.length)
+        {
+            timestamps = new long[INITIAL_CAPACITY];
+            values = new double[INITIAL_CAPACITY];
+        }
+        else if (size < timestamps.length / 2)
+        {
+            System.arraycopy(timestamps, head, timestamps, 0, size);
+            System.arraycopy(values, head, values, 0, size);
+        }
+        else
+        {
+            final long[] newTimestamps = new long[timestamps.length * 2];
+            final double[] newValues = new double[values.length * 2];
+            System.arraycopy(timestamps, head, newTimestamps, 0, size);
+            System.arraycopy(values, head, newValues, 0, size);
+            timestamps = newTimestamps;
+            values = newValues;
+        }
+
+        head = 0;
+        tail = size;
+    }
+}
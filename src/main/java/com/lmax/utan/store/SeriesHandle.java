@@ -0,0 +1,44 @@
+package com.lmax.utan.store;
+
+/**
+ * A series of a {@link ConcurrentStore} resolved to its shard and id, so that appending to it needs no lookup. The
+ * store hands out one handle per series, which producers keep for the life of the store.
+ */
+public final class SeriesHandle
+{
+    final int shard;
+    final int id;
+    private final String key;
+
+    SeriesHandle(int shard, int id, String key)
+    {
+        this.shard = shard;
+        this.id = id;
+        this.key = key;
+    }
+
+    public int shard()
+    {
+        return shard;
+    }
+
+    public int id()
+    {
+        return id;
+    }
+
+    public String key()
+    {
+        return key;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "SeriesHandle{" +
+            "shard=" + shard +
+            ", id=" + id +
+            ", key='" + key + '\'' +
+            '}';
+    }
+}
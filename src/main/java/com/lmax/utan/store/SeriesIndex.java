@@ -0,0 +1,309 @@
+package com.lmax.utan.store;
+
+import org.agrona.DirectBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps the UTF-8 bytes of series keys to dense int ids, allocated in the order keys are first seen. The slots and
+ * the key bytes are held off heap in an open addressing table with linear probing, so looking up a known key from a
+ * buffer or a {@link CharSequence} allocates nothing and does not need a String.
+ *
+ * Not thread safe, each index has a single writer.
+ */
+public final class SeriesIndex
+{
+    private static final int SLOT_LENGTH = 8;
+    private static final int SLOT_HASH_OFFSET = 0;
+    private static final int SLOT_ID_OFFSET = 4;
+    private static final int ENTRY_LENGTH = 8;
+    private static final int ENTRY_KEY_OFFSET = 0;
+    private static final int ENTRY_KEY_LENGTH = 4;
+    private static final int INITIAL_SLOTS = 256;
+    private static final int INITIAL_KEY_BYTES = 4096;
+    private static final int[] UTF_8_LEAD_BITS = {0, 0, 0xC0, 0xE0, 0xF0};
+
+    private UnsafeBuffer slots = allocate(INITIAL_SLOTS * SLOT_LENGTH);
+    private UnsafeBuffer entries = allocate(INITIAL_SLOTS / 2 * ENTRY_LENGTH);
+    private UnsafeBuffer keys = allocate(INITIAL_KEY_BYTES);
+    private UnsafeBuffer encodedKey = allocate(256);
+    private int slotMask = INITIAL_SLOTS - 1;
+    private int keysLength = 0;
+    private int size = 0;
+
+    /**
+     * The id of a key, adding it if it has not been seen.
+     */
+    public int idOf(DirectBuffer buffer, int offset, int length)
+    {
+        return idOf(hash(buffer, offset, length), buffer, offset, length);
+    }
+
+    public int idOf(CharSequence key)
+    {
+        return idOf(hash(key), key);
+    }
+
+    int idOf(int hash, CharSequence key)
+    {
+        return idOf(hash, encodedKey, 0, encode(key));
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * The key of an id, as a new String.
+     */
+    public String key(int id)
+    {
+        final int entryOffset = id * ENTRY_LENGTH;
+        return keys.getStringWithoutLengthUtf8(
+            entries.getInt(entryOffset + ENTRY_KEY_OFFSET), entries.getInt(entryOffset + ENTRY_KEY_LENGTH));
+    }
+
+    /**
+     * Maps a hash onto one of count partitions, from its high bits so that it is independent of the slot of the key.
+     * Partitions nest, when one count is a multiple of another each of its partitions falls inside one of the other.
+     */
+    public static int partition(int hash, int count)
+    {
+        return (int) (((hash & 0xFFFFFFFFL) * count) >>> 32);
+    }
+
+    /**
+     * The hash of a key from its UTF-8 bytes.
+     */
+    public static int hash(DirectBuffer buffer, int offset, int length)
+    {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+        {
+            hash = 31 * hash + (buffer.getByte(offset + i) & 0xFF);
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * The hash of a key, the same as that of its UTF-8 bytes.
+     */
+    public static int hash(CharSequence key)
+    {
+        int hash = 0;
+        for (int i = 0, n = key.length(); i < n; i++)
+        {
+            final int codePoint = codePointAt(key, i);
+            final int length = utf8Length(codePoint);
+
+            for (int b = 0; b < length; b++)
+            {
+                hash = 31 * hash + utf8Byte(codePoint, length, b);
+            }
+
+            if (codePoint > Character.MAX_VALUE)
+            {
+                i++;
+            }
+        }
+
+        return mix(hash);
+    }
+
+    int idOf(int hash, DirectBuffer buffer, int offset, int length)
+    {
+        int slot = hash & slotMask;
+        while (true)
+        {
+            final int slotOffset = slot * SLOT_LENGTH;
+            final int idPlusOne = slots.getInt(slotOffset + SLOT_ID_OFFSET);
+
+            if (0 == idPlusOne)
+            {
+                return add(slotOffset, hash, buffer, offset, length);
+            }
+
+            if (slots.getInt(slotOffset + SLOT_HASH_OFFSET) == hash && keyEquals(idPlusOne - 1, buffer, offset, length))
+            {
+                return idPlusOne - 1;
+            }
+
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    private boolean keyEquals(int id, DirectBuffer buffer, int offset, int length)
+    {
+        final int entryOffset = id * ENTRY_LENGTH;
+        if (entries.getInt(entryOffset + ENTRY_KEY_LENGTH) != length)
+        {
+            return false;
+        }
+
+        final int keyOffset = entries.getInt(entryOffset + ENTRY_KEY_OFFSET);
+
+        int i = 0;
+        for (; i + 8 <= length; i += 8)
+        {
+            if (keys.getLong(keyOffset + i) != buffer.getLong(offset + i))
+            {
+                return false;
+            }
+        }
+
+        for (; i < length; i++)
+        {
+            if (keys.getByte(keyOffset + i) != buffer.getByte(offset + i))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int add(int slotOffset, int hash, DirectBuffer buffer, int offset, int length)
+    {
+        final int id = size;
+
+        if (keysLength + length > keys.capacity())
+        {
+            keys = grow(keys, Math.max(keys.capacity() * 2, keysLength + length), keysLength);
+        }
+
+        if ((id + 1) * ENTRY_LENGTH > entries.capacity())
+        {
+            entries = grow(entries, entries.capacity() * 2, id * ENTRY_LENGTH);
+        }
+
+        buffer.getBytes(offset, keys, keysLength, length);
+        entries.putInt(id * ENTRY_LENGTH + ENTRY_KEY_OFFSET, keysLength);
+        entries.putInt(id * ENTRY_LENGTH + ENTRY_KEY_LENGTH, length);
+        keysLength += length;
+
+        slots.putInt(slotOffset + SLOT_HASH_OFFSET, hash);
+        slots.putInt(slotOffset + SLOT_ID_OFFSET, id + 1);
+        size++;
+
+        // Keep the table at most half full so that probe sequences stay short.
+        if (size * 2 > slotMask + 1)
+        {
+            rehash();
+        }
+
+        return id;
+    }
+
+    private void rehash()
+    {
+        final UnsafeBuffer oldSlots = slots;
+        final int oldSlotCount = slotMask + 1;
+
+        slots = allocate(oldSlotCount * 2 * SLOT_LENGTH);
+        slotMask = oldSlotCount * 2 - 1;
+
+        for (int i = 0; i < oldSlotCount; i++)
+        {
+            final int idPlusOne = oldSlots.getInt(i * SLOT_LENGTH + SLOT_ID_OFFSET);
+            if (0 != idPlusOne)
+            {
+                final int hash = oldSlots.getInt(i * SLOT_LENGTH + SLOT_HASH_OFFSET);
+
+                int slot = hash & slotMask;
+                while (0 != slots.getInt(slot * SLOT_LENGTH + SLOT_ID_OFFSET))
+                {
+                    slot = (slot + 1) & slotMask;
+                }
+
+                slots.putInt(slot * SLOT_LENGTH + SLOT_HASH_OFFSET, hash);
+                slots.putInt(slot * SLOT_LENGTH + SLOT_ID_OFFSET, idPlusOne);
+            }
+        }
+    }
+
+    private int encode(CharSequence key)
+    {
+        final int maxLength = key.length() * 3;
+        if (maxLength > encodedKey.capacity())
+        {
+            encodedKey = allocate(Math.max(encodedKey.capacity() * 2, maxLength));
+        }
+
+        int position = 0;
+        for (int i = 0, n = key.length(); i < n; i++)
+        {
+            final int codePoint = codePointAt(key, i);
+            final int length = utf8Length(codePoint);
+
+            for (int b = 0; b < length; b++)
+            {
+                encodedKey.putByte(position++, (byte) utf8Byte(codePoint, length, b));
+            }
+
+            if (codePoint > Character.MAX_VALUE)
+            {
+                i++;
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * The code point at an index, where a lone surrogate is replaced with '?' as String.getBytes does.
+     */
+    private static int codePointAt(CharSequence key, int index)
+    {
+        final char c = key.charAt(index);
+        if (!Character.isSurrogate(c))
+        {
+            return c;
+        }
+
+        if (Character.isHighSurrogate(c) && index + 1 < key.length() && Character.isLowSurrogate(key.charAt(index + 1)))
+        {
+            return Character.toCodePoint(c, key.charAt(index + 1));
+        }
+
+        return '?';
+    }
+
+    private static int utf8Length(int codePoint)
+    {
+        return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint <= Character.MAX_VALUE ? 3 : 4;
+    }
+
+    private static int utf8Byte(int codePoint, int length, int index)
+    {
+        if (1 == length)
+        {
+            return codePoint;
+        }
+
+        final int shift = 6 * (length - 1 - index);
+
+        return 0 == index ? UTF_8_LEAD_BITS[length] | (codePoint >>> shift) : 0x80 | ((codePoint >>> shift) & 0x3F);
+    }
+
+    private static int mix(int hash)
+    {
+        final int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static UnsafeBuffer allocate(int length)
+    {
+        return new UnsafeBuffer(ByteBuffer.allocateDirect(length));
+    }
+
+    private static UnsafeBuffer grow(UnsafeBuffer buffer, int length, int used)
+    {
+        final UnsafeBuffer grown = allocate(length);
+        grown.putBytes(0, buffer, 0, used);
+
+        return grown;
+    }
+}
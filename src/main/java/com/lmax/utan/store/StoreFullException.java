@@ -0,0 +1,20 @@
+package com.lmax.utan.store;
+
+/**
+ * Thrown by an append when the blocks a store holds in memory exceed its budget, see {@link BackpressurePolicy}.
+ * Thrown on the ingest path, so it has no stack trace.
+ */
+@SuppressWarnings("serial")
+public final class StoreFullException extends RuntimeException
+{
+    public StoreFullException(final String message)
+    {
+        super(message);
+    }
+
+    @Override
+    public Throwable fillInStackTrace()
+    {
+        return this;
+    }
+}
@@ -1,24 +1,141 @@
 package com.lmax.utan.store;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.Function;
 
 public class TimeSeriesStore
 {
     private final Map<String, CurrentBlock> nameToBlockMap = new HashMap<>();
     private final PersistentStoreWriter writer;
+    private final Function<String, BlockSize> blockSizeForName;
+    private final Function<String, TimestampPrecision> timestampPrecisionForName;
+    private final long latenessWindowMillis;
 
     public TimeSeriesStore(PersistentStoreWriter writer)
     {
+        this(writer, name -> BlockSize.DEFAULT);
+    }
+
+    public TimeSeriesStore(PersistentStoreWriter writer, Function<String, BlockSize> blockSizeForName)
+    {
+        this(writer, blockSizeForName, name -> TimestampPrecision.DEFAULT);
+    }
+
+    public TimeSeriesStore(
+        PersistentStoreWriter writer,
+        Function<String, BlockSize> blockSizeForName,
+        Function<String, TimestampPrecision> timestampPrecisionForName)
+    {
+        this(writer, blockSizeForName, timestampPrecisionForName, 0);
+    }
+
+    public TimeSeriesStore(
+        PersistentStoreWriter writer,
+        Function<String, BlockSize> blockSizeForName,
+        Function<String, TimestampPrecision> timestampPrecisionForName,
+        long latenessWindowMillis)
+    {
+        if (latenessWindowMillis < 0)
+        {
+            throw new IllegalArgumentException("Lateness window must not be negative: " + latenessWindowMillis);
+        }
+
         this.writer = writer;
+        this.blockSizeForName = blockSizeForName;
+        this.timestampPrecisionForName = timestampPrecisionForName;
+        this.latenessWindowMillis = latenessWindowMillis;
     }
 
     public void store(String name, long timestamp, double value) throws IOException
     {
-        long day = getDay(timestamp);
+        final CurrentBlock currentBlock = nameToBlockMap.computeIfAbsent(name, s -> newCurrentBlock(s, timestamp));
+
+        try
+        {
+            currentBlock.reorderBuffer.append(timestamp, value);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    private CurrentBlock newCurrentBlock(String name, long timestamp)
+    {
+        final TimestampPrecision timestampPrecision = timestampPrecisionForName.apply(name);
+        final CurrentBlock currentBlock = new CurrentBlock(blockSizeForName.apply(name), timestampPrecision, timestamp);
+
+        currentBlock.reorderBuffer = new ReorderBuffer(
+            timestampPrecision.fromMillis(latenessWindowMillis),
+            (t, v) -> appendInOrder(name, currentBlock, t, v),
+            (t, v) -> appendLate(name, currentBlock, t, v));
+
+        return currentBlock;
+    }
+
+    private boolean appendInOrder(String name, CurrentBlock currentBlock, long timestamp, double value)
+    {
+        try
+        {
+            storeInOrder(name, currentBlock, timestamp, value);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
 
-        final CurrentBlock currentBlock = nameToBlockMap.computeIfAbsent(name, s -> new CurrentBlock(Block.newDirectBlock(), day));
+        return true;
+    }
+
+    /**
+     * Late points have no later block to be written with, so the active late block is stored after each one rather
+     * than when it fills. A crash then loses no more late points than it does points stored in order.
+     */
+    private boolean appendLate(String name, CurrentBlock currentBlock, long timestamp, double value)
+    {
+        final Block lateBlock = currentBlock.lateBlock();
+
+        try
+        {
+            // Late blocks are stored with the day of their first point, so each only holds points of that day.
+            if (!lateBlock.isEmpty() && currentBlock.dayOf(timestamp) != currentBlock.dayOf(lateBlock.firstTimestamp()))
+            {
+                storeLate(name, lateBlock);
+            }
+
+            if (!lateBlock.append(timestamp, value).isOk())
+            {
+                storeLate(name, lateBlock);
+
+                if (!lateBlock.append(timestamp, value).isOk())
+                {
+                    throw pointDoesNotFit(name, lateBlock, timestamp);
+                }
+            }
+
+            writer.storeLate(name, lateBlock);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        return true;
+    }
+
+    private void storeLate(String name, Block lateBlock) throws IOException
+    {
+        lateBlock.freeze();
+        writer.storeLate(name, lateBlock);
+        lateBlock.reset();
+    }
+
+    private void storeInOrder(String name, CurrentBlock currentBlock, long timestamp, double value) throws IOException
+    {
+        final long day = currentBlock.dayOf(timestamp);
 
         if (currentBlock.currentDay != day)
         {
@@ -35,21 +152,69 @@ public class TimeSeriesStore
 
             if (!currentBlock.block.append(timestamp, value).isOk())
             {
-                throw new RuntimeException("WAT");
+                throw pointDoesNotFit(name, currentBlock.block, timestamp);
             }
         }
     }
 
+    private static IllegalStateException pointDoesNotFit(String name, Block emptyBlock, long timestamp)
+    {
+        return new IllegalStateException(
+            "Point does not fit in an empty block - name: " + name + ", timestamp: " + timestamp + ", block: " + emptyBlock);
+    }
+
     public void flush(String name) throws IOException
     {
         final CurrentBlock currentBlock = nameToBlockMap.get(name);
         if (null != currentBlock)
         {
+            try
+            {
+                currentBlock.reorderBuffer.drain();
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+
             currentBlock.block.freeze();
             writer.store(name, currentBlock.block);
+
+            if (null != currentBlock.lateBlock && !currentBlock.lateBlock.isEmpty())
+            {
+                storeLate(name, currentBlock.lateBlock);
+            }
         }
     }
 
+    /**
+     * Points that arrived out of order within the lateness window, summed over all series.
+     */
+    public long reorderedPoints()
+    {
+        long count = 0;
+        for (final CurrentBlock currentBlock : nameToBlockMap.values())
+        {
+            count += currentBlock.reorderBuffer.reorderedCount();
+        }
+
+        return count;
+    }
+
+    /**
+     * Points that arrived after the lateness window and were stored in the late segment, summed over all series.
+     */
+    public long latePoints()
+    {
+        long count = 0;
+        for (final CurrentBlock currentBlock : nameToBlockMap.values())
+        {
+            count += currentBlock.reorderBuffer.lateCount();
+        }
+
+        return count;
+    }
+
     static long getDay(final long timestamp)
     {
         return timestamp / (24 * 60 * 60 * 1000);
@@ -57,13 +222,32 @@ public class TimeSeriesStore
 
     private static class CurrentBlock
     {
+        private final TimestampPrecision timestampPrecision;
         private Block block;
         private long currentDay;
+        private ReorderBuffer reorderBuffer;
+        private Block lateBlock;
+
+        private CurrentBlock(BlockSize blockSize, TimestampPrecision timestampPrecision, long timestamp)
+        {
+            this.timestampPrecision = timestampPrecision;
+            this.block = Block.newDirectBlock(blockSize, timestampPrecision);
+            this.currentDay = dayOf(timestamp);
+        }
+
+        private long dayOf(long timestamp)
+        {
+            return getDay(timestampPrecision.toMillis(timestamp));
+        }
 
-        private CurrentBlock(Block block, long currentDay)
+        private Block lateBlock()
         {
-            this.block = block;
-            this.currentDay = currentDay;
+            if (null == lateBlock)
+            {
+                lateBlock = Block.newDirectBlock(block.blockSize(), timestampPrecision);
+            }
+
+            return lateBlock;
         }
 
         public void reset(long day)
@@ -0,0 +1,80 @@
+package com.lmax.utan.store;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The unit of the timestamps in a series, stored in the header of each {@link Block}.
+ *
+ * The widths of the delta of delta buckets grow with the precision, as the jitter between samples covers more
+ * units. Gaps that do not fit in the 32 bit bucket use a 64 bit escape.
+ */
+public enum TimestampPrecision
+{
+    MILLISECONDS(0, TimeUnit.MILLISECONDS, 7, 9, 12),
+    MICROSECONDS(1, TimeUnit.MICROSECONDS, 10, 14, 20),
+    NANOSECONDS(2, TimeUnit.NANOSECONDS, 14, 20, 26);
+
+    public static final TimestampPrecision DEFAULT = MILLISECONDS;
+
+    private static final TimestampPrecision[] VALUES = values();
+
+    private final int code;
+    private final TimeUnit unit;
+    final int shortBits;
+    final int mediumBits;
+    final int longBits;
+    final long shortMin;
+    final long mediumMin;
+    final long longMin;
+
+    TimestampPrecision(int code, TimeUnit unit, int shortBits, int mediumBits, int longBits)
+    {
+        this.code = code;
+        this.unit = unit;
+        this.shortBits = shortBits;
+        this.mediumBits = mediumBits;
+        this.longBits = longBits;
+        this.shortMin = -(1L << (shortBits - 1));
+        this.mediumMin = -(1L << (mediumBits - 1));
+        this.longMin = -(1L << (longBits - 1));
+    }
+
+    public TimeUnit unit()
+    {
+        return unit;
+    }
+
+    public long toMillis(long timestamp)
+    {
+        return unit.toMillis(timestamp);
+    }
+
+    public long fromMillis(long millis)
+    {
+        return unit.convert(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public Instant toInstant(long timestamp)
+    {
+        final long seconds = unit.toSeconds(timestamp);
+        final long remainder = timestamp - unit.convert(seconds, TimeUnit.SECONDS);
+
+        return Instant.ofEpochSecond(seconds, unit.toNanos(remainder));
+    }
+
+    int code()
+    {
+        return code;
+    }
+
+    static TimestampPrecision fromCode(int code)
+    {
+        if (code >= VALUES.length)
+        {
+            throw new IllegalStateException("Data Corrupt, invalid timestamp precision: " + code);
+        }
+
+        return VALUES[code];
+    }
+}
@@ -3,4 +3,15 @@ package com.lmax.utan.store;
 public interface ValueConsumer
 {
     boolean accept(long timestamp, double value);
+
+    /**
+     * Accepts the points from index from up to index to, in order.
+     */
+    default void acceptAll(long[] timestamps, double[] values, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            accept(timestamps[i], values[i]);
+        }
+    }
 }
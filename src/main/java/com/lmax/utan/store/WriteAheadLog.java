@@ -0,0 +1,471 @@
+package com.lmax.utan.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static com.lmax.utan.io.Dirs.ensureDirExists;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append only log of the points added to a shard of a {@link ConcurrentStore}, written ahead of the blocks that
+ * hold them so that points not yet persisted in a block survive a crash. Records are buffered and written to the
+ * current segment as one sequential stream, and the background writer forces them to disk in groups, see
+ * {@link WriteAheadLogPolicy}.
+ *
+ * A record is its length, a CRC32 of its body and the body, which starts with a type. A series is defined once per
+ * segment by its id and key, after which its points are logged by id with the timestamp and value. Replay stops at
+ * the first record of a segment that is incomplete or fails its check, as happens when a crash cuts a write short.
+ *
+ * Segments are named by an increasing sequence. Once a segment is full a new one is started, and the closed one is
+ * passed on to be deleted when the blocks holding its points are persisted.
+ *
+ * Appends come from the single thread appending to the shard, syncs from its background writer.
+ */
+public final class WriteAheadLog implements AutoCloseable
+{
+    static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final byte DEFINE_TYPE = 1;
+    private static final byte POINT_TYPE = 2;
+    private static final int POINT_BODY_LENGTH = 1 + 4 + 8 + 8;
+    private static final int MAX_KEY_BYTES = BUFFER_BYTES - RECORD_HEADER_LENGTH - 1 - 4;
+
+    private final File dir;
+    private final WriteAheadLogPolicy policy;
+    private final Consumer<File> onSegmentClosed;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ByteBuffer body = ByteBuffer.allocate(POINT_BODY_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private final Object syncLock = new Object();
+
+    private boolean[] defined = new boolean[64];
+    private long nextSequence;
+    private File segment = null;
+    private FileChannel channel = null;
+    private long segmentLength = 0;
+    private long unsyncedBytes = 0;
+    private long firstUnsyncedNanos = 0;
+    private volatile long syncs = 0;
+    private volatile long bytesLogged = 0;
+    private volatile IOException failure = null;
+
+    /**
+     * @param onSegmentClosed called from the appending thread with each full segment.
+     */
+    public WriteAheadLog(File dir, WriteAheadLogPolicy policy, Consumer<File> onSegmentClosed) throws IOException
+    {
+        ensureDirExists(dir);
+
+        this.dir = dir;
+        this.policy = policy;
+        this.onSegmentClosed = onSegmentClosed;
+
+        final File[] existing = segments(dir);
+        this.nextSequence = 0 == existing.length ? 0 : sequenceOf(existing[existing.length - 1]) + 1;
+    }
+
+    /**
+     * Logs a point of a series, defining the series first if it has not been seen in the current segment.
+     */
+    public void append(int id, String key, long timestamp, double value) throws IOException
+    {
+        File closed = null;
+
+        synchronized (this)
+        {
+            final byte[] keyBytes = isDefined(id) ? null : keyBytes(key);
+            final int defineLength = null == keyBytes ? 0 : RECORD_HEADER_LENGTH + 1 + 4 + keyBytes.length;
+            final int length = defineLength + RECORD_HEADER_LENGTH + POINT_BODY_LENGTH;
+
+            if (null != channel && segmentLength + length > policy.segmentBytes())
+            {
+                closed = roll();
+            }
+
+            if (null == channel)
+            {
+                open();
+            }
+
+            // A new segment forgets the series defined in the last one.
+            if (!isDefined(id))
+            {
+                define(id, null == keyBytes ? keyBytes(key) : keyBytes);
+            }
+
+            body.clear();
+            body.put(POINT_TYPE).putInt(id).putLong(timestamp).putDouble(value);
+            putRecord(body.array(), POINT_BODY_LENGTH);
+        }
+
+        if (null != closed)
+        {
+            onSegmentClosed.accept(closed);
+        }
+    }
+
+    /**
+     * Forces the log to disk if the oldest record not yet forced is older than the sync interval, or if the bytes
+     * waiting have reached the sync budget. Returns true if it did. Called from the background writer.
+     */
+    public boolean syncIfDue(long nowNanos) throws IOException
+    {
+        synchronized (this)
+        {
+            if (null != failure)
+            {
+                throw failure;
+            }
+
+            if (0 == unsyncedBytes ||
+                (unsyncedBytes < policy.syncBytes() && nowNanos - firstUnsyncedNanos < policy.syncIntervalNanos()))
+            {
+                return false;
+            }
+        }
+
+        sync();
+
+        return true;
+    }
+
+    /**
+     * Forces every record logged so far to disk. Once a force has failed the log is failed for good and every later
+     * sync throws the same failure, as the records that failed to be written may have been dropped and a later force
+     * that succeeds says nothing about them. Appends carry on, the points are still persisted in blocks.
+     */
+    public void sync() throws IOException
+    {
+        final FileChannel toSync;
+        synchronized (this)
+        {
+            if (null != failure)
+            {
+                throw failure;
+            }
+
+            if (0 == unsyncedBytes)
+            {
+                return;
+            }
+
+            drainBuffer();
+            toSync = channel;
+            unsyncedBytes = 0;
+        }
+
+        // Appends carry on into the buffer while the log is forced, a roll waits and forces the segment it closes.
+        synchronized (syncLock)
+        {
+            try
+            {
+                if (toSync.isOpen())
+                {
+                    toSync.force(false);
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+        }
+
+        syncs++;
+    }
+
+    /**
+     * Forces and closes the current segment. The segments are left in place.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (null != channel)
+        {
+            drainBuffer();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Closes the log and deletes every segment, once the points they hold are all persisted in blocks.
+     */
+    public synchronized void closeAndDelete() throws IOException
+    {
+        close();
+
+        for (final File file : segments(dir))
+        {
+            delete(file);
+        }
+    }
+
+    /**
+     * Forces of the log to disk, one per group of records committed.
+     */
+    public long syncs()
+    {
+        return syncs;
+    }
+
+    public long bytesLogged()
+    {
+        return bytesLogged;
+    }
+
+    /**
+     * The failure of the first force of the log that failed, or null.
+     */
+    public IOException failure()
+    {
+        return failure;
+    }
+
+    /**
+     * Replays the points logged in the segments of every log under a directory, in the order they were logged within
+     * each log, returning the segments read.
+     */
+    public static List<File> replay(File walDir, PointHandler handler) throws IOException
+    {
+        final List<File> replayed = new ArrayList<>();
+
+        final File[] logDirs = walDir.listFiles(File::isDirectory);
+        if (null == logDirs)
+        {
+            return replayed;
+        }
+
+        Arrays.sort(logDirs);
+        for (final File logDir : logDirs)
+        {
+            for (final File file : segments(logDir))
+            {
+                replaySegment(file, handler);
+                replayed.add(file);
+            }
+        }
+
+        return replayed;
+    }
+
+    /**
+     * Deletes a segment once the points it holds are persisted in blocks. A segment left behind is replayed again
+     * after a restart, which only appends points that are not already persisted.
+     */
+    public static void delete(File segment) throws IOException
+    {
+        Files.deleteIfExists(segment.toPath());
+    }
+
+    public interface PointHandler
+    {
+        void onPoint(String key, long timestamp, double value) throws IOException;
+    }
+
+    private boolean isDefined(int id)
+    {
+        return id < defined.length && defined[id];
+    }
+
+    private static byte[] keyBytes(String key)
+    {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_BYTES)
+        {
+            throw new IllegalArgumentException("Key is too long to log: " + key);
+        }
+
+        return keyBytes;
+    }
+
+    private void define(int id, byte[] keyBytes)
+    {
+        if (id >= defined.length)
+        {
+            defined = Arrays.copyOf(defined, Math.max(defined.length * 2, id + 1));
+        }
+        defined[id] = true;
+
+        final ByteBuffer defineBody = ByteBuffer.allocate(1 + 4 + keyBytes.length);
+        defineBody.put(DEFINE_TYPE).putInt(id).put(keyBytes);
+        putRecord(defineBody.array(), defineBody.capacity());
+    }
+
+    private void putRecord(byte[] recordBody, int length)
+    {
+        if (buffer.remaining() < RECORD_HEADER_LENGTH + length)
+        {
+            try
+            {
+                drainBuffer();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        crc.reset();
+        crc.update(recordBody, 0, length);
+
+        buffer.putInt(length).putInt((int) crc.getValue()).put(recordBody, 0, length);
+
+        if (0 == unsyncedBytes)
+        {
+            firstUnsyncedNanos = System.nanoTime();
+        }
+
+        segmentLength += RECORD_HEADER_LENGTH + length;
+        unsyncedBytes += RECORD_HEADER_LENGTH + length;
+        bytesLogged += RECORD_HEADER_LENGTH + length;
+    }
+
+    private void drainBuffer() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void open() throws IOException
+    {
+        segment = new File(dir, String.format("%s%016x%s", SEGMENT_PREFIX, nextSequence++, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segment.toPath(), CREATE_NEW, WRITE);
+        segmentLength = 0;
+        Arrays.fill(defined, false);
+    }
+
+    private File roll() throws IOException
+    {
+        final File closed = segment;
+
+        drainBuffer();
+        closeChannel();
+        unsyncedBytes = 0;
+
+        return closed;
+    }
+
+    private void closeChannel() throws IOException
+    {
+        synchronized (syncLock)
+        {
+            try
+            {
+                if (null == failure)
+                {
+                    channel.force(false);
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+                throw e;
+            }
+            finally
+            {
+                // A failed segment is closed all the same, so appends carry on in a new one.
+                channel.close();
+                channel = null;
+                segment = null;
+            }
+        }
+    }
+
+    private static void replaySegment(File file, PointHandler handler) throws IOException
+    {
+        final Map<Integer, String> keys = new HashMap<>();
+        final CRC32 crc = new CRC32();
+
+        try (FileChannel segmentChannel = FileChannel.open(file.toPath(), READ))
+        {
+            final MappedByteBuffer records = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+
+            while (records.remaining() >= RECORD_HEADER_LENGTH)
+            {
+                final int length = records.getInt();
+                final int checksum = records.getInt();
+                if (length <= 0 || length > records.remaining())
+                {
+                    return;
+                }
+
+                final byte[] recordBody = new byte[length];
+                records.get(recordBody);
+
+                crc.reset();
+                crc.update(recordBody, 0, length);
+                if ((int) crc.getValue() != checksum)
+                {
+                    return;
+                }
+
+                final ByteBuffer record = ByteBuffer.wrap(recordBody);
+                final byte type = record.get();
+                final int id = record.getInt();
+
+                if (DEFINE_TYPE == type)
+                {
+                    keys.put(id, new String(recordBody, 5, length - 5, StandardCharsets.UTF_8));
+                }
+                else if (POINT_TYPE == type)
+                {
+                    final String key = keys.get(id);
+                    if (null == key)
+                    {
+                        throw new IOException("Data Corrupt, point logged for undefined series " + id + " in " + file);
+                    }
+
+                    handler.onPoint(key, record.getLong(), record.getDouble());
+                }
+                else
+                {
+                    throw new IOException("Data Corrupt, unknown record type " + type + " in " + file);
+                }
+            }
+        }
+    }
+
+    private static File[] segments(File logDir)
+    {
+        final File[] files = logDir.listFiles(
+            file -> file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX));
+        if (null == files)
+        {
+            return new File[0];
+        }
+
+        // The sequence is fixed width hex, so names sort in sequence order.
+        Arrays.sort(files);
+
+        return files;
+    }
+
+    private static long sequenceOf(File segment)
+    {
+        final String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+    }
+}
@@ -0,0 +1,100 @@
+package com.lmax.utan.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whether a {@link ConcurrentStore} logs appends ahead of persisting their blocks, and how it group commits the log.
+ * The log is forced to disk once the oldest unforced record is {@code syncIntervalNanos} old, or once
+ * {@code syncBytes} are waiting, whichever comes first, so a crash loses at most that much acknowledged data.
+ */
+public final class WriteAheadLogPolicy
+{
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final WriteAheadLogPolicy DISABLED = new WriteAheadLogPolicy(false, 0, 0, DEFAULT_SEGMENT_BYTES);
+
+    private final boolean enabled;
+    private final long syncIntervalNanos;
+    private final int syncBytes;
+    private final int segmentBytes;
+
+    private WriteAheadLogPolicy(boolean enabled, long syncIntervalNanos, int syncBytes, int segmentBytes)
+    {
+        if (syncIntervalNanos < 0)
+        {
+            throw new IllegalArgumentException("Sync interval must not be negative: " + syncIntervalNanos);
+        }
+
+        if (syncBytes < 0)
+        {
+            throw new IllegalArgumentException("Sync bytes must not be negative: " + syncBytes);
+        }
+
+        if (segmentBytes < WriteAheadLog.MIN_SEGMENT_BYTES)
+        {
+            throw new IllegalArgumentException(
+                "Segment length must be at least " + WriteAheadLog.MIN_SEGMENT_BYTES + ": " + segmentBytes);
+        }
+
+        this.enabled = enabled;
+        this.syncIntervalNanos = syncIntervalNanos;
+        this.syncBytes = syncBytes;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * No log, points not yet in a persisted block are lost on a crash. The default.
+     */
+    public static WriteAheadLogPolicy disabled()
+    {
+        return DISABLED;
+    }
+
+    /**
+     * Logs every append and forces the log to disk at least once per interval, or sooner once syncBytes are waiting.
+     */
+    public static WriteAheadLogPolicy groupCommit(long syncInterval, TimeUnit unit, int syncBytes)
+    {
+        return new WriteAheadLogPolicy(true, unit.toNanos(syncInterval), syncBytes, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * A policy that starts a new segment once the current one reaches the given length. A segment is deleted once
+     * the blocks holding its points are persisted, so shorter segments keep less log on disk.
+     */
+    public WriteAheadLogPolicy withSegmentBytes(int segmentBytes)
+    {
+        return new WriteAheadLogPolicy(enabled, syncIntervalNanos, syncBytes, segmentBytes);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    long syncIntervalNanos()
+    {
+        return syncIntervalNanos;
+    }
+
+    int syncBytes()
+    {
+        return syncBytes;
+    }
+
+    int segmentBytes()
+    {
+        return segmentBytes;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "WriteAheadLogPolicy{" +
+            "enabled=" + enabled +
+            ", syncIntervalNanos=" + syncIntervalNanos +
+            ", syncBytes=" + syncBytes +
+            ", segmentBytes=" + segmentBytes +
+            '}';
+    }
+}
@@ -0,0 +1,76 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.BackoffIdleStrategy;
+import org.agrona.concurrent.BusySpinIdleStrategy;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.SleepingIdleStrategy;
+import org.agrona.concurrent.YieldingIdleStrategy;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * How a background writer waits when it finds nothing to write, trading CPU against the time taken to persist an
+ * append on a quiet store. Each writer thread gets its own {@link IdleStrategy}, as they hold state.
+ */
+public enum WriterIdleStrategy implements Supplier<IdleStrategy>
+{
+    /**
+     * Spins, then yields, then parks for up to a millisecond, so a busy writer stays hot and an idle one sleeps.
+     */
+    BACKOFF
+    {
+        @Override
+        public IdleStrategy get()
+        {
+            return new BackoffIdleStrategy(100, 10, TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    },
+
+    /**
+     * Sleeps for a millisecond, using the least CPU.
+     */
+    SLEEPING
+    {
+        @Override
+        public IdleStrategy get()
+        {
+            return new SleepingIdleStrategy(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    },
+
+    /**
+     * Yields the core to other threads, keeping latency low without parking.
+     */
+    YIELDING
+    {
+        @Override
+        public IdleStrategy get()
+        {
+            return new YieldingIdleStrategy();
+        }
+    },
+
+    /**
+     * Spins on a core of its own, for the lowest latency.
+     */
+    BUSY_SPIN
+    {
+        @Override
+        public IdleStrategy get()
+        {
+            return new BusySpinIdleStrategy();
+        }
+    };
+
+    public static final WriterIdleStrategy DEFAULT = BACKOFF;
+
+    /**
+     * The strategy of a configuration value such as "sleeping" or "busy_spin".
+     */
+    public static WriterIdleStrategy fromName(String name)
+    {
+        return valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
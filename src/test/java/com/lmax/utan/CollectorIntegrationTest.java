@@ -8,137 +8,209 @@ import com.lmax.utan.store.Entry;
 import com.lmax.utan.store.PersistentStoreReader;
 import com.lmax.utan.store.TimeSeriesSupplier;
 import org.agrona.IoUtil;
+import org.junit.After;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static java.util.stream.Collectors.joining;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.assertj.core.api.Assertions.fail;
 
 public class CollectorIntegrationTest
 {
+    private static final ThreadFactory DAEMON_THREADS = r ->
+    {
+        final Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private final List<File> dirs = new ArrayList<>();
+    private final List<ConcurrentStore> stores = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (final ConcurrentStore store : stores)
+        {
+            store.stopAndWait();
+        }
+
+        for (final File dir : dirs)
+        {
+            IoUtil.delete(dir, true);
+        }
+    }
+
     @Test
     public void runProducerAndCollector() throws Exception
     {
-        File dir = new File("tmp/utan");
-        IoUtil.ensureDirectoryExists(dir, "test");
+        final File dir = newDir("runProducerAndCollector");
+        final ConcurrentStore store = start(ConcurrentStore.builder(dir));
 
-        final ConcurrentStore store = new ConcurrentStore(
-            dir,
-            (r) ->
-            {
-                final Thread thread = new Thread(r);
-                thread.setDaemon(true);
-                return thread;
-            });
+        final List<TimeseriesTestData> inputData = randomSeries(20);
+        inputData.forEach(td -> appendPoints(store, td, 1000));
 
-        store.start();
+        store.flush().get(5, TimeUnit.SECONDS);
 
-        PersistentStoreReader reader = new PersistentStoreReader(dir);
+        final PersistentStoreReader reader = new PersistentStoreReader(dir);
+        for (final TimeseriesTestData td : inputData)
+        {
+            assertThat(readAll(reader, td)).isEqualTo(td.generatedData);
+        }
+    }
 
-        long startTimestamp = System.currentTimeMillis();
+    @Test
+    public void runShardedProducersAndCollector() throws Exception
+    {
+        final File dir = newDir("runShardedProducersAndCollector");
+        final ConcurrentStore store = start(ConcurrentStore.builder(dir).shardCount(4));
 
-        List<TimeseriesTestData> inputData = new ArrayList<>();
-        for (int i = 0; i < 20; i++)
+        final List<TimeseriesTestData> inputData = randomSeries(40);
+
+        final Thread[] producers = new Thread[store.shardCount()];
+        for (int i = 0; i < producers.length; i++)
         {
-            final String key = ThreadLocalRandom.current().ints(0x20, 0x7F).limit(20).mapToObj(String::valueOf).collect(joining());
-            inputData.add(new TimeseriesTestData(key, new TimeSeriesSupplier(2, startTimestamp)));
+            final int shard = i;
+            producers[i] = new Thread(
+                () -> inputData.stream()
+                    .filter(td -> store.shardOf(td.key) == shard)
+                    .forEach(td -> appendPoints(store, td, 1000)));
+            producers[i].start();
         }
 
-        inputData.forEach(
-            td ->
-            {
-                for (int i = 0; i < 1000; i++)
-                {
-                    final Entry entry = td.next();
-                    store.append(td.key, entry.timestamp, entry.value);
-                }
-            });
+        for (final Thread producer : producers)
+        {
+            producer.join();
+        }
 
+        store.flush().get(5, TimeUnit.SECONDS);
 
-        boolean isComplete = false;
-        for (int i = 0; i < 5 && !isComplete; i++)
+        final PersistentStoreReader reader = new PersistentStoreReader(dir);
+        for (final TimeseriesTestData td : inputData)
         {
-            Thread.sleep(1000);
-            isComplete = isComplete(reader, inputData);
+            assertCountAndLastTimestamp(reader, td);
         }
-
-        inputData.forEach(
-            td ->
-            {
-                List<Entry> readData = new ArrayList<>();
-                try (final Cursor<Block> query = reader.query(td.key, td.firstTimestamp(), td.endTimestamp() + 1))
-                {
-                    while (query.moveNext())
-                    {
-                        Block block = query.current();
-                        block.foreach((timestamp, value) -> readData.add(new Entry(timestamp, value)));
-                    }
-
-                    assertThat(readData).isEqualTo(td.generatedData);
-                }
-                catch (IOException e)
-                {
-                    fail(e.getMessage());
-                }
-            });
-
-        store.stopAndWait();
-        Dirs.delete(dir);
     }
 
-    private boolean isComplete(PersistentStoreReader reader, List<TimeseriesTestData> inputData)
+    @Test
+    public void spreadShardsOverDataDirectories() throws Exception
     {
-        return inputData.stream().allMatch(
-            td ->
-            {
-                try
-                {
-                    try (final Cursor<Block> query = reader.query(td.key, td.endTimestamp(), td.endTimestamp() + 1))
-                    {
-                        return query.moveNext() && query.current().lastTimestamp() == td.endTimestamp();
-                    }
-                }
-                catch (IOException e)
-                {
-                    return false;
-                }
-            });
+        final File[] dataDirs = {newDir("spreadShardsOverDataDirectories-0"), newDir("spreadShardsOverDataDirectories-1")};
+        final ConcurrentStore store = start(ConcurrentStore.builder(dataDirs).shardCount(4));
+
+        final long startTimestamp = System.currentTimeMillis();
+        final List<TimeseriesTestData> inputData = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+        {
+            final TimeseriesTestData td = new TimeseriesTestData("spread.key." + i, new TimeSeriesSupplier(2, startTimestamp));
+            appendPoints(store, td, 100);
+            inputData.add(td);
+        }
+
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        final PersistentStoreReader reader = new PersistentStoreReader(dataDirs);
+        for (final TimeseriesTestData td : inputData)
+        {
+            assertCountAndLastTimestamp(reader, td);
+        }
+
+        // Each directory holds only the keys of its own shards.
+        for (final TimeseriesTestData td : inputData)
+        {
+            final int dirIndex = store.shardOf(td.key) * dataDirs.length / store.shardCount();
+            assertThat(new PersistentStoreReader(dataDirs[dirIndex]).exists(td.key)).isTrue();
+            assertThat(new PersistentStoreReader(dataDirs[1 - dirIndex]).exists(td.key)).isFalse();
+        }
     }
 
     @Test
     public void appendToCollector() throws Exception
     {
-        File dir = Dirs.createTempDir("CollectorIntegrationTest-runProducerAndCollector");
+        final File dir = newDir("appendToCollector");
+        final ConcurrentStore store = track(ConcurrentStore.builder(dir).threadFactory(DAEMON_THREADS).build());
 
-        final ConcurrentStore store = new ConcurrentStore(
-            dir,
-            (r) ->
-            {
-                final Thread thread = new Thread(r);
-                thread.setDaemon(true);
-                return thread;
-            });
+        final TimeseriesTestData td = randomSeries(1).get(0);
+        appendPoints(store, td, 1000);
+
+        // Nothing is written until the store is started.
+        assertThat(new PersistentStoreReader(dir).exists(td.key)).isFalse();
+    }
+
+    private File newDir(String testName)
+    {
+        final File dir = Dirs.createTempDir(CollectorIntegrationTest.class.getSimpleName() + "-" + testName);
+        dirs.add(dir);
+        return dir;
+    }
 
-        long startTimestamp = System.currentTimeMillis();
+    private ConcurrentStore start(ConcurrentStore.Builder builder) throws IOException
+    {
+        final ConcurrentStore store = track(builder.threadFactory(DAEMON_THREADS).build());
+        store.start();
+        return store;
+    }
+
+    private ConcurrentStore track(ConcurrentStore store)
+    {
+        stores.add(store);
+        return store;
+    }
+
+    private static List<TimeseriesTestData> randomSeries(int count)
+    {
+        final long startTimestamp = System.currentTimeMillis();
 
-        List<TimeseriesTestData> inputData = new ArrayList<>();
+        final List<TimeseriesTestData> inputData = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            final String key = ThreadLocalRandom.current().ints(0x20, 0x7F).limit(20).mapToObj(String::valueOf).collect(joining());
+            inputData.add(new TimeseriesTestData(key, new TimeSeriesSupplier(2, startTimestamp)));
+        }
 
-        final String key = ThreadLocalRandom.current().ints(0x20, 0x7F).limit(20).mapToObj(String::valueOf).collect(joining());
-        final TimeseriesTestData td = new TimeseriesTestData(key, new TimeSeriesSupplier(2, startTimestamp));
+        return inputData;
+    }
 
-        for (int i = 0; i < 1000; i++)
+    private static void appendPoints(ConcurrentStore store, TimeseriesTestData td, int count)
+    {
+        for (int i = 0; i < count; i++)
         {
             final Entry entry = td.next();
             store.append(td.key, entry.timestamp, entry.value);
         }
     }
 
+    private static List<Entry> readAll(PersistentStoreReader reader, TimeseriesTestData td) throws IOException
+    {
+        final List<Entry> readData = new ArrayList<>();
+        try (final Cursor<Block> query = reader.query(td.key, td.firstTimestamp(), td.endTimestamp() + 1))
+        {
+            while (query.moveNext())
+            {
+                query.current().foreach((timestamp, value) -> readData.add(new Entry(timestamp, value)));
+            }
+        }
+
+        return readData;
+    }
+
+    private static void assertCountAndLastTimestamp(PersistentStoreReader reader, TimeseriesTestData td) throws IOException
+    {
+        final long[] timestamps = new long[td.generatedData.size()];
+        final double[] values = new double[td.generatedData.size()];
+        final int count = reader.query(td.key, td.firstTimestamp(), td.endTimestamp() + 1, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(td.generatedData.size());
+        assertThat(timestamps[count - 1]).isEqualTo(td.endTimestamp());
+    }
+
     private static class TimeseriesTestData
     {
         private final String key;
@@ -0,0 +1,90 @@
+package com.lmax.utan.store;
+
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Generates series that exercise every timestamp bucket and value encoding path of a block.
+ */
+public class ArbitrarySeriesSupplier implements Supplier<Entry>
+{
+    private static final double[] SPECIAL_VALUES = {
+        0.0, -0.0, 1.0, -1.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        Double.MIN_VALUE, Double.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE,
+        Double.longBitsToDouble(0x7FF0_0000_0000_0001L), Double.longBitsToDouble(0xFFF8_0000_0000_1000L)
+    };
+
+    private final Random r;
+    private long tMinusOne;
+    private long tMinusTwo;
+    private double lastValue;
+    private boolean first = true;
+
+    public ArbitrarySeriesSupplier(long seed)
+    {
+        r = new Random(seed);
+        tMinusOne = r.nextLong() >> 2;
+        tMinusTwo = tMinusOne;
+        lastValue = r.nextDouble();
+        lastValue = nextValue();
+    }
+
+    @Override
+    public Entry get()
+    {
+        if (first)
+        {
+            first = false;
+            return new Entry(tMinusOne, lastValue);
+        }
+
+        final long timestamp = tMinusOne + (tMinusOne - tMinusTwo) + nextDeltaOfDelta();
+        final double value = nextValue();
+
+        tMinusTwo = tMinusOne;
+        tMinusOne = timestamp;
+        lastValue = value;
+
+        return new Entry(timestamp, value);
+    }
+
+    private long nextDeltaOfDelta()
+    {
+        switch (r.nextInt(6))
+        {
+            case 0:
+                return 0;
+            case 1:
+                return r.nextInt(128) - 64;
+            case 2:
+                return r.nextInt(512) - 256;
+            case 3:
+                return r.nextInt(4096) - 2048;
+            case 4:
+                return r.nextInt(1 << 20) - (1 << 19);
+            default:
+                return (r.nextInt() / 4) - (tMinusOne - tMinusTwo);
+        }
+    }
+
+    private double nextValue()
+    {
+        switch (r.nextInt(7))
+        {
+            case 0:
+                return lastValue;
+            case 1:
+                return lastValue + r.nextInt(10);
+            case 2:
+                return r.nextDouble() * 1000;
+            case 3:
+                return Double.longBitsToDouble(r.nextLong());
+            case 4:
+                return SPECIAL_VALUES[r.nextInt(SPECIAL_VALUES.length)];
+            case 5:
+                return Double.longBitsToDouble(Double.doubleToRawLongBits(lastValue) ^ (1L << r.nextInt(64)));
+            default:
+                return r.nextInt(1000);
+        }
+    }
+}
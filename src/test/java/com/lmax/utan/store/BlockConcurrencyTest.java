@@ -48,10 +48,7 @@ public class BlockConcurrencyTest
                     }
                 }
 
-                while (!block.reset())
-                {
-                    // No-op
-                }
+                block.reset();
             }
         });
 
@@ -0,0 +1,176 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockDecoderTest
+{
+    @Test
+    public void shouldDecodeIdenticallyToReferenceDecoder() throws Exception
+    {
+        for (long seed = 0; seed < 2_000; seed++)
+        {
+            final Block block = xorOnlyBlock();
+            BlockGenerator.generateBlockData(new ArbitrarySeriesSupplier(seed), block);
+
+            assertSameAsReference(block, seed);
+        }
+    }
+
+    @Test
+    public void shouldDecodeIdenticallyToReferenceDecoderForEveryBlockLength() throws Exception
+    {
+        final Block block = xorOnlyBlock();
+        final ArbitrarySeriesSupplier supplier = new ArbitrarySeriesSupplier(42);
+
+        Entry entry = supplier.get();
+        while (block.append(entry.timestamp, entry.value).isOk())
+        {
+            assertSameAsReference(block, 42);
+            entry = supplier.get();
+        }
+    }
+
+    @Test
+    public void shouldDecodeBlocksFilledByTimeSeriesSupplier() throws Exception
+    {
+        final Block block = Block.newDirectBlock();
+        BlockGenerator.generateBlockData(new TimeSeriesSupplier(1234), block);
+
+        assertSameAsReference(block, 1234);
+    }
+
+    @Test
+    public void shouldDecodeIntegerValuesBackToTheAppendedValues() throws Exception
+    {
+        for (long seed = 0; seed < 2_000; seed++)
+        {
+            final Block block = Block.newHeapBlock();
+            final List<Entry> entries = BlockGenerator.generateBlockData(new ArbitrarySeriesSupplier(seed), block, new ArrayList<>());
+
+            final List<Entry> actual = new ArrayList<>();
+            block.foreach((timestamp, value) -> actual.add(new Entry(timestamp, value)));
+
+            assertThat(actual).as("seed: %d", seed).isEqualTo(entries);
+        }
+    }
+
+    @Test
+    public void shouldDecodeChimpValuesBackToTheAppendedValues() throws Exception
+    {
+        for (long seed = 0; seed < 2_000; seed++)
+        {
+            final Block block = Block.newHeapBlock(BlockSize.DEFAULT, FloatCodec.CHIMP);
+            final List<Entry> entries = BlockGenerator.generateBlockData(new ArbitrarySeriesSupplier(seed), block, new ArrayList<>());
+
+            final List<Entry> actual = new ArrayList<>();
+            block.foreach((timestamp, value) -> actual.add(new Entry(timestamp, value)));
+
+            assertThat(actual).as("seed: %d", seed).isEqualTo(entries);
+        }
+    }
+
+    @Test
+    public void shouldDecodeVersion1BlocksIdenticallyToReferenceDecoder() throws Exception
+    {
+        for (long seed = 0; seed < 2_000; seed++)
+        {
+            final ReferenceBlockEncoder encoder = ReferenceBlockEncoder.version1();
+            encodeUntilFull(encoder, new ArbitrarySeriesSupplier(seed), new ArrayList<>());
+            if (0 == seed % 2)
+            {
+                encoder.freeze();
+            }
+
+            assertSameAsReference(version1Block(encoder), seed);
+        }
+    }
+
+    @Test
+    public void shouldReadVersion1BlocksInFull() throws Exception
+    {
+        for (long seed = 0; seed < 100; seed++)
+        {
+            final ReferenceBlockEncoder encoder = ReferenceBlockEncoder.version1();
+            final List<Entry> entries = encodeUntilFull(encoder, new TimeSeriesSupplier(seed), new ArrayList<>());
+            encoder.freeze();
+
+            final Block block = version1Block(encoder);
+            final List<Entry> actual = new ArrayList<>();
+            block.foreach((timestamp, value) -> actual.add(new Entry(timestamp, value)));
+
+            final Aggregate expected = new Aggregate();
+            entries.forEach(entry -> expected.accept(entry.timestamp, entry.value));
+            final Aggregate aggregate = new Aggregate();
+            block.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, aggregate);
+
+            assertThat(actual).as("seed: %d", seed).isEqualTo(entries);
+            assertThat(block.hasSummary()).as("seed: %d", seed).isFalse();
+            assertThat(block.storedByteLength()).as("seed: %d", seed).isEqualTo(Block.BYTE_LENGTH);
+            assertThat(block.lastTimestamp()).as("seed: %d", seed).isEqualTo(entries.get(entries.size() - 1).timestamp);
+            assertThat(aggregate.count()).as("seed: %d", seed).isEqualTo(expected.count());
+            assertThat(aggregate.sum()).as("seed: %d", seed).isEqualTo(expected.sum());
+            assertThat(aggregate.lastTimestamp()).as("seed: %d", seed).isEqualTo(expected.lastTimestamp());
+        }
+    }
+
+    private static List<Entry> encodeUntilFull(ReferenceBlockEncoder encoder, Supplier<Entry> supplier, List<Entry> entries)
+    {
+        Entry entry = supplier.get();
+        while (encoder.append(entry.timestamp, entry.value).isOk())
+        {
+            entries.add(entry);
+            entry = supplier.get();
+        }
+
+        return entries;
+    }
+
+    private static Block version1Block(ReferenceBlockEncoder encoder)
+    {
+        final Block block = Block.newHeapBlock();
+        encoder.buffer().getBytes(0, block.underlyingBuffer(), Block.BYTE_LENGTH);
+
+        return block;
+    }
+
+    private static Block xorOnlyBlock()
+    {
+        return new Block(new UnsafeBuffer(new byte[Block.BYTE_LENGTH]), false);
+    }
+
+    private static void assertSameAsReference(Block block, long seed)
+    {
+        final List<long[]> expected = new ArrayList<>();
+        final List<long[]> actual = new ArrayList<>();
+
+        final int expectedCount = new ReferenceBlockDecoder(block).foreach(
+            (timestamp, value) -> expected.add(new long[] {timestamp, Double.doubleToRawLongBits(value)}));
+        final int actualCount = block.foreach(
+            (timestamp, value) -> actual.add(new long[] {timestamp, Double.doubleToRawLongBits(value)}));
+
+        assertThat(actualCount).as("seed: %d", seed).isEqualTo(expectedCount);
+        assertThat(actual).as("seed: %d", seed).hasSameSizeAs(expected);
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertThat(actual.get(i)).as("seed: %d, index: %d", seed, i).isEqualTo(expected.get(i));
+        }
+
+        final long[] timestamps = new long[Block.MAX_POINTS];
+        final double[] values = new double[Block.MAX_POINTS];
+        final int decoded = block.decodeInto(timestamps, values, 0);
+
+        assertThat(decoded).as("seed: %d", seed).isEqualTo(expectedCount);
+        for (int i = 0; i < decoded; i++)
+        {
+            assertThat(timestamps[i]).as("seed: %d, index: %d", seed, i).isEqualTo(expected.get(i)[0]);
+            assertThat(Double.doubleToRawLongBits(values[i])).as("seed: %d, index: %d", seed, i).isEqualTo(expected.get(i)[1]);
+        }
+    }
+}
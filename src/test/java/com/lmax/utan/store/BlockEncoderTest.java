@@ -0,0 +1,56 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.Test;
+
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockEncoderTest
+{
+    @Test
+    public void shouldEncodeIdenticallyToReferenceEncoder() throws Exception
+    {
+        for (long seed = 0; seed < 2_000; seed++)
+        {
+            assertSameAsReference(new ArbitrarySeriesSupplier(seed), seed);
+        }
+    }
+
+    @Test
+    public void shouldEncodeTimeSeriesSupplierDataIdenticallyToReferenceEncoder() throws Exception
+    {
+        for (long seed = 0; seed < 100; seed++)
+        {
+            assertSameAsReference(new TimeSeriesSupplier(seed), seed);
+        }
+    }
+
+    private static void assertSameAsReference(Supplier<Entry> supplier, long seed)
+    {
+        final Block block = new Block(new UnsafeBuffer(new byte[Block.BYTE_LENGTH]), false);
+        final ReferenceBlockEncoder reference = new ReferenceBlockEncoder();
+        final UnsafeBuffer actual = new UnsafeBuffer(block.underlyingBuffer());
+
+        int count = 0;
+        while (true)
+        {
+            final Entry entry = supplier.get();
+            final Block.AppendStatus expectedStatus = reference.append(entry.timestamp, entry.value);
+            final Block.AppendStatus actualStatus = block.append(entry.timestamp, entry.value);
+
+            assertThat(actualStatus).as("seed: %d, count: %d", seed, count).isEqualTo(expectedStatus);
+            assertThat(actual.compareTo(reference.buffer())).as("seed: %d, count: %d", seed, count).isEqualTo(0);
+
+            if (!actualStatus.isOk())
+            {
+                break;
+            }
+
+            count++;
+        }
+
+        assertThat(count).isGreaterThan(1);
+    }
+}
@@ -0,0 +1,52 @@
+package com.lmax.utan.store;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlockPoolTest
+{
+    @Test
+    public void shouldCarveBlocksFromSlabs()
+    {
+        final BlockPool pool = new BlockPool(4 * BlockSize.DEFAULT.byteLength());
+
+        for (int i = 0; i < 5; i++)
+        {
+            final Block block = pool.acquire(BlockSize.DEFAULT, TimestampPrecision.DEFAULT);
+
+            assertThat(block.isEmpty()).isTrue();
+            assertThat(block.underlyingBuffer().capacity()).isEqualTo(BlockSize.DEFAULT.byteLength());
+        }
+
+        assertThat(pool.capacity()).isEqualTo(5L);
+        assertThat(pool.blocksInUse()).isEqualTo(5L);
+        assertThat(pool.slabBytes()).isEqualTo(8L * BlockSize.DEFAULT.byteLength());
+    }
+
+    @Test
+    public void shouldReuseReleasedBlocksEmpty()
+    {
+        final BlockPool pool = new BlockPool();
+
+        final Block block = pool.acquire(BlockSize.DEFAULT, TimestampPrecision.MICROSECONDS);
+        block.append(1000, 1.0);
+        block.append(2000, 2.0);
+        block.freeze();
+        pool.release(block);
+
+        assertThat(pool.blocksInUse()).isEqualTo(0L);
+        assertThat(pool.acquire(BlockSize.KB_1, TimestampPrecision.MICROSECONDS)).isNotSameAs(block);
+        assertThat(pool.acquire(BlockSize.DEFAULT, TimestampPrecision.DEFAULT)).isNotSameAs(block);
+
+        final Block reused = pool.acquire(BlockSize.DEFAULT, TimestampPrecision.MICROSECONDS);
+        assertThat(reused).isSameAs(block);
+        assertThat(reused.isEmpty()).isTrue();
+        assertThat(reused.isFrozen()).isFalse();
+        assertThat(reused.timestampPrecision()).isEqualTo(TimestampPrecision.MICROSECONDS);
+        assertThat(reused.append(3000, 3.0)).isEqualTo(Block.AppendStatus.OK);
+
+        assertThat(pool.capacity()).isEqualTo(3L);
+        assertThat(pool.blocksInUse()).isEqualTo(3L);
+    }
+}
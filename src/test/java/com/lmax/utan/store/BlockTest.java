@@ -1,11 +1,16 @@
 package com.lmax.utan.store;
 
+import org.agrona.concurrent.UnsafeBuffer;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Supplier;
 
 import static com.lmax.utan.store.Block.AppendStatus.FROZEN;
 import static java.lang.Integer.toBinaryString;
@@ -167,18 +172,23 @@ public class BlockTest
     @Test
     public void shouldAppendBitsToBuffer() throws Exception
     {
-        b.writeBits(0, 0b10001L, 5);
-        b.writeBits(5, 0b10001L, 5);
-        b.writeBits(10, 0b10001L, 5);
-        b.writeBits(15, 0b10001L, 5);
-        b.writeBits(20, 0b11111111111111111111L, 20);
-        b.writeBits(40, 0b1010101_01010101_01010101_01010101_01010101_01010101_01010101L, 55);
-        b.writeBits(95, 0b111, 3);
-
-        assertThat(toBinaryString(b.getTempPart(0))).isEqualTo("10001100011000110001111111111111");
-        assertThat(toBinaryString(b.getTempPart(1))).isEqualTo("11111111101010101010101010101010");
-        assertThat(toBinaryString(b.getTempPart(2))).isEqualTo("10101010101010101010101010101011");
-        assertThat(toBinaryString(b.getTempPart(3))).isEqualTo("11000000000000000000000000000000");
+        final int base = Block.COMPRESSED_DATA_START_BITS;
+
+        b.writeBits(base, 0b10001L, 5);
+        b.writeBits(base + 5, 0b10001L, 5);
+        b.writeBits(base + 10, 0b10001L, 5);
+        b.writeBits(base + 15, 0b10001L, 5);
+        b.writeBits(base + 20, 0b11111111111111111111L, 20);
+        b.writeBits(base + 40, 0b1010101_01010101_01010101_01010101_01010101_01010101_01010101L, 55);
+        b.writeBits(base + 95, 0b111, 3);
+
+        final ByteBuffer buffer = b.underlyingBuffer();
+        final int byteBase = base / 8;
+
+        assertThat(toBinaryString(buffer.getInt(byteBase))).isEqualTo("10001100011000110001111111111111");
+        assertThat(toBinaryString(buffer.getInt(byteBase + 4))).isEqualTo("11111111101010101010101010101010");
+        assertThat(toBinaryString(buffer.getInt(byteBase + 8))).isEqualTo("10101010101010101010101010101011");
+        assertThat(toBinaryString(buffer.getInt(byteBase + 12))).isEqualTo("11000000000000000000000000000000");
     }
 
     @Test
@@ -219,6 +229,591 @@ public class BlockTest
         assertThat(count[0]).isEqualTo(1);
     }
 
+    @Test
+    public void shouldDecodeIntoArrays() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+
+        final long[] timestamps = new long[Block.MAX_POINTS + 1];
+        final double[] values = new double[Block.MAX_POINTS + 1];
+
+        final int count = b.decodeInto(timestamps, values, 1);
+
+        assertThat(count).isEqualTo(entries.size());
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(timestamps[i + 1]).isEqualTo(entries.get(i).timestamp);
+            assertThat(values[i + 1]).isEqualTo(entries.get(i).value);
+        }
+    }
+
+    @Test
+    public void shouldDecodeRangeIntoArrays() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+
+        final long startTimestamp = entries.get(10).timestamp;
+        final long endTimestamp = entries.get(20).timestamp;
+        final long[] timestamps = new long[Block.MAX_POINTS];
+        final double[] values = new double[Block.MAX_POINTS];
+
+        final int count = b.decodeInto(startTimestamp, endTimestamp, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(10);
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(timestamps[i]).isEqualTo(entries.get(i + 10).timestamp);
+            assertThat(values[i]).isEqualTo(entries.get(i + 10).value);
+        }
+    }
+
+    @Test
+    public void shouldStopDecodingWhenArraysAreFull() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+
+        final long[] timestamps = new long[8];
+        final double[] values = new double[8];
+
+        assertThat(b.decodeInto(timestamps, values, 3)).isEqualTo(5);
+        assertThat(timestamps[7]).isEqualTo(entries.get(4).timestamp);
+        assertThat(b.decodeInto(timestamps, values, 8)).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldWriteSummaryOnFreeze() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+
+        assertThat(b.hasSummary()).isFalse();
+        b.freeze();
+        assertThat(b.hasSummary()).isTrue();
+
+        final Aggregate expected = new Aggregate();
+        entries.forEach(e -> expected.accept(e.timestamp, e.value));
+
+        final Aggregate actual = new Aggregate();
+        b.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, actual);
+
+        assertThat(actual.count()).isEqualTo(entries.size());
+        assertThat(actual.toString()).isEqualTo(expected.toString());
+        assertTimestampsAndValues(b, entries);
+    }
+
+    @Test
+    public void shouldDecodeWhenRangeCoversPartOfSummarisedBlock() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+        b.freeze();
+
+        final Aggregate expected = new Aggregate();
+        entries.subList(10, 20).forEach(e -> expected.accept(e.timestamp, e.value));
+
+        final Aggregate actual = new Aggregate();
+        b.aggregate(entries.get(10).timestamp, entries.get(20).timestamp, actual);
+
+        assertThat(actual.count()).isEqualTo(10);
+        assertThat(actual.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void shouldKeepSummaryWhenCopied() throws Exception
+    {
+        BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b);
+        b.freeze();
+        b.copyTo(copy);
+
+        assertThat(copy).isEqualTo(b);
+        assertThat(copy.hasSummary()).isTrue();
+    }
+
+    @Test
+    public void shouldReadBlocksWithoutSummary() throws Exception
+    {
+        final ByteBuffer buffer = b.underlyingBuffer().order(ByteOrder.nativeOrder());
+        buffer.putLong(0, buffer.getLong(0) & ~(1L << 62));
+
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+        b.freeze();
+
+        assertThat(b.lengthInBits()).isGreaterThan(BlockSize.DEFAULT.dataBitLimit());
+        assertThat(b.hasSummary()).isFalse();
+        assertTimestampsAndValues(b, entries);
+
+        final Aggregate aggregate = new Aggregate();
+        b.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, aggregate);
+        assertThat(aggregate.count()).isEqualTo(entries.size());
+    }
+
+    @Test
+    public void shouldStoreAndDecodeEverySizeClass() throws Exception
+    {
+        for (BlockSize blockSize : BlockSize.values())
+        {
+            final Block block = Block.newHeapBlock(blockSize);
+            final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), block, new ArrayList<>());
+
+            assertThat(block.blockSize()).isEqualTo(blockSize);
+            assertThat(entries.size()).isLessThanOrEqualTo(blockSize.maxPoints());
+            assertTimestampsAndValues(block, entries);
+
+            block.freeze();
+            final Block blockCopy = Block.newHeapBlock(blockSize);
+            block.copyTo(blockCopy);
+
+            final Aggregate aggregate = new Aggregate();
+            blockCopy.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, aggregate);
+
+            assertThat(blockCopy).isEqualTo(block);
+            assertThat(aggregate.count()).isEqualTo(entries.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectCopyBetweenSizeClasses() throws Exception
+    {
+        Block.newHeapBlock(BlockSize.KB_1).copyTo(b);
+    }
+
+    @Test
+    public void shouldSkipToCheckpointWhenDecodingFromTimestamp() throws Exception
+    {
+        final Block block = Block.newHeapBlock(BlockSize.KB_64);
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), block, new ArrayList<>());
+
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+
+        for (int from = 0; from < entries.size(); from += 397)
+        {
+            final int to = Math.min(entries.size() - 1, from + 1000);
+            final int count = block.decodeInto(entries.get(from).timestamp, entries.get(to).timestamp, timestamps, values, 0);
+
+            assertThat(count).isEqualTo(to - from);
+            for (int i = 0; i < count; i++)
+            {
+                assertThat(timestamps[i]).isEqualTo(entries.get(from + i).timestamp);
+                assertThat(values[i]).isEqualTo(entries.get(from + i).value);
+            }
+        }
+
+        // Points in front of the last checkpoint are not read at all.
+        block.underlyingBuffer().putLong(Block.COMPRESSED_DATA_START_BITS / 8, -1L);
+        final Entry last = entries.get(entries.size() - 1);
+
+        assertThat(block.decodeInto(last.timestamp, Long.MAX_VALUE, timestamps, values, 0)).isEqualTo(1);
+        assertThat(values[0]).isEqualTo(last.value);
+    }
+
+    @Test
+    public void shouldEncodeIntegerCounterWithDeltaOfDeltaValues() throws Exception
+    {
+        final Block xorBlock = new Block(new UnsafeBuffer(new byte[Block.BYTE_LENGTH]), false);
+        final List<Entry> entries = new ArrayList<>();
+
+        long counter = 1_000_000;
+        for (int i = 0; i < 100; i++)
+        {
+            counter += 17 + (i % 3);
+            final Entry entry = new Entry(1000L * i, counter);
+
+            assertThat(b.append(entry.timestamp, entry.value)).isEqualTo(Block.AppendStatus.OK);
+            assertThat(xorBlock.append(entry.timestamp, entry.value)).isEqualTo(Block.AppendStatus.OK);
+            entries.add(entry);
+        }
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.INTEGER_DELTA);
+        assertThat(b.lengthInBits()).isLessThan(xorBlock.lengthInBits());
+        assertTimestampsAndValues(b, entries);
+    }
+
+    @Test
+    public void shouldSwitchToXorWhenNonIntegralValueArrives() throws Exception
+    {
+        final List<Entry> entries = new ArrayList<>();
+        final double[] values = {1, 2, 3, 3, Long.MAX_VALUE, Long.MIN_VALUE, 4, 4.5, 5, -0.0, Double.NaN, 6};
+
+        for (int i = 0; i < values.length; i++)
+        {
+            assertThat(b.append(1000L * i, values[i]).isOk()).isTrue();
+            entries.add(new Entry(1000L * i, values[i]));
+        }
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.INTEGER_DELTA);
+        assertTimestampsAndValues(b, entries);
+    }
+
+    @Test
+    public void shouldNotTreatNegativeZeroAsIntegral() throws Exception
+    {
+        assertThat(Block.isIntegral(0.0)).isTrue();
+        assertThat(Block.isIntegral(-3.0)).isTrue();
+        assertThat(Block.isIntegral(-0.0)).isFalse();
+        assertThat(Block.isIntegral(0.5)).isFalse();
+        assertThat(Block.isIntegral(Double.NaN)).isFalse();
+        assertThat(Block.isIntegral(Double.POSITIVE_INFINITY)).isFalse();
+    }
+
+    @Test
+    public void shouldSkipToCheckpointWhenDecodingIntegerValues() throws Exception
+    {
+        final Block block = Block.newHeapBlock(BlockSize.KB_16);
+        final List<Entry> entries = new ArrayList<>();
+
+        long counter = 0;
+        for (int i = 0; block.append(1000L * i, counter).isOk(); i++)
+        {
+            entries.add(new Entry(1000L * i, counter));
+            counter += i % 7 == 0 ? 1_000_000 : i % 5;
+        }
+
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+
+        for (int from = 0; from < entries.size(); from += 101)
+        {
+            final int count = block.decodeInto(entries.get(from).timestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+            assertThat(count).isEqualTo(entries.size() - from);
+            for (int i = 0; i < count; i++)
+            {
+                assertThat(values[i]).isEqualTo(entries.get(from + i).value);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRunLengthEncodeConstantValuesAtRegularIntervalsOnFreeze() throws Exception
+    {
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; b.append(15_000L * i, 1.0).isOk(); i++)
+        {
+            entries.add(new Entry(15_000L * i, 1.0));
+        }
+
+        b.freeze();
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.REGULAR_RUN_LENGTH);
+        assertThat(b.lengthInBits()).isEqualTo(Block.REGULAR_DATA_START_BITS);
+        assertThat(b.lastTimestamp()).isEqualTo(entries.get(entries.size() - 1).timestamp);
+        assertTimestampsAndValues(b, entries);
+
+        final Aggregate aggregate = new Aggregate();
+        b.aggregate(entries.get(10).timestamp, entries.get(20).timestamp, aggregate);
+        assertThat(aggregate.count()).isEqualTo(10);
+    }
+
+    @Test
+    public void shouldRunLengthEncodeConstantValuesWithIrregularTimestampsOnFreeze() throws Exception
+    {
+        final Random r = new Random(7);
+        final List<Entry> entries = new ArrayList<>();
+
+        long timestamp = 0;
+        while (b.append(timestamp, -3.5).isOk())
+        {
+            entries.add(new Entry(timestamp, -3.5));
+            timestamp += 1000 + r.nextInt(100);
+        }
+
+        final int lengthBeforeFreeze = b.lengthInBits();
+        b.freeze();
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.RUN_LENGTH);
+        assertThat(b.lengthInBits()).isLessThan(lengthBeforeFreeze);
+        assertTimestampsAndValues(b, entries);
+    }
+
+    @Test
+    public void shouldDropTimestampsAtRegularIntervalsOnFreeze() throws Exception
+    {
+        final Block block = Block.newHeapBlock(BlockSize.KB_16);
+        final List<Entry> entries = BlockGenerator.generateBlockData(new RegularSeriesSupplier(), block, new ArrayList<>());
+
+        final int lengthBeforeFreeze = block.lengthInBits();
+        block.freeze();
+
+        assertThat(block.codec()).isEqualTo(BlockCodec.REGULAR_XOR);
+        assertThat(block.lengthInBits()).isLessThan(lengthBeforeFreeze);
+        assertTimestampsAndValues(block, entries);
+
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+
+        for (int from = 0; from < entries.size(); from += 101)
+        {
+            final int count = block.decodeInto(entries.get(from).timestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+            assertThat(count).isEqualTo(entries.size() - from);
+            assertThat(timestamps[0]).isEqualTo(entries.get(from).timestamp);
+            assertThat(values[0]).isEqualTo(entries.get(from).value);
+        }
+    }
+
+    @Test
+    public void shouldRoundTripRegularIntervalsAtFinePrecision() throws Exception
+    {
+        assertRegularRoundTrip(TimestampPrecision.MICROSECONDS, 10_000_000L, BlockCodec.REGULAR_XOR);
+        assertRegularRoundTrip(TimestampPrecision.MICROSECONDS, 3_600_000_000L, BlockCodec.XOR);
+        assertRegularRoundTrip(TimestampPrecision.NANOSECONDS, 1_000_000_000L, BlockCodec.REGULAR_XOR);
+        assertRegularRoundTrip(TimestampPrecision.NANOSECONDS, 10_000_000_000L, BlockCodec.XOR);
+    }
+
+    @Test
+    public void shouldKeepXorCodecWhenNoOtherCodecIsSmaller() throws Exception
+    {
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), b, new ArrayList<>());
+
+        final int lengthBeforeFreeze = b.lengthInBits();
+        b.freeze();
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.XOR);
+        assertThat(b.lengthInBits()).isEqualTo(lengthBeforeFreeze);
+        assertTimestampsAndValues(b, entries);
+    }
+
+    @Test
+    public void shouldDeliverEachPointOnceWhenBlockIsRecodedDuringRead() throws Exception
+    {
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            b.append(1000L * i, 42);
+            entries.add(new Entry(1000L * i, 42));
+        }
+
+        final List<Entry> read = new ArrayList<>();
+        final int count = b.foreach((t, v) -> {
+            b.freeze();
+            read.add(new Entry(t, v));
+            return true;
+        });
+
+        assertThat(b.codec()).isEqualTo(BlockCodec.REGULAR_RUN_LENGTH);
+        assertThat(count).isEqualTo(entries.size());
+        assertThat(read).isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldStopReadingWhenBlockIsResetDuringRead() throws Exception
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            b.append(1000L * i, i);
+        }
+
+        final List<Entry> read = new ArrayList<>();
+        final int count = b.foreach((t, v) -> {
+            read.add(new Entry(t, v));
+            if (read.size() == 10)
+            {
+                b.reset();
+            }
+            return true;
+        });
+
+        assertThat(count).isEqualTo(10);
+        assertThat(read.get(9)).isEqualTo(new Entry(9000L, 9));
+        assertThat(b.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldWriteWideEscapeForDeltaOfDeltaBeyondInt() throws Exception
+    {
+        long[] timestamps = {0, 2_000_000_000L, 0, 2_000_000_000L, 2_000_000_001L};
+        double[] values = {1, 2, 3, 4, 5};
+
+        assertWriteAndReadValues(timestamps, values);
+        assertThat(b.lastTimestamp()).isEqualTo(2_000_000_001L);
+    }
+
+    @Test
+    public void shouldKeepAppendingWhenLastTimestampDeltaOverflowsInt() throws Exception
+    {
+        assertThat(b.append(0, 1).isOk()).isTrue();
+        assertThat(b.append(Integer.MAX_VALUE, 2).isOk()).isTrue();
+        assertThat(b.append(Integer.MAX_VALUE + 1L, 3).isOk()).isTrue();
+
+        assertThat(b.lastTimestamp()).isEqualTo(Integer.MAX_VALUE + 1L);
+        assertTimestampsAndValues(
+            b, Arrays.asList(new Entry(0, 1), new Entry(Integer.MAX_VALUE, 2), new Entry(Integer.MAX_VALUE + 1L, 3)));
+    }
+
+    @Test
+    public void shouldSpanMoreThanIntDeltaWithNanosecondPrecision() throws Exception
+    {
+        final Block nanos = Block.newHeapBlock(BlockSize.DEFAULT, TimestampPrecision.NANOSECONDS);
+        final Random r = new Random(5);
+        final List<Entry> entries = new ArrayList<>();
+
+        long timestamp = 1_500_000_000_123_456_789L;
+        for (int i = 0; i < 100; i++)
+        {
+            assertThat(nanos.append(timestamp, i).isOk()).isTrue();
+            entries.add(new Entry(timestamp, i));
+            timestamp += 100_000_000 + r.nextInt(1000) - 500;
+        }
+
+        final long lastTimestamp = entries.get(entries.size() - 1).timestamp;
+        assertThat(lastTimestamp - nanos.firstTimestamp() > Integer.MAX_VALUE).isTrue();
+        assertThat(nanos.lastTimestamp()).isEqualTo(lastTimestamp);
+        assertTimestampsAndValues(nanos, entries);
+
+        nanos.freeze();
+
+        final Aggregate aggregate = new Aggregate();
+        nanos.aggregate(Long.MIN_VALUE, Long.MAX_VALUE, aggregate);
+
+        assertThat(nanos.lastTimestamp()).isEqualTo(lastTimestamp);
+        assertThat(aggregate.count()).isEqualTo(entries.size());
+        assertThat(aggregate.lastTimestamp()).isEqualTo(lastTimestamp);
+        assertTimestampsAndValues(nanos, entries);
+    }
+
+    @Test
+    public void shouldEncodeMicrosecondJitterInFewerBitsWithMicrosecondPrecision() throws Exception
+    {
+        final Block millis = Block.newHeapBlock(BlockSize.KB_1, TimestampPrecision.MILLISECONDS);
+        final Block micros = Block.newHeapBlock(BlockSize.KB_1, TimestampPrecision.MICROSECONDS);
+        final Random r = new Random(11);
+        final List<Entry> entries = new ArrayList<>();
+
+        long timestamp = 1_500_000_000_000_000L;
+        for (int i = 0; i < 100; i++)
+        {
+            timestamp += 1_000_000 + r.nextInt(400) - 200;
+            millis.append(timestamp, 7);
+            micros.append(timestamp, 7);
+            entries.add(new Entry(timestamp, 7));
+        }
+
+        assertThat(micros.timestampPrecision()).isEqualTo(TimestampPrecision.MICROSECONDS);
+        assertThat(millis.timestampPrecision()).isEqualTo(TimestampPrecision.MILLISECONDS);
+        assertThat(micros.lengthInBits()).isLessThan(millis.lengthInBits());
+        assertTimestampsAndValues(micros, entries);
+    }
+
+    @Test
+    public void shouldKeepTimestampPrecisionThroughResetAndCopy() throws Exception
+    {
+        final Block nanos = Block.newHeapBlock(BlockSize.DEFAULT, TimestampPrecision.NANOSECONDS);
+        final Block nanosCopy = Block.newHeapBlock(BlockSize.DEFAULT);
+
+        nanos.append(1_500_000_000_123_456_789L, 1);
+        nanos.copyTo(nanosCopy);
+        nanos.reset();
+
+        assertThat(nanos.timestampPrecision()).isEqualTo(TimestampPrecision.NANOSECONDS);
+        assertThat(nanosCopy.timestampPrecision()).isEqualTo(TimestampPrecision.NANOSECONDS);
+        assertThat(nanosCopy.toString()).contains("2017-07-14T02:40:00.123456789Z");
+    }
+
+    @Test
+    public void shouldEncodeRepeatingLevelsInFewerBitsWithChimp() throws Exception
+    {
+        final Block chimpBlock = Block.newHeapBlock(BlockSize.DEFAULT, FloatCodec.CHIMP);
+        final double[] levels = {0.25, 0.5, 0.75, 1.5};
+        final Random r = new Random(7);
+        final List<Entry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++)
+        {
+            final Entry entry = new Entry(1000L * i, levels[r.nextInt(levels.length)]);
+
+            assertThat(b.append(entry.timestamp, entry.value).isOk()).isTrue();
+            assertThat(chimpBlock.append(entry.timestamp, entry.value).isOk()).isTrue();
+            entries.add(entry);
+        }
+
+        assertThat(chimpBlock.codec()).isEqualTo(BlockCodec.CHIMP);
+        assertThat(chimpBlock.lengthInBits()).isLessThan(b.lengthInBits());
+        assertTimestampsAndValues(chimpBlock, entries);
+    }
+
+    @Test
+    public void shouldSkipToCheckpointWhenDecodingChimpValues() throws Exception
+    {
+        final Block block = Block.newHeapBlock(BlockSize.KB_16, FloatCodec.CHIMP);
+        final List<Entry> entries = BlockGenerator.generateBlockData(new TimeSeriesSupplier(11111), block, new ArrayList<>());
+
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+
+        for (int from = 0; from < entries.size(); from += 53)
+        {
+            final int count = block.decodeInto(entries.get(from).timestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+            assertThat(count).isEqualTo(entries.size() - from);
+            for (int i = 0; i < count; i++)
+            {
+                assertThat(values[i]).isEqualTo(entries.get(from + i).value);
+            }
+        }
+    }
+
+    @Test
+    public void shouldAppendBatchAsPointsWouldBe() throws Exception
+    {
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(11111);
+        final long[] timestamps = new long[Block.MAX_POINTS];
+        final double[] values = new double[Block.MAX_POINTS];
+        for (int i = 0; i < timestamps.length; i++)
+        {
+            final Entry entry = supplier.get();
+            timestamps[i] = entry.timestamp;
+            values[i] = entry.value;
+        }
+
+        int appended = 0;
+        while (appended < timestamps.length && b.append(timestamps[appended], values[appended]).isOk())
+        {
+            appended++;
+        }
+
+        final Block batch = Block.newHeapBlock();
+        assertThat(batch.appendAll(timestamps, values, 0, 3)).isEqualTo(3);
+        assertThat(batch.appendAll(timestamps, values, 3, timestamps.length)).isEqualTo(appended - 3);
+        assertThat(batch.appendAll(timestamps, values, appended, timestamps.length)).isEqualTo(0);
+
+        assertThat(batch).isEqualTo(b);
+        assertThat(batch.lastTimestamp()).isEqualTo(timestamps[appended - 1]);
+
+        batch.freeze();
+        assertThat(batch.appendAll(timestamps, values, appended, timestamps.length)).isEqualTo(0);
+    }
+
+    private void assertRegularRoundTrip(TimestampPrecision precision, long interval, BlockCodec expectedCodec)
+    {
+        final Block block = Block.newHeapBlock(BlockSize.KB_1, precision);
+        final List<Entry> entries = new ArrayList<>();
+
+        final long firstTimestamp = precision.fromMillis(1_500_000_000_000L);
+        for (int i = 0; i < 100; i++)
+        {
+            assertThat(block.append(firstTimestamp + interval * i, i + 0.5).isOk()).isTrue();
+            entries.add(new Entry(firstTimestamp + interval * i, i + 0.5));
+        }
+
+        block.freeze();
+
+        assertThat(block.codec()).isEqualTo(expectedCodec);
+        assertThat(block.lastTimestamp()).isEqualTo(entries.get(entries.size() - 1).timestamp);
+        assertTimestampsAndValues(block, entries);
+    }
+
+    private static class RegularSeriesSupplier implements Supplier<Entry>
+    {
+        private final Random r = new Random(11111);
+        private long timestamp = 1_500_000_000_000L;
+
+        @Override
+        public Entry get()
+        {
+            timestamp += 10_000;
+            return new Entry(timestamp, Math.round(r.nextDouble() * 1000) / 100.0);
+        }
+    }
+
     private void assertWriteAndReadValues(long[] timestamps, double[] values)
     {
         final List<Entry> entries = new ArrayList<>(timestamps.length);
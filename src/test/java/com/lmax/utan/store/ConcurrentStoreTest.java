@@ -0,0 +1,647 @@
+package com.lmax.utan.store;
+
+import com.lmax.utan.io.Dirs;
+import org.agrona.IoUtil;
+import org.agrona.concurrent.IdleStrategy;
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class ConcurrentStoreTest
+{
+    private static final ThreadFactory DAEMON_THREADS = r ->
+    {
+        final Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private final List<ConcurrentStore> stores = new ArrayList<>();
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = Dirs.createTempDir(ConcurrentStoreTest.class.getSimpleName());
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        for (final ConcurrentStore store : stores)
+        {
+            store.stopAndWait();
+        }
+
+        IoUtil.delete(dir, true);
+    }
+
+    @Test
+    public void appendThroughSeriesHandles() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder().shardCount(4));
+
+        final String key = "series.handle.key";
+        final SeriesHandle handle = store.handle(new StringBuilder(key));
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+
+        assertThat(handle.key()).isEqualTo(key);
+        assertThat(handle.shard()).isEqualTo(store.shardOf(key));
+        assertThat(store.handle(new UnsafeBuffer(keyBytes), 0, keyBytes.length)).isSameAs(handle);
+
+        store.start();
+
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(2, System.currentTimeMillis());
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            final Entry entry = supplier.get();
+            store.append(i % 2 == 0 ? handle : store.handle(key), entry.timestamp, entry.value);
+            entries.add(entry);
+        }
+
+        store.flush(key).get(5, TimeUnit.SECONDS);
+
+        assertThat(readAll(key, entries)).isEqualTo(entries);
+    }
+
+    @Test
+    public void idleWriterWithConfiguredStrategy() throws Exception
+    {
+        final CountDownLatch idled = new CountDownLatch(1);
+        final ConcurrentStore store = newStore(builder().idleStrategy(() -> new CountingIdleStrategy(idled)));
+
+        store.start();
+        assertThat(idled.await(5, TimeUnit.SECONDS)).isTrue();
+
+        final List<Entry> entries = appendPoints(store, "idle.writer.key", 1000);
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(readAll("idle.writer.key", entries)).isEqualTo(entries);
+        assertThat(store.writerWorkCycles() > 0).isTrue();
+        assertThat(store.writerIdleCycles() > 0).isTrue();
+        assertThat(store.blocksWritten() >= store.writerWorkCycles()).isTrue();
+    }
+
+    @Test
+    public void writeOnlyFrozenBlocksUntilStopped() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder().writePolicy(ActiveBlockWritePolicy.frozenOnly()));
+
+        store.start();
+        final List<Entry> entries = appendPoints(store, "frozen.only.key", 1000);
+        store.stopAndWait();
+
+        // Only the final write on stopping stores the active block, so each block is written once.
+        assertThat(readAll("frozen.only.key", entries)).isEqualTo(entries);
+        assertThat(store.writeAmplification() < 1.5).isTrue();
+    }
+
+    @Test
+    public void countNoPayloadForFreezeThatShrinksBlock() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+        store.start();
+
+        final long startTimestamp = System.currentTimeMillis();
+        final Block expected = Block.newHeapBlock();
+        int count = 0;
+        while (expected.append(startTimestamp + 1000L * count, count % 10).isOk())
+        {
+            count++;
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            store.append("shrinking.key", startTimestamp + 1000L * i, i % 10);
+        }
+
+        store.flush().get(5, TimeUnit.SECONDS);
+        final int activeBits = expected.lengthInBits();
+        assertThat(store.payloadBytesWritten()).isEqualTo((long) activeBits / 8);
+
+        // Regular timestamps are recoded to a smaller codec when the block freezes.
+        expected.freeze();
+        assertThat(expected.lengthInBits() < activeBits).isTrue();
+
+        final Block next = Block.newHeapBlock();
+        next.append(startTimestamp + 1000L * count, count % 10);
+
+        store.append("shrinking.key", startTimestamp + 1000L * count, count % 10);
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(store.payloadBytesWritten()).isEqualTo((long) (activeBits + next.lengthInBits()) / 8);
+    }
+
+    @Test
+    public void dropPointsOverMemoryBudgetUntilPersisted() throws Exception
+    {
+        final ConcurrentStore store = newStore(
+            builder().maxUnpersistedBytes(BlockSize.DEFAULT.byteLength()).backpressurePolicy(BackpressurePolicy.DROP));
+
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(2, System.currentTimeMillis());
+
+        // Without the writer running the first block to fill takes the store over its budget.
+        int appended = 0;
+        Entry entry = supplier.get();
+        while (store.append("memory.budget.key", entry.timestamp, entry.value))
+        {
+            appended++;
+            entry = supplier.get();
+        }
+
+        assertThat(appended > 0).isTrue();
+        assertThat(store.droppedPoints()).isEqualTo(1L);
+        assertThat(store.unpersistedBytes()).isEqualTo(2L * BlockSize.DEFAULT.byteLength());
+
+        store.start();
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(store.unpersistedBytes()).isEqualTo((long) BlockSize.DEFAULT.byteLength());
+
+        entry = supplier.get();
+        assertThat(store.append("memory.budget.key", entry.timestamp, entry.value)).isTrue();
+    }
+
+    @Test
+    public void appendBatchesAcrossBlocks() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+        store.start();
+
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(2, System.currentTimeMillis());
+        final List<Entry> entries = new ArrayList<>();
+        final long[] timestamps = new long[250];
+        final double[] values = new double[250];
+        for (int batch = 0; batch < 4; batch++)
+        {
+            for (int i = 0; i < timestamps.length; i++)
+            {
+                final Entry entry = supplier.get();
+                timestamps[i] = entry.timestamp;
+                values[i] = entry.value;
+                entries.add(entry);
+            }
+
+            assertThat(store.append("batch.append.key", timestamps, values, timestamps.length)).isTrue();
+        }
+
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        final long[] readTimestamps = new long[entries.size()];
+        final double[] readValues = new double[entries.size()];
+        final int count = new PersistentStoreReader(dir).query(
+            "batch.append.key", entries.get(0).timestamp, lastTimestamp(entries) + 1, readTimestamps, readValues, 0);
+
+        assertThat(count).isEqualTo(entries.size());
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(new Entry(readTimestamps[i], readValues[i])).isEqualTo(entries.get(i));
+        }
+    }
+
+    @Test
+    public void retrySeriesThatFailedToBeWritten() throws Exception
+    {
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        final ConcurrentStore store = newStore(builder().errorHandler(errors::add));
+
+        // A file where the day directory of the series should be fails every write to it.
+        final long startTimestamp = ZonedDateTime.of(2017, 8, 6, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        final File blocker = PersistentStore.getTimeDir(PersistentStore.getKeyDir(dir, "failing.key", true), startTimestamp, false);
+        assertThat(blocker.createNewFile()).isTrue();
+
+        store.start();
+        final List<Entry> entries = appendPoints(store, "failing.key", new TimeSeriesSupplier(2, startTimestamp), 100);
+
+        assertFlushFails(store);
+        assertThat(errors.isEmpty()).isFalse();
+        assertThat(store.writeFailures() > 0).isTrue();
+
+        // The failure is kept until the series is written, not just reported to the first flush.
+        assertFlushFails(store);
+
+        // Nothing more is appended, so only the retry writes the series.
+        assertThat(blocker.delete()).isTrue();
+        final long dataSyncs = store.dataSyncs();
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(readAll("failing.key", entries)).isEqualTo(entries);
+        assertThat(store.dataSyncs() > dataSyncs).isTrue();
+    }
+
+    @Test
+    public void writeOnlySeriesDirtiedSinceTheirLastWrite() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+        store.start();
+
+        final long startTimestamp = ZonedDateTime.of(2017, 8, 6, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        store.append("dirty.key", startTimestamp, 1.0);
+        store.append("clean.key", startTimestamp, 1.0);
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(store.blocksWritten()).isEqualTo(2L);
+
+        store.append("dirty.key", startTimestamp + 1000, 2.0);
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(store.blocksWritten()).isEqualTo(3L);
+    }
+
+    @Test
+    public void retryFailedWritesWithoutWaitingForFlush() throws Exception
+    {
+        final List<Throwable> errors = new CopyOnWriteArrayList<>();
+        final ConcurrentStore store = newStore(builder().errorHandler(errors::add));
+
+        final long startTimestamp = ZonedDateTime.of(2017, 8, 6, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        final File blocker = PersistentStore.getTimeDir(PersistentStore.getKeyDir(dir, "retried.key", true), startTimestamp, false);
+        assertThat(blocker.createNewFile()).isTrue();
+
+        store.start();
+        final List<Entry> entries = appendPoints(store, "retried.key", new TimeSeriesSupplier(2, startTimestamp), 100);
+
+        await(() -> !errors.isEmpty());
+        assertThat(store.writeFailures() > 0).isTrue();
+        assertThat(store.blocksWritten()).isEqualTo(0L);
+
+        // Nothing more is appended or flushed, so only the writer retrying by itself stores the series.
+        assertThat(blocker.delete()).isTrue();
+        await(() -> store.blocksWritten() > 0);
+
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertThat(readAll("retried.key", entries)).isEqualTo(entries);
+    }
+
+    @Test
+    public void writeSeriesAgainWhenDirtiedWhileBeingWritten() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+        store.start();
+
+        // Each point is appended as soon as the one before is on disk, often while the writer is still finishing
+        // that write. With no flush, a point is only stored if the series is written again after it.
+        final PersistentStoreReader reader = new PersistentStoreReader(dir);
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(2, System.currentTimeMillis());
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++)
+        {
+            final Entry entry = supplier.get();
+            store.append("redirtied.key", entry.timestamp, entry.value);
+            entries.add(entry);
+
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (reader.lastTimestamp("redirtied.key") != entry.timestamp)
+            {
+                assertThat(System.nanoTime() < deadline).isTrue();
+            }
+        }
+
+        assertThat(readAll("redirtied.key", entries)).isEqualTo(entries);
+    }
+
+    @Test
+    public void storeLatePointsWithTheDayTheyFallOn() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+        store.start();
+
+        final long day = ZonedDateTime.of(2017, 8, 6, 12, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        final long nextDay = day + TimeUnit.DAYS.toMillis(1);
+        final List<Entry> expected = new ArrayList<>();
+        for (final long timestamp : new long[] {day, nextDay, nextDay + TimeUnit.HOURS.toMillis(2)})
+        {
+            store.append("late.days.key", timestamp, 0.0);
+            expected.add(new Entry(timestamp, 0.0));
+        }
+
+        // Late points alternating between the days.
+        for (int i = 0; i < 10; i++)
+        {
+            final long timestamp = (0 == i % 2 ? day : nextDay) + TimeUnit.HOURS.toMillis(1) + i;
+            store.append("late.days.key", timestamp, i);
+            expected.add(new Entry(timestamp, i));
+        }
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        final File keyDir = PersistentStore.getKeyDir(dir, "late.days.key", false);
+        assertThat(new File(PersistentStore.getTimeDir(keyDir, day, false), "late.dat").exists()).isTrue();
+        assertThat(new File(PersistentStore.getTimeDir(keyDir, nextDay, false), "late.dat").exists()).isTrue();
+
+        expected.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+        assertThat(readMerged("late.days.key", expected)).isEqualTo(expected);
+        assertThat(store.latePoints()).isEqualTo(10L);
+    }
+
+    @Test
+    public void failFlushOnceStopped() throws Exception
+    {
+        final ConcurrentStore store = newStore(builder());
+
+        store.start();
+        final List<Entry> entries = appendPoints(store, "stopped.flush.key", 100);
+        store.stopAndWait();
+
+        assertThat(store.flush().isCompletedExceptionally()).isTrue();
+
+        // Stopping writes what was appended, the flush fails only because no writer is left to flush it.
+        assertThat(readAll("stopped.flush.key", entries)).isEqualTo(entries);
+    }
+
+    @Test
+    public void replayWriteAheadLogAfterCrash() throws Exception
+    {
+        final TimeSeriesSupplier supplier = new TimeSeriesSupplier(2, System.currentTimeMillis());
+
+        // Leaves an active block persisted and the log deleted.
+        final ConcurrentStore stopped = newStore(loggedBuilder());
+        stopped.start();
+        final List<Entry> entries = appendPoints(stopped, "replayed.key", supplier, 300);
+        stopped.stopAndWait();
+
+        // Never started, so only the full segments and buffers of the log reach the disk before it is abandoned.
+        final ConcurrentStore crashed = newStore(loggedBuilder());
+        entries.addAll(appendPoints(crashed, "replayed.key", supplier, 5000));
+
+        final ConcurrentStore store = newStore(loggedBuilder());
+        store.start();
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        final List<Entry> readData = readAll("replayed.key", entries);
+        assertThat(readData.size() > 300 + 2000).isTrue();
+        assertThat(readData).isEqualTo(entries.subList(0, readData.size()));
+
+        store.stopAndWait();
+        assertThat(new File(dir, "wal/0").list().length).isEqualTo(0);
+    }
+
+    @Test
+    public void replayLoggedLatePointsNotYetPersisted() throws Exception
+    {
+        final ConcurrentStore stopped = newStore(loggedBuilder());
+        stopped.start();
+        final List<Entry> entries = appendPoints(stopped, "late.replayed.key", 300);
+        final long firstTimestamp = entries.get(0).timestamp;
+        final long lastTimestamp = lastTimestamp(entries);
+        stopped.append("late.replayed.key", firstTimestamp + 500, 1.0);
+        stopped.stopAndWait();
+
+        // A log left by a crash, holding points persisted before it as well as ones lost with it.
+        try (WriteAheadLog wal = new WriteAheadLog(new File(dir, "wal/0"), loggedPolicy(), segment -> { }))
+        {
+            wal.append(0, "late.replayed.key", firstTimestamp + 500, 1.0);
+            wal.append(0, "late.replayed.key", lastTimestamp, entries.get(entries.size() - 1).value);
+            wal.append(0, "late.replayed.key", firstTimestamp + 700, 2.0);
+            wal.append(0, "late.replayed.key", lastTimestamp + 1000, 3.0);
+        }
+
+        final ConcurrentStore store = newStore(loggedBuilder());
+        store.start();
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        final List<Entry> expected = new ArrayList<>(entries);
+        expected.add(1, new Entry(firstTimestamp + 500, 1.0));
+        expected.add(2, new Entry(firstTimestamp + 700, 2.0));
+        expected.add(new Entry(lastTimestamp + 1000, 3.0));
+        assertThat(readMerged("late.replayed.key", expected)).isEqualTo(expected);
+    }
+
+    @Test
+    public void keepLogSegmentsUntilTheirBufferedPointsArePersisted() throws Exception
+    {
+        // Nothing leaves the reorder buffer by the lateness window, only by draining it.
+        final ConcurrentStore store = newStore(loggedBuilder().latenessWindowMillis(TimeUnit.DAYS.toMillis(1)));
+        store.start();
+
+        final List<Entry> entries = appendPoints(store, "buffered.key", 10_000);
+        store.flush("other.key").get(5, TimeUnit.SECONDS);
+
+        // The closed segments hold points still buffered, so they are kept.
+        assertThat(new File(dir, "wal/0").list().length > 1).isTrue();
+
+        // Flushing releases them, and the segments go once they are persisted.
+        store.flush().get(5, TimeUnit.SECONDS);
+        assertThat(readAll("buffered.key", entries)).isEqualTo(entries);
+        assertThat(new File(dir, "wal/0").list().length).isEqualTo(1);
+
+        store.stopAndWait();
+        assertThat(new File(dir, "wal/0").list().length).isEqualTo(0);
+    }
+
+    @Test
+    public void keepReorderingPointsAcrossLogSegments() throws Exception
+    {
+        final ConcurrentStore store = newStore(loggedBuilder().latenessWindowMillis(TimeUnit.SECONDS.toMillis(10)));
+        store.start();
+
+        // Each run of ten points a second apart arrives newest first, well within the window.
+        final long startTimestamp = ZonedDateTime.of(2016, 9, 2, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        final List<Entry> entries = new ArrayList<>();
+        for (int run = 0; run < 2_000; run++)
+        {
+            for (int i = 9; i >= 0; i--)
+            {
+                final long timestamp = startTimestamp + 1000L * (10 * run + i);
+                store.append("reordered.key", timestamp, run + 0.5);
+            }
+
+            for (int i = 0; i < 10; i++)
+            {
+                entries.add(new Entry(startTimestamp + 1000L * (10 * run + i), run + 0.5));
+            }
+        }
+
+        store.flush().get(5, TimeUnit.SECONDS);
+
+        assertThat(store.latePoints()).isEqualTo(0L);
+        assertThat(readAll("reordered.key", entries)).isEqualTo(entries);
+        assertThat(new File(dir, "wal/0").list().length).isEqualTo(1);
+    }
+
+    @Test
+    public void releasePointsOfIdleSeriesToRetireLogSegments() throws Exception
+    {
+        final ConcurrentStore store = newStore(loggedBuilder().latenessWindowMillis(50));
+        store.start();
+
+        // The idle series never receives a newer point, so only the wall clock releases this one.
+        final long startTimestamp = ZonedDateTime.of(2016, 9, 2, 0, 0, 0, 0, ZoneOffset.UTC).toInstant().toEpochMilli();
+        store.append("idle.key", startTimestamp, 1.0);
+
+        final File logDir = new File(dir, "wal/0");
+        final File firstSegment = logDir.listFiles()[0];
+
+        long timestamp = startTimestamp;
+        while (logDir.list().length < 2)
+        {
+            store.append("busy.key", ++timestamp, 2.0);
+        }
+
+        Thread.sleep(100);
+
+        final long deadline = System.currentTimeMillis() + 5_000;
+        while (firstSegment.exists() && System.currentTimeMillis() < deadline)
+        {
+            store.append("busy.key", ++timestamp, 2.0);
+        }
+
+        assertThat(firstSegment.exists()).isFalse();
+
+        final List<Entry> idle = new ArrayList<>();
+        idle.add(new Entry(startTimestamp, 1.0));
+        assertThat(readAll("idle.key", idle)).isEqualTo(idle);
+    }
+
+    private static void assertFlushFails(ConcurrentStore store) throws Exception
+    {
+        try
+        {
+            store.flush().get(5, TimeUnit.SECONDS);
+            fail("Flush should have failed");
+        }
+        catch (ExecutionException e)
+        {
+            assertThat(e.getCause() instanceof IOException).isTrue();
+        }
+    }
+
+    private static void await(Callable<Boolean> condition) throws Exception
+    {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.call())
+        {
+            assertThat(System.nanoTime() < deadline).isTrue();
+            Thread.sleep(1);
+        }
+    }
+
+    private ConcurrentStore.Builder builder()
+    {
+        return ConcurrentStore.builder(dir).threadFactory(DAEMON_THREADS);
+    }
+
+    private ConcurrentStore.Builder loggedBuilder()
+    {
+        return builder().writeAheadLogPolicy(loggedPolicy());
+    }
+
+    private static WriteAheadLogPolicy loggedPolicy()
+    {
+        return WriteAheadLogPolicy.groupCommit(1, TimeUnit.MILLISECONDS, 64 * 1024).withSegmentBytes(64 * 1024);
+    }
+
+    private ConcurrentStore newStore(ConcurrentStore.Builder builder) throws IOException
+    {
+        final ConcurrentStore store = builder.build();
+        stores.add(store);
+        return store;
+    }
+
+    private static List<Entry> appendPoints(ConcurrentStore store, String key, int count)
+    {
+        return appendPoints(store, key, new TimeSeriesSupplier(2, System.currentTimeMillis()), count);
+    }
+
+    private static List<Entry> appendPoints(ConcurrentStore store, String key, TimeSeriesSupplier supplier, int count)
+    {
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            final Entry entry = supplier.get();
+            store.append(key, entry.timestamp, entry.value);
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    private List<Entry> readAll(String key, List<Entry> entries) throws IOException
+    {
+        final List<Entry> readData = new ArrayList<>();
+        try (final Cursor<Block> query = new PersistentStoreReader(dir).query(
+            key, entries.get(0).timestamp, lastTimestamp(entries) + 1))
+        {
+            while (query.moveNext())
+            {
+                query.current().foreach((timestamp, value) -> readData.add(new Entry(timestamp, value)));
+            }
+        }
+
+        return readData;
+    }
+
+    private List<Entry> readMerged(String key, List<Entry> entries) throws IOException
+    {
+        final long[] timestamps = new long[entries.size() + 1];
+        final double[] values = new double[entries.size() + 1];
+        final int count = new PersistentStoreReader(dir).query(
+            key, entries.get(0).timestamp, lastTimestamp(entries) + 1, timestamps, values, 0);
+
+        final List<Entry> readData = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            readData.add(new Entry(timestamps[i], values[i]));
+        }
+
+        return readData;
+    }
+
+    private static long lastTimestamp(List<Entry> entries)
+    {
+        return entries.get(entries.size() - 1).timestamp;
+    }
+
+    private static final class CountingIdleStrategy implements IdleStrategy
+    {
+        private final IdleStrategy delegate = WriterIdleStrategy.SLEEPING.get();
+        private final CountDownLatch idled;
+
+        private CountingIdleStrategy(CountDownLatch idled)
+        {
+            this.idled = idled;
+        }
+
+        @Override
+        public void idle(int workCount)
+        {
+            if (0 == workCount)
+            {
+                idled.countDown();
+            }
+
+            delegate.idle(workCount);
+        }
+
+        @Override
+        public void idle()
+        {
+            idled.countDown();
+            delegate.idle();
+        }
+
+        @Override
+        public void reset()
+        {
+            delegate.reset();
+        }
+    }
+}
@@ -8,7 +8,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import static com.lmax.utan.store.Block.newHeapBlock;
@@ -16,7 +18,6 @@ import static com.lmax.utan.store.BlockGenerator.generateBlockData;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.junit.Assert.fail;
 
 public class InMemoryTimeSeriesTest
 {
@@ -63,20 +64,27 @@ public class InMemoryTimeSeriesTest
     }
 
     @Test
-    public void blowUpIfDataWouldGetWrapped() throws Exception
+    public void keepAppendingWhileOldestBlockIsBeingRead() throws Exception
     {
-        Supplier<Entry> supplier = new TimeSeriesSupplier(67890);
+        TimeSeriesSupplier supplier = new TimeSeriesSupplier(67890);
+        CountDownLatch reading = new CountDownLatch(1);
         CountDownLatch latch = new CountDownLatch(1);
 
+        while (inMemoryTimeSeries.head() < 3)
         {
             Entry entry = supplier.get();
             inMemoryTimeSeries.append(entry.timestamp, entry.value);
         }
+        final long lastTimestampBeforeQuery = supplier.getLastTimestamp();
 
+        final List<Long> read = new ArrayList<>();
         Runnable r = () -> inMemoryTimeSeries.query(
             0, Long.MAX_VALUE,
             (k, v) ->
             {
+                read.add(k);
+                reading.countDown();
+
                 try
                 {
                     latch.await();
@@ -90,43 +98,77 @@ public class InMemoryTimeSeriesTest
             });
 
         Thread t = new Thread(r);
-        t.setName("foo");
         t.start();
+        reading.await();
 
-        while (inMemoryTimeSeries.head() < 4)
+        // Wraps the ring many times over, resetting the block being read and those the query has yet to read.
+        for (int i = 0; i < 1_000_000; i++)
         {
             Entry entry = supplier.get();
             inMemoryTimeSeries.append(entry.timestamp, entry.value);
         }
 
-        try
+        latch.countDown();
+        t.join();
+
+        assertInOrderAndNoLaterThan(read, lastTimestampBeforeQuery);
+    }
+
+    @Test
+    public void neverDecodePointsAppendedToRecycledBlocks() throws Exception
+    {
+        TimeSeriesSupplier supplier = new TimeSeriesSupplier(67890);
+        AtomicBoolean appending = new AtomicBoolean(true);
+        List<AssertionError> failures = new CopyOnWriteArrayList<>();
+
+        Runnable r = () ->
         {
-            for (int i = 0; i < 1_000_000; i++)
+            final long[] timestamps = new long[Block.MAX_POINTS * 4];
+            final double[] values = new double[Block.MAX_POINTS * 4];
+
+            while (appending.get())
             {
-                Entry entry = supplier.get();
-                inMemoryTimeSeries.append(entry.timestamp, entry.value);
+                final int count = inMemoryTimeSeries.query(0, Long.MAX_VALUE, timestamps, values, 0);
+
+                final List<Long> read = new ArrayList<>();
+                for (int i = 0; i < count; i++)
+                {
+                    read.add(timestamps[i]);
+                }
+
+                try
+                {
+                    assertInOrderAndNoLaterThan(read, Long.MAX_VALUE);
+                }
+                catch (AssertionError e)
+                {
+                    failures.add(e);
+                }
             }
+        };
 
-            fail("Should have thrown exception");
-        }
-        catch (RuntimeException e)
-        {
-            // No-op
-        }
+        Thread t = new Thread(r);
+        t.start();
 
-        try
+        for (int i = 0; i < 1_000_000; i++)
         {
             Entry entry = supplier.get();
             inMemoryTimeSeries.append(entry.timestamp, entry.value);
-            fail("Should have thrown exception");
-        }
-        catch (RuntimeException e)
-        {
-            // No-op
         }
 
-        latch.countDown();
+        appending.set(false);
         t.join();
+
+        assertThat(failures.isEmpty()).isTrue();
+    }
+
+    private static void assertInOrderAndNoLaterThan(List<Long> timestamps, long lastTimestamp)
+    {
+        for (int i = 0; i < timestamps.size(); i++)
+        {
+            assertThat(timestamps.get(i) <= lastTimestamp).isTrue();
+            assertThat(0 == i || timestamps.get(i - 1) < timestamps.get(i)).isTrue();
+        }
     }
 
     private void assertQuery(List<Entry> entries, List<Block> blocks)
@@ -157,5 +199,16 @@ public class InMemoryTimeSeriesTest
             });
 
         assertThat(count[0]).isGreaterThan(0);
+
+        final long[] timestamps = new long[count[0]];
+        final double[] values = new double[count[0]];
+
+        assertThat(inMemoryTimeSeries.query(queryStart, queryEnd, timestamps, values, 0)).isEqualTo(count[0]);
+        for (int i = 0; i < count[0]; i++)
+        {
+            assertThat(timestamps[i]).isGreaterThanOrEqualTo(queryStart);
+            assertThat(timestamps[i]).isLessThan(queryEnd);
+            assertThat(values[i]).isEqualTo(timestampToValue.get(timestamps[i]));
+        }
     }
 }
\ No newline at end of file
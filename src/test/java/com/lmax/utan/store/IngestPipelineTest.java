@@ -0,0 +1,144 @@
+package com.lmax.utan.store;
+
+import com.lmax.utan.io.Dirs;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestPipelineTest
+{
+    private static final ThreadFactory DAEMON_THREADS = r ->
+    {
+        final Thread thread = new Thread(r);
+        thread.setDaemon(true);
+        return thread;
+    };
+
+    private File dir;
+    private ConcurrentStore store;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        dir = Dirs.createTempDir(IngestPipelineTest.class.getSimpleName());
+        store = new ConcurrentStore(dir, DAEMON_THREADS);
+    }
+
+    @Test
+    public void shouldAppendPointsFromManyProducers() throws Exception
+    {
+        final IngestPipeline pipeline = new IngestPipeline(store, DAEMON_THREADS, 64 * 1024);
+        final long startTimestamp = 1500000000000L;
+        final int pointsPerProducer = 2000;
+
+        store.start();
+        pipeline.start();
+
+        final Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++)
+        {
+            final String key = "producer." + i;
+            producers[i] = new Thread(
+                () ->
+                {
+                    for (int j = 0; j < pointsPerProducer; j++)
+                    {
+                        while (!pipeline.offer(key, startTimestamp + j * 1000L, j))
+                        {
+                            Thread.yield();
+                        }
+                    }
+                });
+            producers[i].start();
+        }
+
+        for (final Thread producer : producers)
+        {
+            producer.join();
+        }
+
+        pipeline.stopAndWait().get(5, TimeUnit.SECONDS);
+
+        final PersistentStoreReader reader = new PersistentStoreReader(dir);
+        final long endTimestamp = startTimestamp + pointsPerProducer * 1000L;
+        for (int i = 0; i < producers.length; i++)
+        {
+            final long[] timestamps = new long[pointsPerProducer];
+            final double[] values = new double[pointsPerProducer];
+
+            final int count = reader.query("producer." + i, startTimestamp, endTimestamp, timestamps, values, 0);
+
+            assertThat(count).isEqualTo(pointsPerProducer);
+            for (int j = 0; j < count; j++)
+            {
+                assertThat(timestamps[j]).isEqualTo(startTimestamp + j * 1000L);
+                assertThat(values[j]).isEqualTo((double) j);
+            }
+        }
+
+        store.stopAndWait();
+    }
+
+    @Test
+    public void shouldRejectPointsWhenFull() throws Exception
+    {
+        final IngestPipeline pipeline = new IngestPipeline(store, DAEMON_THREADS, 1024);
+
+        int offered = 0;
+        while (pipeline.offer("a.key", offered, offered))
+        {
+            offered++;
+        }
+
+        assertThat(offered > 0).isTrue();
+        assertThat(pipeline.drain()).isEqualTo(offered);
+        assertThat(pipeline.offer("a.key", offered, offered)).isTrue();
+    }
+
+    @Test
+    public void shouldKeepDrainingWhenStoreRejectsPoints() throws Exception
+    {
+        final File failFastDir = Dirs.createTempDir(IngestPipelineTest.class.getSimpleName());
+        final ConcurrentStore failFastStore = ConcurrentStore.builder(failFastDir)
+            .threadFactory(DAEMON_THREADS)
+            .maxUnpersistedBytes(BlockSize.DEFAULT.byteLength())
+            .backpressurePolicy(BackpressurePolicy.FAIL_FAST)
+            .build();
+        final IngestPipeline pipeline = new IngestPipeline(failFastStore, DAEMON_THREADS, 1024);
+        final long startTimestamp = 1500000000000L;
+        final int points = 2000;
+
+        // Without its writer running the store goes over its budget once the first block fills, and stays over it.
+        pipeline.start();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (int i = 0; i < points; i++)
+        {
+            while (!pipeline.offer("rejected.key", startTimestamp + i * 1000L, i))
+            {
+                assertThat(System.nanoTime() < deadline).isTrue();
+                Thread.yield();
+            }
+        }
+
+        final CompletableFuture<Void> flushed = pipeline.stopAndWait();
+        failFastStore.start();
+        flushed.get(5, TimeUnit.SECONDS);
+
+        final long[] timestamps = new long[points];
+        final double[] values = new double[points];
+        final int count = new PersistentStoreReader(failFastDir).query(
+            "rejected.key", startTimestamp, startTimestamp + points * 1000L, timestamps, values, 0);
+
+        assertThat(pipeline.rejectedPoints() > 0).isTrue();
+        assertThat(count + pipeline.rejectedPoints()).isEqualTo((long) points);
+
+        failFastStore.stopAndWait();
+    }
+}
@@ -9,7 +9,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
 
 import static com.lmax.utan.store.Block.newHeapBlock;
@@ -17,7 +19,6 @@ import static com.lmax.utan.store.BlockGenerator.generateBlockData;
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.junit.Assert.fail;
 
 public class OffHeapMemoryTimeSeriesTest
 {
@@ -67,22 +68,34 @@ public class OffHeapMemoryTimeSeriesTest
     }
 
     @Test
-    public void blowUpIfDataWouldGetWrapped() throws Exception
+    public void keepAppendingWhileOldestBlockIsBeingRead() throws Exception
     {
-        Supplier<Entry> supplier = new TimeSeriesSupplier(67890);
+        TimeSeriesSupplier supplier = new TimeSeriesSupplier(67890);
+        CountDownLatch reading = new CountDownLatch(1);
         CountDownLatch latch = new CountDownLatch(1);
 
+        while (inMemoryTimeSeries.getHead() < 3)
+        {
+            Entry entry = supplier.get();
+            inMemoryTimeSeries.append(entry.timestamp, entry.value);
+        }
+        final long lastTimestampBeforeQuery = supplier.getLastTimestamp();
+
+        final List<Long> read = new ArrayList<>();
         Runnable r = () -> inMemoryTimeSeries.query(
             0, Long.MAX_VALUE,
             (k, v) ->
             {
+                read.add(k);
+                reading.countDown();
+
                 try
                 {
                     latch.await();
                 }
                 catch (InterruptedException e)
                 {
-                    // No-op
+                    throw new RuntimeException(e);
                 }
 
                 return true;
@@ -90,41 +103,76 @@ public class OffHeapMemoryTimeSeriesTest
 
         Thread t = new Thread(r);
         t.start();
+        reading.await();
 
-        while (inMemoryTimeSeries.getHead() < 4)
+        // Wraps the ring many times over, resetting the block being read and those the query has yet to read.
+        for (int i = 0; i < 1_000_000; i++)
         {
             Entry entry = supplier.get();
             inMemoryTimeSeries.append(entry.timestamp, entry.value);
         }
 
-        try
+        latch.countDown();
+        t.join();
+
+        assertInOrderAndNoLaterThan(read, lastTimestampBeforeQuery);
+    }
+
+    @Test
+    public void neverDecodePointsAppendedToRecycledBlocks() throws Exception
+    {
+        TimeSeriesSupplier supplier = new TimeSeriesSupplier(67890);
+        AtomicBoolean appending = new AtomicBoolean(true);
+        List<AssertionError> failures = new CopyOnWriteArrayList<>();
+
+        Runnable r = () ->
         {
-            for (int i = 0; i < 1_000_000; i++)
+            final long[] timestamps = new long[Block.MAX_POINTS * 4];
+            final double[] values = new double[Block.MAX_POINTS * 4];
+
+            while (appending.get())
             {
-                Entry entry = supplier.get();
-                inMemoryTimeSeries.append(entry.timestamp, entry.value);
+                final int count = inMemoryTimeSeries.query(0, Long.MAX_VALUE, timestamps, values, 0);
+
+                final List<Long> read = new ArrayList<>();
+                for (int i = 0; i < count; i++)
+                {
+                    read.add(timestamps[i]);
+                }
+
+                try
+                {
+                    assertInOrderAndNoLaterThan(read, Long.MAX_VALUE);
+                }
+                catch (AssertionError e)
+                {
+                    failures.add(e);
+                }
             }
+        };
 
-            fail("Should have thrown exception");
-        }
-        catch (RuntimeException e)
-        {
-            // No-op
-        }
+        Thread t = new Thread(r);
+        t.start();
 
-        try
+        for (int i = 0; i < 1_000_000; i++)
         {
             Entry entry = supplier.get();
             inMemoryTimeSeries.append(entry.timestamp, entry.value);
-            fail("Should have thrown exception");
-        }
-        catch (RuntimeException e)
-        {
-            // No-op
         }
 
-        latch.countDown();
+        appending.set(false);
         t.join();
+
+        assertThat(failures.isEmpty()).isTrue();
+    }
+
+    private static void assertInOrderAndNoLaterThan(List<Long> timestamps, long lastTimestamp)
+    {
+        for (int i = 0; i < timestamps.size(); i++)
+        {
+            assertThat(timestamps.get(i) <= lastTimestamp).isTrue();
+            assertThat(0 == i || timestamps.get(i - 1) < timestamps.get(i)).isTrue();
+        }
     }
 
     private void assertQuery(List<Entry> entries, List<Block> blocks)
@@ -155,5 +203,16 @@ public class OffHeapMemoryTimeSeriesTest
             });
 
         assertThat(count[0]).isGreaterThan(0);
+
+        final long[] timestamps = new long[count[0]];
+        final double[] values = new double[count[0]];
+
+        assertThat(inMemoryTimeSeries.query(queryStart, queryEnd, timestamps, values, 0)).isEqualTo(count[0]);
+        for (int i = 0; i < count[0]; i++)
+        {
+            assertThat(timestamps[i]).isGreaterThanOrEqualTo(queryStart);
+            assertThat(timestamps[i]).isLessThan(queryEnd);
+            assertThat(values[i]).isEqualTo(timestampToValue.get(timestamps[i]));
+        }
     }
 }
\ No newline at end of file
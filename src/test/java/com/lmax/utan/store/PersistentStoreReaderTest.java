@@ -6,28 +6,35 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.Clock;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class PersistentStoreReaderTest
 {
     private final String key = "asdf.afd.asdf.aghdf.";
     private final SortedMap<Long, Block> blocks = new TreeMap<>();
+    private File dir;
     private PersistentStoreWriter writer;
     private PersistentStoreReader reader;
 
     @Before
     public void setup() throws IOException
     {
-        final File dir = Dirs.createTempDir("store");
+        dir = Dirs.createTempDir("store");
         writer = new PersistentStoreWriter(dir);
         reader = new PersistentStoreReader(dir);
 
@@ -55,6 +62,136 @@ public class PersistentStoreReaderTest
         assertBlockSame(1472960849927L, 1475040629466L);
     }
 
+    @Test
+    public void shouldDecodeRangeIntoArrays() throws Exception
+    {
+        final long startTimestamp = 1472960849927L;
+        final long endTimestamp = 1475040629466L;
+
+        final List<Entry> expected = new ArrayList<>();
+        for (Block block : blocks.values())
+        {
+            block.foreach(
+                (timestamp, value) ->
+                {
+                    if (startTimestamp <= timestamp && timestamp < endTimestamp)
+                    {
+                        expected.add(new Entry(timestamp, value));
+                    }
+                    return true;
+                });
+        }
+
+        final long[] timestamps = new long[expected.size() + 1];
+        final double[] values = new double[expected.size() + 1];
+
+        final int count = reader.query(key, startTimestamp, endTimestamp, timestamps, values, 0);
+
+        final List<Entry> actual = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            actual.add(new Entry(timestamps[i], values[i]));
+        }
+
+        assertThat(actual).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldAggregateRange() throws Exception
+    {
+        final long startTimestamp = 1472960849927L;
+        final long endTimestamp = 1475040629466L;
+
+        final Aggregate expected = new Aggregate();
+        for (Block block : blocks.values())
+        {
+            block.foreach(
+                (timestamp, value) ->
+                    !(startTimestamp <= timestamp && timestamp < endTimestamp) || expected.accept(timestamp, value));
+        }
+
+        final Aggregate actual = new Aggregate();
+        reader.aggregate(key, startTimestamp, endTimestamp, actual);
+
+        assertThat(actual.toString()).isEqualTo(expected.toString());
+    }
+
+    @Test
+    public void shouldMergeLatePointsIntoRange() throws Exception
+    {
+        final long startTimestamp = 1472960849927L;
+        final long endTimestamp = 1475040629466L;
+
+        final Block late = Block.newHeapBlock();
+        late.append(startTimestamp + 2000, 2.0);
+        late.append(startTimestamp + 1000, 1.0);
+        late.append(startTimestamp - 1000, 3.0);
+        late.freeze();
+        writer.storeLate(key, late);
+
+        final List<Entry> expected = new ArrayList<>();
+        final Aggregate expectedAggregate = new Aggregate();
+        for (Block block : blocks.values())
+        {
+            block.foreach(
+                (timestamp, value) ->
+                    !(startTimestamp <= timestamp && timestamp < endTimestamp) ||
+                        expected.add(new Entry(timestamp, value)) && expectedAggregate.accept(timestamp, value));
+        }
+        expected.add(new Entry(startTimestamp + 1000, 1.0));
+        expected.add(new Entry(startTimestamp + 2000, 2.0));
+        expectedAggregate.accept(startTimestamp + 1000, 1.0);
+        expectedAggregate.accept(startTimestamp + 2000, 2.0);
+        expected.sort(Comparator.comparingLong(entry -> entry.timestamp));
+
+        final long[] timestamps = new long[expected.size() + 1];
+        final double[] values = new double[expected.size() + 1];
+
+        final int count = reader.query(key, startTimestamp, endTimestamp, timestamps, values, 0);
+
+        final List<Entry> actual = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            actual.add(new Entry(timestamps[i], values[i]));
+        }
+
+        assertThat(actual).isEqualTo(expected);
+
+        final Aggregate actualAggregate = new Aggregate();
+        reader.aggregate(key, startTimestamp, endTimestamp, actualAggregate);
+
+        assertThat(actualAggregate.count()).isEqualTo(expectedAggregate.count());
+        assertThat(actualAggregate.min()).isEqualTo(expectedAggregate.min());
+        assertThat(actualAggregate.max()).isEqualTo(expectedAggregate.max());
+    }
+
+    @Test
+    public void shouldReadLatePointsOfQueriedDaysOnly() throws Exception
+    {
+        final long startTimestamp = 1472960849927L;
+        final long laterDayTimestamp = startTimestamp + TimeUnit.DAYS.toMillis(2);
+        final long dayCount = count(startTimestamp);
+        final long laterDayCount = count(laterDayTimestamp);
+
+        final Block late = Block.newHeapBlock();
+        late.append(startTimestamp + 1000, 1.0);
+        late.freeze();
+        writer.storeLate(key, late);
+
+        final Block laterDayLate = Block.newHeapBlock();
+        laterDayLate.append(laterDayTimestamp + 1000, 2.0);
+        laterDayLate.append(laterDayTimestamp + 2000, 3.0);
+        writer.storeLate(key, laterDayLate);
+
+        final File keyDir = PersistentStore.getKeyDir(dir, key, false);
+        assertThat(new File(keyDir, "late.dat").exists()).isFalse();
+        assertThat(new File(PersistentStore.getTimeDir(keyDir, startTimestamp, false), "late.dat").exists()).isTrue();
+        assertThat(new File(PersistentStore.getTimeDir(keyDir, laterDayTimestamp, false), "late.dat").exists()).isTrue();
+
+        assertThat(count(startTimestamp)).isEqualTo(dayCount + 1);
+        assertThat(count(laterDayTimestamp)).isEqualTo(laterDayCount + 2);
+    }
+
     @Test
     public void shouldDetermineIfKeyExists() throws Exception
     {
@@ -68,6 +205,78 @@ public class PersistentStoreReaderTest
         assertThat(reader.lastTimestamp(key)).isEqualTo(blocks.lastKey());
     }
 
+    @Test
+    public void shouldReadBlocksWrittenBeforeTheVersionBit() throws Exception
+    {
+        final String baselineKey = "baseline.key";
+        final long startTimestamp = 1472774400000L;
+
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+        {
+            entries.add(new Entry(startTimestamp + 1000L * i + i % 3, 0.25 * i));
+        }
+        final int blockCount = storeAsBaseline(baselineKey, entries);
+
+        final long[] timestamps = new long[entries.size() + 1];
+        final double[] values = new double[entries.size() + 1];
+        final int count = reader.query(baselineKey, startTimestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+        final List<Entry> actual = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            actual.add(new Entry(timestamps[i], values[i]));
+        }
+
+        final Aggregate aggregate = new Aggregate();
+        reader.aggregate(baselineKey, startTimestamp, Long.MAX_VALUE, aggregate);
+
+        assertThat(blockCount > 2).isTrue();
+        assertThat(actual).isEqualTo(entries);
+        assertThat(aggregate.count()).isEqualTo(entries.size());
+        assertThat(reader.lastTimestamp(baselineKey)).isEqualTo(entries.get(entries.size() - 1).timestamp);
+    }
+
+    private long count(long startTimestamp) throws IOException
+    {
+        final Aggregate aggregate = new Aggregate();
+        reader.aggregate(key, startTimestamp, startTimestamp + TimeUnit.HOURS.toMillis(12), aggregate);
+        return aggregate.count();
+    }
+
+    /**
+     * Stores the entries as the writer did before the version bit, as whole 512 byte blocks one after the other with
+     * only the last not frozen, returning the number of blocks.
+     */
+    private int storeAsBaseline(String key, List<Entry> entries) throws IOException
+    {
+        final File timeDir = PersistentStore.getTimeDir(
+            PersistentStore.getKeyDir(dir, key, true), entries.get(0).timestamp, true);
+
+        int blockCount = 0;
+        try (FileChannel timeSeries = PersistentStore.getTimeSeriesChannel(timeDir, EnumSet.of(CREATE, WRITE)))
+        {
+            ReferenceBlockEncoder encoder = ReferenceBlockEncoder.version1();
+            for (final Entry entry : entries)
+            {
+                if (!encoder.append(entry.timestamp, entry.value).isOk())
+                {
+                    encoder.freeze();
+                    timeSeries.write(ByteBuffer.wrap(encoder.buffer().byteArray()), (long) blockCount * Block.BYTE_LENGTH);
+                    blockCount++;
+
+                    encoder = ReferenceBlockEncoder.version1();
+                    encoder.append(entry.timestamp, entry.value);
+                }
+            }
+
+            timeSeries.write(ByteBuffer.wrap(encoder.buffer().byteArray()), (long) blockCount * Block.BYTE_LENGTH);
+            blockCount++;
+        }
+
+        return blockCount;
+    }
+
     private void assertBlockSame(long startTimestamp, long endTimestamp) throws IOException
     {
         final List<Block> expected = new ArrayList<>();
@@ -11,9 +11,13 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static com.lmax.utan.store.BlockGenerator.generateBlockData;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class PersistentStoreWriterTest
 {
@@ -67,6 +71,257 @@ public class PersistentStoreWriterTest
         assertThat(block.lastTimestamp()).isEqualTo(entries.get(entries.size() - 1).timestamp);
     }
 
+    @Test
+    public void storeAndQueryBlocksOfNonDefaultSize() throws Exception
+    {
+        PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+        PersistentStoreReader toLoad = new PersistentStoreReader(dir);
+        final List<Entry> entries = new ArrayList<>();
+
+        for (int i = 0; i < 3; i++)
+        {
+            final Block block = Block.newHeapBlock(BlockSize.KB_4);
+            generateBlockData(timeSeriesSupplier, block, entries);
+            block.freeze();
+            toStore.store(key, block);
+        }
+
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+        final int count = toLoad.query(key, entries.get(0).timestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(entries.size());
+        assertThat(timestamps[count - 1]).isEqualTo(entries.get(count - 1).timestamp);
+        assertThat(toLoad.lastTimestamp(key)).isEqualTo(entries.get(count - 1).timestamp);
+    }
+
+    @Test
+    public void storeAndQueryMicrosecondBlocks() throws Exception
+    {
+        PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+        PersistentStoreReader toLoad = new PersistentStoreReader(dir, k -> TimestampPrecision.MICROSECONDS);
+        final Block block = Block.newHeapBlock(BlockSize.DEFAULT, TimestampPrecision.MICROSECONDS);
+        final long firstTimestamp = timeSeriesSupplier.getBeginTimestamp() * 1000 + 123;
+
+        for (int i = 0; i < 10; i++)
+        {
+            block.append(firstTimestamp + i * 1_000_250L, i);
+        }
+        block.freeze();
+        toStore.store(key, block);
+
+        final long[] timestamps = new long[10];
+        final double[] values = new double[10];
+        final int count = toLoad.query(key, firstTimestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(10);
+        assertThat(timestamps[9]).isEqualTo(firstTimestamp + 9 * 1_000_250L);
+        assertThat(PersistentStore.getTimeDir(toStore.keyDir(key), timeSeriesSupplier.getBeginTimestamp(), false).isDirectory()).isTrue();
+    }
+
+    @Test
+    public void storeAndQueryNanosecondBlockSpanningSeconds() throws Exception
+    {
+        PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+        PersistentStoreReader toLoad = new PersistentStoreReader(dir, k -> TimestampPrecision.NANOSECONDS);
+        final Block block = Block.newHeapBlock(BlockSize.DEFAULT, TimestampPrecision.NANOSECONDS);
+        final long firstTimestamp = timeSeriesSupplier.getBeginTimestamp() * 1_000_000 + 123_456;
+
+        for (int i = 0; i < 10; i++)
+        {
+            block.append(firstTimestamp + i * 1_000_000_250L, i);
+        }
+        block.freeze();
+        toStore.store(key, block);
+
+        final long[] timestamps = new long[10];
+        final double[] values = new double[10];
+        final int count = toLoad.query(key, firstTimestamp + 5_000_000_000L, Long.MAX_VALUE, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(5);
+        assertThat(timestamps[4]).isEqualTo(firstTimestamp + 9 * 1_000_000_250L);
+        assertThat(toLoad.lastTimestamp(key)).isEqualTo(firstTimestamp + 9 * 1_000_000_250L);
+    }
+
+    @Test
+    public void lastTimestampOfOpenNanosecondBlockSpanningSeconds() throws Exception
+    {
+        PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+        PersistentStoreReader toLoad = new PersistentStoreReader(dir, k -> TimestampPrecision.NANOSECONDS);
+        final Block block = Block.newHeapBlock(BlockSize.DEFAULT, TimestampPrecision.NANOSECONDS);
+        final long firstTimestamp = timeSeriesSupplier.getBeginTimestamp() * 1_000_000 + 123_456;
+
+        final long[] timestamps = new long[10];
+        final double[] values = new double[10];
+        for (int i = 0; i < 10; i++)
+        {
+            timestamps[i] = firstTimestamp + i * 1_000_000_250L;
+            values[i] = i;
+        }
+        block.appendAll(timestamps, values, 0, 10);
+        toStore.store(key, block);
+
+        assertThat(block.lastTimestamp()).isEqualTo(firstTimestamp + 9 * 1_000_000_250L);
+        assertThat(toLoad.lastTimestamp(key)).isEqualTo(firstTimestamp + 9 * 1_000_000_250L);
+    }
+
+    @Test
+    public void storeFrozenBlocksTrimmed() throws Exception
+    {
+        final List<Entry> entries = new ArrayList<>();
+        long storedLength = 0;
+
+        for (int i = 0; i < 3; i++)
+        {
+            // A new writer for the last block has to find the end of the trimmed blocks on disk.
+            final PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+            final Block block = Block.newHeapBlock(BlockSize.KB_4);
+            for (int j = 0; j < 10; j++)
+            {
+                final Entry entry = timeSeriesSupplier.get();
+                block.append(entry.timestamp, entry.value);
+                entries.add(entry);
+            }
+
+            toStore.store(key, block);
+            block.freeze();
+            toStore.store(key, block);
+            storedLength += block.storedByteLength();
+        }
+
+        final File timeDir = PersistentStore.getTimeDir(
+            new PersistentStoreWriter(dir).keyDir(key), entries.get(0).timestamp, false);
+        assertThat(new File(timeDir, "timeseries.dat").length()).isEqualTo(storedLength);
+        assertThat(storedLength < BlockSize.KB_4.byteLength()).isTrue();
+
+        final PersistentStoreReader toLoad = new PersistentStoreReader(dir);
+        final long[] timestamps = new long[entries.size()];
+        final double[] values = new double[entries.size()];
+        final int count = toLoad.query(key, entries.get(0).timestamp, Long.MAX_VALUE, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(entries.size());
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(new Entry(timestamps[i], values[i])).isEqualTo(entries.get(i));
+        }
+        assertThat(toLoad.lastTimestamp(key)).isEqualTo(entries.get(count - 1).timestamp);
+
+        final Aggregate aggregate = new Aggregate();
+        toLoad.aggregate(key, entries.get(0).timestamp, Long.MAX_VALUE, aggregate);
+        assertThat(aggregate.count()).isEqualTo((long) entries.size());
+    }
+
+    @Test
+    public void keepActiveLateBlockOfEarlierWriter() throws Exception
+    {
+        final long timestamp = timeSeriesSupplier.get().timestamp;
+        final Block block = Block.newHeapBlock();
+        block.append(timestamp, 0.0);
+        block.append(timestamp + 3000, 3.0);
+
+        final PersistentStoreWriter earlier = new PersistentStoreWriter(dir);
+        earlier.store(key, block);
+        final Block earlierLate = Block.newHeapBlock();
+        earlierLate.append(timestamp + 1000, 1.0);
+        earlier.storeLate(key, earlierLate);
+        earlier.close();
+
+        final PersistentStoreWriter later = new PersistentStoreWriter(dir);
+        final Block laterLate = Block.newHeapBlock();
+        laterLate.append(timestamp + 2000, 2.0);
+        later.storeLate(key, laterLate);
+        laterLate.append(timestamp + 2500, 2.5);
+        later.storeLate(key, laterLate);
+        later.close();
+
+        final long[] timestamps = new long[8];
+        final double[] values = new double[8];
+        final int count = new PersistentStoreReader(dir).query(key, timestamp, timestamp + 4000, timestamps, values, 0);
+
+        assertThat(count).isEqualTo(5);
+        for (int i = 0; i < count; i++)
+        {
+            assertThat(timestamps[i]).isEqualTo(timestamp + (long) (values[i] * 1000));
+        }
+    }
+
+    @Test
+    public void syncOnFreezeFromSyncThread() throws Exception
+    {
+        final PersistentStoreWriter toStore =
+            new PersistentStoreWriter(dir, DurabilityPolicy.onFreeze(), Thread::new, throwable -> { });
+        toStore.start();
+
+        final Block block = Block.newHeapBlock(BlockSize.KB_4);
+        block.append(timeSeriesSupplier.get().timestamp, 1.0);
+        toStore.store(key, block);
+        assertThat(toStore.syncs()).isEqualTo(0L);
+
+        block.freeze();
+        toStore.store(key, block);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (0 == toStore.syncs() && System.nanoTime() < deadline)
+        {
+            Thread.yield();
+        }
+
+        assertThat(toStore.syncs()).isEqualTo(1L);
+        toStore.close();
+    }
+
+    @Test
+    public void reportSyncFailureFromSyncThreadToNextSync() throws Exception
+    {
+        final BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        final PersistentStoreWriter toStore =
+            new PersistentStoreWriter(dir, DurabilityPolicy.onFreeze(), Thread::new, errors::add);
+        toStore.start();
+
+        // An active block does not ask for a sync, so its data file is gone by the time one is made.
+        final Block active = Block.newHeapBlock(BlockSize.KB_4);
+        final long timestamp = timeSeriesSupplier.get().timestamp;
+        active.append(timestamp, 1.0);
+        toStore.store(key, active);
+        final File timeDir = PersistentStore.getTimeDir(toStore.keyDir(key), timestamp, false);
+        assertThat(new File(timeDir, timeDir.list()[0]).delete()).isTrue();
+
+        final Block frozen = Block.newHeapBlock(BlockSize.KB_4);
+        frozen.append(timestamp, 2.0);
+        frozen.freeze();
+        toStore.store("another.key", frozen);
+
+        final Throwable error = errors.poll(5, TimeUnit.SECONDS);
+        assertThat(error instanceof IOException).isTrue();
+
+        try
+        {
+            toStore.sync();
+            fail("Should have thrown exception");
+        }
+        catch (IOException e)
+        {
+            // The file is forced again and fails again, either failure will do.
+        }
+
+        toStore.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectBlockOfDifferentSizeInSameFile() throws Exception
+    {
+        PersistentStoreWriter toStore = new PersistentStoreWriter(dir);
+
+        final Block block0 = Block.newHeapBlock(BlockSize.KB_1);
+        block0.append(timeSeriesSupplier.get().timestamp, 1.0);
+        block0.freeze();
+        toStore.store(key, block0);
+
+        final Block block1 = Block.newHeapBlock(BlockSize.BYTES_256);
+        block1.append(timeSeriesSupplier.get().timestamp, 2.0);
+        toStore.store(key, block1);
+    }
+
     @Test
     public void findBlockOnNextDay() throws Exception
     {
@@ -0,0 +1,180 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.AtomicBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import static com.lmax.utan.store.Block.BYTE_ORDER;
+import static com.lmax.utan.store.Block.COMPRESSED_DATA_START_BITS;
+import static com.lmax.utan.store.Block.FIRST_TIMESTAMP_OFFSET;
+import static com.lmax.utan.store.Block.FIRST_VALUE_OFFSET;
+
+/**
+ * The original bit at a time block decoder, kept to verify the production decoder against.
+ */
+public class ReferenceBlockDecoder
+{
+    private static final int TS_SHORT_PREFIX = 0b10;
+    private static final int TS_MED_PREFIX = 0b110;
+    private static final int TS_LONG_PREFIX = 0b1110;
+    private static final int TS_FULL_PREFIX = 0b11110;
+
+    private final AtomicBuffer buffer;
+
+    public ReferenceBlockDecoder(Block block)
+    {
+        this.buffer = new UnsafeBuffer(block.underlyingBuffer());
+    }
+
+    public int foreach(ValueConsumer consumer)
+    {
+        final int lengthInBits = new BlockHeader(buffer).lengthInBits();
+
+        if (lengthInBits < COMPRESSED_DATA_START_BITS)
+        {
+            return 0;
+        }
+
+        long timestamp = buffer.getLong(FIRST_TIMESTAMP_OFFSET, BYTE_ORDER);
+        double value = buffer.getDouble(FIRST_VALUE_OFFSET, BYTE_ORDER);
+        long lastXorValue = 0;
+
+        if (!consumer.accept(timestamp, value))
+        {
+            return 1;
+        }
+
+        long tMinusOne = timestamp;
+        long tMinusTwo = timestamp;
+
+        int bitOffset = COMPRESSED_DATA_START_BITS;
+
+        int count = 1;
+        while (bitOffset < lengthInBits)
+        {
+            final int delta;
+            if (0 == readBits(bitOffset, 1))
+            {
+                bitOffset += 1;
+                delta = 0;
+            }
+            else if (TS_SHORT_PREFIX == readBits(bitOffset, 2))
+            {
+                bitOffset += 2;
+                delta = readBits(bitOffset, Block.TS_SHORT_NBITS) + Block.TS_SHORT_MIN;
+                bitOffset += Block.TS_SHORT_NBITS;
+            }
+            else if (TS_MED_PREFIX == readBits(bitOffset, 3))
+            {
+                bitOffset += 3;
+                delta = readBits(bitOffset, Block.TS_MED_NBITS) + Block.TS_MED_MIN;
+                bitOffset += Block.TS_MED_NBITS;
+            }
+            else if (TS_LONG_PREFIX == readBits(bitOffset, 4))
+            {
+                bitOffset += 4;
+                delta = readBits(bitOffset, Block.TS_LONG_NBITS) + Block.TS_LONG_MIN;
+                bitOffset += Block.TS_LONG_NBITS;
+            }
+            else if (TS_FULL_PREFIX == readBits(bitOffset, 5))
+            {
+                bitOffset += 5;
+                delta = readBits(bitOffset, 32);
+                bitOffset += 32;
+            }
+            else
+            {
+                throw new IllegalStateException("Data Corrupt");
+            }
+
+            timestamp = delta + (tMinusOne - tMinusTwo) + tMinusOne;
+            tMinusTwo = tMinusOne;
+            tMinusOne = timestamp;
+
+            if (0 == readBits(bitOffset, 1))
+            {
+                bitOffset += 1;
+            }
+            else
+            {
+                final long prefixBits = readBits(bitOffset, 2);
+                bitOffset += 2;
+
+                if (0b10 == prefixBits)
+                {
+                    int leadingZeros = Long.numberOfLeadingZeros(lastXorValue);
+                    int trailingZeros = Long.numberOfTrailingZeros(lastXorValue);
+                    int validBits = 64 - (leadingZeros + trailingZeros);
+                    long xorValue = readBitsLong(bitOffset, validBits) << trailingZeros;
+
+                    value = Double.longBitsToDouble(xorValue ^ Double.doubleToLongBits(value));
+
+                    lastXorValue = xorValue;
+
+                    bitOffset += validBits;
+                }
+                else if (0b11 == prefixBits)
+                {
+                    int leadingZeros = readBits(bitOffset, 5);
+                    int length = readBits(bitOffset + 5, 6) + 1;
+                    long shift = 64 - (leadingZeros + length);
+                    long xorValue = readBitsLong(bitOffset + 5 + 6, length) << shift;
+
+                    value = Double.longBitsToDouble(xorValue ^ Double.doubleToLongBits(value));
+
+                    lastXorValue = xorValue;
+
+                    bitOffset += 5;
+                    bitOffset += 6;
+                    bitOffset += length;
+                }
+                else
+                {
+                    throw new IllegalStateException("Data Corrupt");
+                }
+            }
+
+            count++;
+            if (!consumer.accept(timestamp, value))
+            {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    private int readBits(int bitOffset, int numBits)
+    {
+        return (int) (readBitsLong(bitOffset, numBits) & 0xFFFFFFFFL);
+    }
+
+    private long readBitsLong(int bitOffset, int numBits)
+    {
+        int longAlignedByteOffset = (bitOffset / 64) * 8;
+        int bitSubIndex = bitOffset & 63;
+
+        long bitsUpper = buffer.getLong(longAlignedByteOffset, BYTE_ORDER);
+        long bitsLower;
+        if (longAlignedByteOffset + 8 < buffer.capacity())
+        {
+            bitsLower = buffer.getLong(longAlignedByteOffset + 8, BYTE_ORDER);
+        }
+        else
+        {
+            bitsLower = 0;
+        }
+
+        int shiftRight = (64 - bitSubIndex) - numBits;
+
+        long mask = longMask(numBits);
+        long valueHighPart = (shiftRight < 0) ? (bitsUpper << -shiftRight) & mask : (bitsUpper >>> shiftRight) & mask;
+        long valueLowPart = (shiftRight < 0) ? (bitsLower >>> (64 + shiftRight)) & longMask(-shiftRight) : 0;
+
+        return valueHighPart | valueLowPart;
+    }
+
+    private static long longMask(int numBits)
+    {
+        return numBits == 64 ? 0xFFFFFFFF_FFFFFFFFL : (1L << numBits) - 1;
+    }
+}
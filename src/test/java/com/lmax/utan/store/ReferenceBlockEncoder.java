@@ -0,0 +1,357 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.AtomicBuffer;
+import org.agrona.concurrent.UnsafeBuffer;
+
+import static com.lmax.utan.store.Block.BYTE_LENGTH;
+import static com.lmax.utan.store.Block.BYTE_ORDER;
+import static com.lmax.utan.store.Block.COMPRESSED_DATA_START_BITS;
+import static com.lmax.utan.store.Block.FIRST_TIMESTAMP_OFFSET;
+import static com.lmax.utan.store.Block.FIRST_VALUE_OFFSET;
+import static java.lang.Long.highestOneBit;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.lang.Math.min;
+import static java.lang.String.format;
+
+/**
+ * The original int temporary based block encoder, kept to verify the production encoder against. The
+ * {@link #version1()} encoder writes blocks exactly as they were stored before the version bit, with no flags in the
+ * header and the encoded data filling all 512 bytes.
+ */
+public class ReferenceBlockEncoder
+{
+    private static final int HEADER_LENGTH_BITS = 64;
+
+    private static final int TS_SHORT_MIN = -64;
+    private static final int TS_SHORT_MAX = 63;
+    private static final int TS_SHORT_PREFIX = 0b10;
+    private static final int TS_MED_MIN = -256;
+    private static final int TS_MED_MAX = 255;
+    private static final int TS_MED_PREFIX = 0b110;
+    private static final int TS_LONG_MIN = -2048;
+    private static final int TS_LONG_MAX = 2047;
+    private static final int TS_LONG_PREFIX = 0b1110;
+    private static final int TS_FULL_PREFIX = 0b11110;
+    private static final int TS_SHORT_NBITS = 7;
+    private static final int TS_MED_NBITS = 9;
+    private static final int TS_LONG_NBITS = 12;
+    private static final int TS_FILL_NBITS = 32;
+
+    private final AtomicBuffer buffer = new UnsafeBuffer(new byte[BYTE_LENGTH]);
+    private final BlockHeader header = new BlockHeader(buffer);
+    private final long flags;
+    private final int bitLengthLimit;
+
+    private long tMinusOne = 0;
+    private long tMinusTwo = 0;
+    private double lastValue = 0.0;
+    private long lastXorValue = 0;
+
+    private int temp0 = 0;
+    private int temp1 = 0;
+    private int temp2 = 0;
+    private int temp3 = 0;
+
+    public ReferenceBlockEncoder()
+    {
+        this(BlockHeader.flags(BlockSize.DEFAULT), BlockSize.DEFAULT.dataBitLimit());
+    }
+
+    private ReferenceBlockEncoder(long flags, int bitLengthLimit)
+    {
+        this.flags = flags;
+        this.bitLengthLimit = bitLengthLimit;
+        header.writeHeader(flags, false, HEADER_LENGTH_BITS, 0);
+    }
+
+    public static ReferenceBlockEncoder version1()
+    {
+        return new ReferenceBlockEncoder(0, BYTE_LENGTH * 8);
+    }
+
+    public AtomicBuffer buffer()
+    {
+        return buffer;
+    }
+
+    public void freeze()
+    {
+        header.writeHeader(flags, true, header.lengthInBits(), header.lastTimestampDelta());
+    }
+
+    public Block.AppendStatus append(long timestamp, double val)
+    {
+        int bitOffset = header.lengthInBits();
+
+        if (bitOffset == HEADER_LENGTH_BITS)
+        {
+            appendInitial(timestamp, val);
+            return Block.AppendStatus.OK;
+        }
+        else
+        {
+            return appendCompressed(bitOffset, timestamp, val);
+        }
+    }
+
+    private void appendInitial(long timestamp, double val)
+    {
+        buffer.putLong(FIRST_TIMESTAMP_OFFSET, timestamp, BYTE_ORDER);
+        buffer.putDouble(FIRST_VALUE_OFFSET, val, BYTE_ORDER);
+        header.writeHeader(flags, false, COMPRESSED_DATA_START_BITS, 0);
+
+        tMinusOne = timestamp;
+        tMinusTwo = timestamp;
+        lastValue = val;
+    }
+
+    private Block.AppendStatus appendCompressed(int bufferBitIndex, long timestamp, double val)
+    {
+        resetBitBuffer();
+
+        final long d = (timestamp - tMinusOne) - (tMinusOne - tMinusTwo);
+
+        final int timestampBitsAdded;
+        if (d == 0)
+        {
+            timestampBitsAdded = appendZeroTimestampDelta();
+        }
+        else if (TS_SHORT_MIN <= d && d <= TS_SHORT_MAX)
+        {
+            timestampBitsAdded = appendTimestampDelta(0, TS_SHORT_NBITS, TS_SHORT_PREFIX, (int) d - TS_SHORT_MIN);
+        }
+        else if (TS_MED_MIN <= d && d <= TS_MED_MAX)
+        {
+            timestampBitsAdded = appendTimestampDelta(0, TS_MED_NBITS, TS_MED_PREFIX, (int) d - TS_MED_MIN);
+        }
+        else if (TS_LONG_MIN <= d && d <= TS_LONG_MAX)
+        {
+            timestampBitsAdded = appendTimestampDelta(0, TS_LONG_NBITS, TS_LONG_PREFIX, (int) d - TS_LONG_MIN);
+        }
+        else if (Integer.MIN_VALUE <= d && d <= Integer.MAX_VALUE)
+        {
+            timestampBitsAdded = appendTimestampDelta(0, TS_FILL_NBITS, TS_FULL_PREFIX, (int) d);
+        }
+        else
+        {
+            throw new IllegalArgumentException(format(
+                "Timestamp delta out of range - delta: %d, timestamp: %d, tMinusOne: %d, tMinusTwo: %d",
+                d, timestamp, tMinusOne, tMinusTwo));
+        }
+
+        long valueAsLong = Double.doubleToLongBits(val);
+        long lastValueAsLong = Double.doubleToLongBits(lastValue);
+        long xorValue = valueAsLong ^ lastValueAsLong;
+
+        final int valueBitsAdded;
+        if (xorValue == 0)
+        {
+            valueBitsAdded = appendZeroValueXor(timestampBitsAdded);
+        }
+        else
+        {
+            valueBitsAdded = appendValueXor(timestampBitsAdded, xorValue, lastXorValue);
+        }
+
+        int totalBitsAdded = timestampBitsAdded + valueBitsAdded;
+
+        final int newBitLength = bufferBitIndex + totalBitsAdded;
+
+        if (newBitLength > bitLengthLimit)
+        {
+            return Block.AppendStatus.FULL;
+        }
+
+        flushTemp(bufferBitIndex, totalBitsAdded);
+
+        tMinusTwo = tMinusOne;
+        tMinusOne = timestamp;
+        lastValue = val;
+        lastXorValue = xorValue;
+
+        final long lastTimestampDelta = timestamp - header.firstTimestamp();
+        if (BlockHeader.isVersion2(flags) && BlockHeader.LONG_SPAN == BlockHeader.headerDelta(lastTimestampDelta))
+        {
+            buffer.putLong(
+                BlockSize.DEFAULT.summaryOffset() + Block.SUMMARY_LAST_TIMESTAMP_OFFSET, timestamp, BYTE_ORDER);
+        }
+
+        header.writeHeader(flags, false, newBitLength, lastTimestampDelta);
+
+        return Block.AppendStatus.OK;
+    }
+
+    private int appendZeroTimestampDelta()
+    {
+        return 1;
+    }
+
+    private int appendTimestampDelta(int bitOffset, int numBits, int markerBits, int timestampDelta)
+    {
+        int markerBitLength = numberOfTrailingZeros(highestOneBit(markerBits) << 1);
+
+        writeBits(bitOffset, markerBits, markerBitLength);
+        writeBits(bitOffset + markerBitLength, timestampDelta, numBits);
+
+        return markerBitLength + numBits;
+    }
+
+    private int appendZeroValueXor(@SuppressWarnings("unused") int i)
+    {
+        return 1;
+    }
+
+    private int appendValueXor(int bitOffset, long xorValue, long previousXorValue)
+    {
+        int leadingZeros = min(31, Long.numberOfLeadingZeros(xorValue));
+        int trailingZeros = Long.numberOfTrailingZeros(xorValue);
+        int prevLeadingZeros = Long.numberOfLeadingZeros(previousXorValue);
+        int prevTrailingZeros = Long.numberOfTrailingZeros(previousXorValue);
+
+        int length = 0;
+
+        if (leadingZeros >= prevLeadingZeros && trailingZeros >= prevTrailingZeros)
+        {
+            length += writeBits(bitOffset, 0b10, 2);
+            length += writeBits(
+                bitOffset + 2, xorValue >>> prevTrailingZeros, 64 - (prevLeadingZeros + prevTrailingZeros));
+        }
+        else
+        {
+            int relevantLength = 64 - (leadingZeros + trailingZeros);
+
+            length += writeBits(bitOffset, 0b11, 2);
+            length += writeBits(bitOffset + 2, leadingZeros, 5);
+            length += writeBits(bitOffset + 2 + 5, (relevantLength - 1), 6);
+            length += writeBits(bitOffset + 2 + 5 + 6, xorValue >>> trailingZeros, relevantLength);
+        }
+
+        return length;
+    }
+
+    int writeBits(int tempBitIndex, int value, int valueBitLength)
+    {
+        return writeBits(tempBitIndex, value & 0xFFFFFFFFL, valueBitLength);
+    }
+
+    int writeBits(int tempBitIndex, long value, int valueBitLength)
+    {
+        assert Block.valueInRange(valueBitLength, value) : format("value out of range - writeBits(%d, %d (%d), %d)", tempBitIndex, valueBitLength, 1L << valueBitLength, value);
+        assert tempBitIndex + valueBitLength < 128 : format("value too long - writeBits(%d, %d (%d), %d)", tempBitIndex, valueBitLength, 1L << valueBitLength, value);
+
+        final int tempIntIndex = tempBitIndex / 32;
+        final int tempBitOffset = tempBitIndex % 32;
+
+        long shiftedValue = value << 64 - valueBitLength;
+        int upperPart = (int) (0xFFFFFFFFL & (shiftedValue >>> 32));
+        int lowerPart = (int) (0xFFFFFFFFL & shiftedValue);
+
+        final int localTemp0 = getTempPart(tempIntIndex) | upperPart >>> tempBitOffset;
+        final int localTemp1 = (upperPart & intMask(tempBitOffset)) << (32 - tempBitIndex) | lowerPart >>> tempBitOffset;
+        final int localTemp2 = (lowerPart & intMask(tempBitOffset)) << (32 - tempBitIndex);
+
+        final int intsToWrite = (tempBitOffset + valueBitLength + 32 - 1) / 32;
+        assert intsToWrite <= 3;
+
+        switch (intsToWrite)
+        {
+            case 3:
+                setTempPart(tempIntIndex + 2, localTemp2);
+            case 2:
+                setTempPart(tempIntIndex + 1, localTemp1);
+            case 1:
+                setTempPart(tempIntIndex, localTemp0);
+            default:
+                // Ignore
+        }
+
+        return valueBitLength;
+    }
+
+    private void setTempPart(int bitBufferPartIndex, int toAppend)
+    {
+        switch (bitBufferPartIndex)
+        {
+            case 0:
+                this.temp0 |= toAppend;
+                break;
+            case 1:
+                this.temp1 |= toAppend;
+                break;
+            case 2:
+                this.temp2 |= toAppend;
+                break;
+            case 3:
+                this.temp3 |= toAppend;
+                break;
+            default:
+                assert false : "Invalid bit buffer part index: " + bitBufferPartIndex;
+        }
+    }
+
+    int getTempPart(int bitBufferPartIndex)
+    {
+        switch (bitBufferPartIndex)
+        {
+            case 0:
+                return this.temp0;
+            case 1:
+                return this.temp1;
+            case 2:
+                return this.temp2;
+            case 3:
+                return this.temp3;
+        }
+
+        throw new IllegalStateException(bitBufferPartIndex + "");
+    }
+
+    private void resetBitBuffer()
+    {
+        temp0 = 0;
+        temp1 = 0;
+        temp2 = 0;
+        temp3 = 0;
+    }
+
+    private void flushTemp(int bufferBitIndex, int bitLength)
+    {
+        assert bitLength <= 128;
+
+        int intAlignedBufferByteIndex = (bufferBitIndex / 32) * 4;
+        int bufferBitSubIndex = bufferBitIndex & 31;
+
+        int existingValue = buffer.getInt(intAlignedBufferByteIndex, BYTE_ORDER);
+
+        int tempShifted0 = existingValue | (temp0 >>> bufferBitSubIndex);
+        int tempShifted1 = (temp0 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp1 >>> bufferBitSubIndex);
+        int tempShifted2 = (temp1 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp2 >>> bufferBitSubIndex);
+        int tempShifted3 = (temp2 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex) | (temp3 >>> bufferBitSubIndex);
+        int tempShifted4 = (temp3 & intMask(bufferBitSubIndex)) << (32 - bufferBitSubIndex);
+
+        final int intsToWrite = (bufferBitSubIndex + bitLength + 32 - 1) / 32;
+        assert intsToWrite <= 5;
+
+        switch (intsToWrite)
+        {
+            case 5:
+                buffer.putInt(intAlignedBufferByteIndex + 16, tempShifted4, BYTE_ORDER);
+            case 4:
+                buffer.putInt(intAlignedBufferByteIndex + 12, tempShifted3, BYTE_ORDER);
+            case 3:
+                buffer.putInt(intAlignedBufferByteIndex + 8, tempShifted2, BYTE_ORDER);
+            case 2:
+                buffer.putInt(intAlignedBufferByteIndex + 4, tempShifted1, BYTE_ORDER);
+            case 1:
+                buffer.putInt(intAlignedBufferByteIndex, tempShifted0, BYTE_ORDER);
+            default:
+                // Ignore
+        }
+    }
+
+    private static int intMask(int numBits)
+    {
+        assert numBits <= 32;
+        return numBits == 32 ? 0xFFFFFFFF : (1 << numBits) - 1;
+    }
+}
@@ -0,0 +1,136 @@
+package com.lmax.utan.store;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ReorderBufferTest
+{
+    private final List<Entry> inOrder = new ArrayList<>();
+    private final List<Entry> late = new ArrayList<>();
+
+    @Test
+    public void shouldPassPointsThroughWithNoWindow()
+    {
+        final ReorderBuffer buffer = newBuffer(0);
+
+        buffer.append(1000, 1.0);
+        buffer.append(2000, 2.0);
+
+        assertThat(inOrder).isEqualTo(entries(1000, 1.0, 2000, 2.0));
+        assertThat(buffer.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldReorderPointsWithinWindow()
+    {
+        final ReorderBuffer buffer = newBuffer(5000);
+
+        buffer.append(1000, 1.0);
+        buffer.append(3000, 3.0);
+        buffer.append(2000, 2.0);
+        buffer.append(4000, 4.0);
+
+        assertThat(inOrder).isEqualTo(new ArrayList<Entry>());
+
+        buffer.append(7500, 7.5);
+
+        assertThat(inOrder).isEqualTo(entries(1000, 1.0, 2000, 2.0));
+        assertThat(buffer.size()).isEqualTo(3);
+        assertThat(buffer.reorderedCount()).isEqualTo(1L);
+
+        buffer.drain();
+
+        assertThat(inOrder).isEqualTo(entries(1000, 1.0, 2000, 2.0, 3000, 3.0, 4000, 4.0, 7500, 7.5));
+        assertThat(late).isEqualTo(new ArrayList<Entry>());
+    }
+
+    @Test
+    public void shouldSendPointsOlderThanReleasedToLateConsumer()
+    {
+        final ReorderBuffer buffer = newBuffer(1000);
+
+        buffer.append(1000, 1.0);
+        buffer.append(2000, 2.0);
+        buffer.append(500, 0.5);
+        buffer.append(1500, 1.5);
+
+        assertThat(inOrder).isEqualTo(entries(1000, 1.0));
+        assertThat(late).isEqualTo(entries(500, 0.5));
+        assertThat(buffer.lateCount()).isEqualTo(1L);
+        assertThat(buffer.reorderedCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldReleasePointsUpToTimestamp()
+    {
+        final ReorderBuffer buffer = newBuffer(5000);
+
+        buffer.append(1000, 1.0);
+        buffer.append(3000, 3.0);
+        buffer.append(2000, 2.0);
+
+        assertThat(buffer.maxTimestamp()).isEqualTo(3000L);
+        assertThat(buffer.hasReleasedUpTo(2000)).isFalse();
+
+        buffer.releaseUpTo(2000);
+
+        assertThat(inOrder).isEqualTo(entries(1000, 1.0, 2000, 2.0));
+        assertThat(buffer.hasReleasedUpTo(2000)).isTrue();
+        assertThat(buffer.hasReleasedUpTo(3000)).isFalse();
+        assertThat(buffer.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldKeepOrderWhenBufferGrows()
+    {
+        final ReorderBuffer buffer = newBuffer(Long.MAX_VALUE);
+
+        for (int i = 999; i >= 0; i--)
+        {
+            buffer.append(i, i);
+        }
+
+        buffer.drain();
+
+        assertThat(inOrder.size()).isEqualTo(1000);
+        for (int i = 0; i < 1000; i++)
+        {
+            assertThat(inOrder.get(i)).isEqualTo(new Entry(i, i));
+        }
+    }
+
+    @Test
+    public void shouldPassBatchRunsThroughWithNoWindow()
+    {
+        final ReorderBuffer buffer = newBuffer(0);
+
+        buffer.appendAll(new long[]{1000, 2000, 2000, 1500, 3000, 500}, new double[]{1.0, 2.0, 2.5, 1.5, 3.0, 0.5}, 1, 6);
+
+        assertThat(inOrder).isEqualTo(entries(2000, 2.0, 2000, 2.5, 3000, 3.0));
+        assertThat(late).isEqualTo(entries(1500, 1.5, 500, 0.5));
+        assertThat(buffer.lateCount()).isEqualTo(2L);
+    }
+
+    private ReorderBuffer newBuffer(long window)
+    {
+        return new ReorderBuffer(
+            window,
+            (timestamp, value) -> inOrder.add(new Entry(timestamp, value)),
+            (timestamp, value) -> late.add(new Entry(timestamp, value)));
+    }
+
+    private static List<Entry> entries(Object... timestampsAndValues)
+    {
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < timestampsAndValues.length; i += 2)
+        {
+            entries.add(new Entry(((Number) timestampsAndValues[i]).longValue(), (Double) timestampsAndValues[i + 1]));
+        }
+
+        return entries;
+    }
+}
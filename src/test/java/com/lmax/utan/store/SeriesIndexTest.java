@@ -0,0 +1,56 @@
+package com.lmax.utan.store;
+
+import org.agrona.concurrent.UnsafeBuffer;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SeriesIndexTest
+{
+    private final SeriesIndex index = new SeriesIndex();
+
+    @Test
+    public void shouldAssignIdsInOrderKeysAreSeen()
+    {
+        assertThat(index.idOf("a.b.c")).isEqualTo(0);
+        assertThat(index.idOf("a.b.d")).isEqualTo(1);
+        assertThat(index.idOf(new StringBuilder("a.b.c"))).isEqualTo(0);
+        assertThat(index.size()).isEqualTo(2);
+        assertThat(index.key(1)).isEqualTo("a.b.d");
+    }
+
+    @Test
+    public void shouldFindSameIdFromBytesAndCharacters()
+    {
+        final String key = "temp.\u00e9t\u00e9.\u20ac.\ud83d\ude00";
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        final UnsafeBuffer buffer = new UnsafeBuffer(new byte[bytes.length + 3]);
+        buffer.putBytes(3, bytes, 0, bytes.length);
+
+        assertThat(SeriesIndex.hash(key)).isEqualTo(SeriesIndex.hash(buffer, 3, bytes.length));
+
+        final int id = index.idOf(key);
+
+        assertThat(index.idOf(buffer, 3, bytes.length)).isEqualTo(id);
+        assertThat(index.key(id)).isEqualTo(key);
+    }
+
+    @Test
+    public void shouldKeepIdsAsIndexGrows()
+    {
+        for (int i = 0; i < 10_000; i++)
+        {
+            assertThat(index.idOf("series.number." + i)).isEqualTo(i);
+        }
+
+        for (int i = 0; i < 10_000; i++)
+        {
+            assertThat(index.idOf("series.number." + i)).isEqualTo(i);
+            assertThat(index.key(i)).isEqualTo("series.number." + i);
+        }
+
+        assertThat(index.size()).isEqualTo(10_000);
+    }
+}
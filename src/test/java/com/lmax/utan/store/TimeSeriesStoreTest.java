@@ -1,5 +1,9 @@
 package com.lmax.utan.store;
 
+import com.lmax.utan.io.Dirs;
+import org.agrona.IoUtil;
+
+import java.io.File;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.LocalDate;
@@ -14,6 +18,38 @@ import static org.junit.Assert.*;
 
 public class TimeSeriesStoreTest
 {
+    @Test
+    public void storeLatePointsAsTheyArrive() throws Exception
+    {
+        final File dir = Dirs.createTempDir(TimeSeriesStoreTest.class.getSimpleName());
+        try
+        {
+            final TimeSeriesStore store = new TimeSeriesStore(new PersistentStoreWriter(dir));
+            final long timestamp = System.currentTimeMillis();
+            store.store("late.key", timestamp, 1.0);
+            store.store("late.key", timestamp + 3000, 3.0);
+            store.flush("late.key");
+
+            store.store("late.key", timestamp + 1000, 2.0);
+            store.store("late.key", timestamp + 2000, 2.5);
+
+            // Not flushed, as if the process had crashed.
+            final long[] timestamps = new long[4];
+            final double[] values = new double[4];
+            final int count = new PersistentStoreReader(dir).query(
+                "late.key", timestamp, timestamp + 3001, timestamps, values, 0);
+
+            assertThat(count, is(4));
+            assertThat(timestamps[1], is(timestamp + 1000));
+            assertThat(timestamps[2], is(timestamp + 2000));
+            assertThat(store.latePoints(), is(2L));
+        }
+        finally
+        {
+            IoUtil.delete(dir, true);
+        }
+    }
+
     @Test
     public void shouldGetDay() throws Exception
     {
@@ -0,0 +1,187 @@
+package com.lmax.utan.store;
+
+import com.lmax.utan.io.Dirs;
+import org.agrona.IoUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class WriteAheadLogTest
+{
+    private static final WriteAheadLogPolicy POLICY =
+        WriteAheadLogPolicy.groupCommit(1, TimeUnit.MILLISECONDS, 64 * 1024).withSegmentBytes(WriteAheadLog.MIN_SEGMENT_BYTES);
+
+    private final List<File> closedSegments = new ArrayList<>();
+    private File walDir;
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        walDir = Dirs.createTempDir(WriteAheadLogTest.class.getSimpleName());
+        logDir = new File(walDir, "0");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        IoUtil.delete(walDir, true);
+    }
+
+    @Test
+    public void replayPointsInTheOrderLogged() throws Exception
+    {
+        final List<String> logged = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                final String key = "key." + (i % 3);
+                wal.append(i % 3, key, 1000L * i, i);
+                logged.add(key + "@" + (1000L * i) + "=" + (double) i);
+            }
+
+            wal.sync();
+            assertThat(wal.syncs()).isEqualTo(1L);
+        }
+
+        assertThat(replayAll()).isEqualTo(logged);
+        assertThat(closedSegments.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void redefineSeriesInEachSegment() throws Exception
+    {
+        final List<String> logged = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            for (int i = 0; i < 10_000; i++)
+            {
+                wal.append(7, "rolled.key", i, i);
+                logged.add("rolled.key@" + i + "=" + (double) i);
+            }
+        }
+
+        assertThat(closedSegments.size() > 1).isTrue();
+        for (final File segment : closedSegments)
+        {
+            assertThat(segment.length() <= WriteAheadLog.MIN_SEGMENT_BYTES).isTrue();
+        }
+
+        assertThat(replayAll()).isEqualTo(logged);
+    }
+
+    @Test
+    public void stopReplayingAtTornRecord() throws Exception
+    {
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                wal.append(0, "torn.key", i, i);
+            }
+        }
+
+        final File segment = logDir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            file.setLength(file.length() - 3);
+        }
+
+        final List<String> replayed = replayAll();
+        assertThat(replayed.size()).isEqualTo(9);
+        assertThat(replayed.get(8)).isEqualTo("torn.key@8=8.0");
+    }
+
+    @Test
+    public void stopReplayingAtRecordFailingItsCheck() throws Exception
+    {
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                wal.append(0, "corrupt.key", i, i);
+            }
+        }
+
+        final File segment = logDir.listFiles()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+        {
+            file.seek(file.length() - 1);
+            final int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        }
+
+        assertThat(replayAll().size()).isEqualTo(9);
+    }
+
+    @Test
+    public void continueSequenceAfterExistingSegments() throws Exception
+    {
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            wal.append(0, "first.key", 1, 1);
+        }
+
+        try (WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add))
+        {
+            wal.append(0, "second.key", 2, 2);
+        }
+
+        assertThat(logDir.list().length).isEqualTo(2);
+        assertThat(replayAll()).isEqualTo(asList("first.key@1=1.0", "second.key@2=2.0"));
+    }
+
+    @Test
+    public void deleteEverySegmentOnCleanClose() throws Exception
+    {
+        final WriteAheadLog wal = new WriteAheadLog(logDir, POLICY, closedSegments::add);
+        for (int i = 0; i < 10_000; i++)
+        {
+            wal.append(0, "deleted.key", i, i);
+        }
+
+        wal.closeAndDelete();
+
+        assertThat(logDir.list().length).isEqualTo(0);
+        assertThat(replayAll().size()).isEqualTo(0);
+    }
+
+    @Test
+    public void reportSegmentThatCannotBeDeleted() throws Exception
+    {
+        WriteAheadLog.delete(new File(logDir, "missing.log"));
+
+        // A directory in place of the segment cannot be deleted while it holds a file.
+        final File undeletable = new File(walDir, "undeletable.log");
+        assertThat(new File(undeletable, "held").mkdirs()).isTrue();
+        try
+        {
+            WriteAheadLog.delete(undeletable);
+            fail("Should have thrown exception");
+        }
+        catch (IOException e)
+        {
+            assertThat(undeletable.exists()).isTrue();
+        }
+    }
+
+    private List<String> replayAll() throws Exception
+    {
+        final List<String> replayed = new ArrayList<>();
+        WriteAheadLog.replay(walDir, (key, timestamp, value) -> replayed.add(key + "@" + timestamp + "=" + value));
+        return replayed;
+    }
+}